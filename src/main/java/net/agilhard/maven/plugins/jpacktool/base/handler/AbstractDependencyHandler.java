@@ -20,7 +20,6 @@ package net.agilhard.maven.plugins.jpacktool.base.handler;
  */
 
 import java.io.File;
-import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -30,20 +29,14 @@ import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
-import org.apache.maven.project.DefaultProjectBuildingRequest;
 import org.apache.maven.project.MavenProject;
-import org.apache.maven.project.ProjectBuildingRequest;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
-import org.apache.maven.shared.dependency.graph.DependencyGraphBuilderException;
 import org.apache.maven.shared.dependency.graph.DependencyNode;
-import org.apache.maven.toolchain.Toolchain;
-import org.apache.maven.toolchain.java.DefaultJavaToolChain;
 import org.codehaus.plexus.languages.java.jpms.JavaModuleDescriptor;
-import org.codehaus.plexus.languages.java.jpms.ResolvePathsRequest;
-import org.codehaus.plexus.languages.java.jpms.ResolvePathsResult;
 
 import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
 import net.agilhard.maven.plugins.jpacktool.base.mojo.ArtifactParameter;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.ArtifactSelector;
 
 public abstract class AbstractDependencyHandler {
 
@@ -59,6 +52,10 @@ public abstract class AbstractDependencyHandler {
 
 	protected List<ArtifactParameter> classpathArtifacts;
 
+	protected ArtifactSelector excludedArtifactSelector;
+
+	protected ArtifactSelector classpathArtifactSelector;
+
 	
 	public HashSet<String> handledNodes;
 	final AbstractToolMojo mojo;
@@ -75,6 +72,8 @@ public abstract class AbstractDependencyHandler {
 		this.outputDirectoryModules = mojo.getOutputDirectoryModules();
 		this.excludedArtifacts = mojo.getExcludedArtifacts();
 		this.classpathArtifacts = mojo.getClasspathArtifacts();
+		this.excludedArtifactSelector = mojo.getExcludedArtifactSelector();
+		this.classpathArtifactSelector = mojo.getClasspathArtifactSelector();
 	}
 
 	public Log getLog() {
@@ -113,6 +112,53 @@ public abstract class AbstractDependencyHandler {
 		// do nothing
 	}
 
+	/**
+	 * Check if an artifact has explicitly been configured to be put on the classpath.
+	 *
+	 * @param artifact the artifact
+	 * @return <code>true</code> if the artifact is in classpathArtifacts
+	 */
+	protected boolean isClasspathArtifact(final Artifact artifact) {
+		return classpathArtifactSelector.matches(artifact);
+	}
+
+	/**
+	 * Check if an artifact has been excluded.
+	 *
+	 * @param artifact the artifact
+	 * @return <code>true</code> if the artifact is in excludedArtifacts
+	 */
+	protected boolean isExcludedArtifact(final Artifact artifact) {
+		return excludedArtifactSelector.matches(artifact);
+	}
+
+	/**
+	 * Get the cached classification of an artifact file.
+	 *
+	 * @param artifact the artifact
+	 * @return the classification
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected ArtifactClassification getClassification(final Artifact artifact) throws MojoExecutionException {
+		return ArtifactClassificationCache.classify(mojo, artifact.getFile());
+	}
+
+	/**
+	 * Check if a non modular jar is a named automatic module.
+	 *
+	 * @param artifact the artifact
+	 * @param entry the path element passed to handleNonModJar
+	 * @return <code>true</code> if the jar should be handled as automatic module
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected boolean isAutomaticModule(final Artifact artifact, Map.Entry<File, JavaModuleDescriptor> entry)
+			throws MojoExecutionException {
+		if (entry == null || entry.getValue() == null || isClasspathArtifact(artifact)) {
+			return false;
+		}
+		return getClassification(artifact).getKind() == ArtifactClassification.Kind.AUTOMATIC;
+	}
+
 	protected void handleDependencyNode(final DependencyNode dependencyNode)
 			throws MojoExecutionException, MojoFailureException {
 
@@ -121,39 +167,21 @@ public abstract class AbstractDependencyHandler {
 
 		if ("jar".equals(type) || "jmod".equals(type)) {
 
-			final File file = artifact.getFile();
+			final ArtifactClassification classification = getClassification(artifact);
+			final Map.Entry<File, JavaModuleDescriptor> entry = classification.getPathElement();
 
-			final ResolvePathsRequest<File> request = ResolvePathsRequest.ofFiles(file);
+			if ((entry == null) || isClasspathArtifact(artifact)) {
 
-			final Toolchain toolchain = mojo.getToolchain();
-			if (toolchain != null && toolchain instanceof DefaultJavaToolChain) {
-				request.setJdkHome(new File(((DefaultJavaToolChain) toolchain).getJavaHome()));
-			}
-			ResolvePathsResult<File> resolvePathsResult;
-			try {
-				resolvePathsResult = mojo.getLocationManager().resolvePaths(request);
-			} catch (final IOException e) {
-				this.getLog().error("handleDependencyNode -> IOException", e);
-				throw new MojoExecutionException("handleDependencyNode: IOException", e);
-			}
+				this.handleNonModJarIfNotAlreadyHandled(dependencyNode, artifact, null);
 
-			if ( (resolvePathsResult.getPathElements().entrySet().size() == 0)
-					|| ( (classpathArtifacts != null) && classpathArtifacts.contains(artifact)) ) {
+			} else if ((entry.getValue() == null) || entry.getValue().isAutomatic()) {
 
-				this.handleNonModJarIfNotAlreadyHandled(dependencyNode, artifact, null);
+				this.handleNonModJarIfNotAlreadyHandled(dependencyNode, artifact, entry);
 
 			} else {
 
-				for (final Map.Entry<File, JavaModuleDescriptor> entry : resolvePathsResult.getPathElements()
-						.entrySet()) {
-					if (entry.getValue() == null) {
-						this.handleNonModJarIfNotAlreadyHandled(dependencyNode, artifact, entry);
-					} else if (entry.getValue().isAutomatic()) {
-						this.handleNonModJarIfNotAlreadyHandled(dependencyNode, artifact, entry);
-					} else {
-						this.handleModJarIfNotAlreadyHandled(dependencyNode, artifact, entry);
-					}
-				}
+				this.handleModJarIfNotAlreadyHandled(dependencyNode, artifact, entry);
+
 			}
 			
 		} else if ( (artifact.getClassifier() != null) &&
@@ -169,26 +197,23 @@ public abstract class AbstractDependencyHandler {
 
 	public void execute() throws MojoExecutionException, MojoFailureException {
 		// No need to filter our search. We want to resolve all artifacts.
-		execute(mojo.getProject(), null);
+		// The graph is shared with all other handlers of the project.
+		execute(DependencyGraphCache.getDependencyGraph(mojo, dependencyGraphBuilder));
 	}
-	
-	public void execute(MavenProject project, ArtifactFilter artifactFilter) throws MojoExecutionException, MojoFailureException {
-
-		final ProjectBuildingRequest buildingRequest = new DefaultProjectBuildingRequest(
-				mojo.getSession().getProjectBuildingRequest());
-
-		buildingRequest.setProject(project);
 
-		this.getLog().debug("building dependency graph for project " + project.getArtifact());
-
-		try {
-
-			final DependencyNode dependencyNode = dependencyGraphBuilder.buildDependencyGraph(buildingRequest, artifactFilter);
-
-			this.handleDependencyRoot(dependencyNode);
+	/**
+	 * Visit an already resolved dependency graph.
+	 *
+	 * @param dependencyNode the root node of the dependency graph
+	 * @throws MojoExecutionException on plugin execution failure
+	 * @throws MojoFailureException on misc plugin failure
+	 */
+	public void execute(DependencyNode dependencyNode) throws MojoExecutionException, MojoFailureException {
+		this.handleDependencyRoot(dependencyNode);
+	}
 
-		} catch (final DependencyGraphBuilderException e) {
-			throw new MojoExecutionException("Could not resolve dependencies for project: " + project, e);
-		}
+	public void execute(MavenProject project, ArtifactFilter artifactFilter) throws MojoExecutionException, MojoFailureException {
+		this.handleDependencyRoot(
+				DependencyGraphCache.buildDependencyGraph(mojo, dependencyGraphBuilder, project, artifactFilter));
 	}
 }
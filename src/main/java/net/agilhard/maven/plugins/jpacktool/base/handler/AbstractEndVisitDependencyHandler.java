@@ -49,9 +49,7 @@ public abstract class AbstractEndVisitDependencyHandler extends AbstractDependen
 		public boolean visit(final DependencyNode node) {
 			boolean b = !node.toNodeString().endsWith(":test");
 						
-			if (excludedArtifacts != null) {
-				b = b && (!excludedArtifacts.contains(node.getArtifact()));
-			}
+			b = b && (!isExcludedArtifact(node.getArtifact()));
 			
 			String classifier=node.getArtifact().getClassifier();
 
@@ -75,9 +73,7 @@ public abstract class AbstractEndVisitDependencyHandler extends AbstractDependen
 		public boolean endVisit(final DependencyNode node) {
 
 			boolean b = !node.toNodeString().endsWith(":test");
-			if (excludedArtifacts != null) {
-				b = b && (!excludedArtifacts.contains(node.getArtifact()));
-			}
+			b = b && (!isExcludedArtifact(node.getArtifact()));
 			if (b) {
 				try {
 					handleDependencyNode(node);
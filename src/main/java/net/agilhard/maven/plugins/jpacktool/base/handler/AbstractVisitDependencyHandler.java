@@ -49,9 +49,7 @@ public abstract class AbstractVisitDependencyHandler extends AbstractDependencyH
 		public boolean visit(final DependencyNode node) {
 
 			boolean b = !node.toNodeString().endsWith(":test");
-			if (excludedArtifacts != null) {
-				b = b && (!excludedArtifacts.contains(node.getArtifact()));
-			}
+			b = b && (!isExcludedArtifact(node.getArtifact()));
 
 			String classifier=node.getArtifact().getClassifier();
 
@@ -0,0 +1,122 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.Map;
+
+import org.codehaus.plexus.languages.java.jpms.JavaModuleDescriptor;
+
+/**
+ * Result of classifying a jar or jmod file as explicit module, automatic
+ * module or plain classpath jar.
+ *
+ * @author Bernd Eilers
+ */
+public class ArtifactClassification {
+
+	/**
+	 * Kind of an artifact file.
+	 */
+	public enum Kind {
+		/** jar with a module-info */
+		MODULE,
+		/** jar with an Automatic-Module-Name entry in the manifest */
+		AUTOMATIC,
+		/** any other jar */
+		CLASSPATH
+	}
+
+	private final File file;
+
+	private final boolean resolved;
+
+	private final JavaModuleDescriptor descriptor;
+
+	private final boolean manifestPresent;
+
+	private final String automaticModuleName;
+
+	public ArtifactClassification(File file, boolean resolved, JavaModuleDescriptor descriptor,
+			boolean manifestPresent, String automaticModuleName) {
+		this.file = file;
+		this.resolved = resolved;
+		this.descriptor = descriptor;
+		this.manifestPresent = manifestPresent;
+		this.automaticModuleName = automaticModuleName;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Flag if the file could be resolved by the location manager.
+	 *
+	 * @return <code>true</code> if the file has been resolved
+	 */
+	public boolean isResolved() {
+		return resolved;
+	}
+
+	public JavaModuleDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+	public boolean isManifestPresent() {
+		return manifestPresent;
+	}
+
+	public String getAutomaticModuleName() {
+		return automaticModuleName;
+	}
+
+	public Kind getKind() {
+		if (descriptor == null) {
+			return Kind.CLASSPATH;
+		}
+		if (descriptor.isAutomatic()) {
+			// only named are automatic
+			return automaticModuleName == null ? Kind.CLASSPATH : Kind.AUTOMATIC;
+		}
+		return Kind.MODULE;
+	}
+
+	/**
+	 * Get the module name.
+	 *
+	 * @return the module name or <code>null</code> for classpath jars
+	 */
+	public String getModuleName() {
+		return getKind() == Kind.CLASSPATH ? null : descriptor.name();
+	}
+
+	/**
+	 * Get the path element like it would be returned by the location manager.
+	 *
+	 * @return the path element or <code>null</code> if the file has not been
+	 *         resolved
+	 */
+	public Map.Entry<File, JavaModuleDescriptor> getPathElement() {
+		return resolved ? new AbstractMap.SimpleImmutableEntry<>(file, descriptor) : null;
+	}
+
+}
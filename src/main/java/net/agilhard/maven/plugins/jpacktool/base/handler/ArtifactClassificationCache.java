@@ -0,0 +1,241 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.toolchain.Toolchain;
+import org.apache.maven.toolchain.java.DefaultJavaToolChain;
+import org.codehaus.plexus.languages.java.jpms.JavaModuleDescriptor;
+import org.codehaus.plexus.languages.java.jpms.ResolvePathsRequest;
+import org.codehaus.plexus.languages.java.jpms.ResolvePathsResult;
+
+import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.PerformanceTrace;
+
+/**
+ * Cache of {@link ArtifactClassification}s kept in the context of the current
+ * project.
+ *
+ * <p>
+ * Each file is resolved by the location manager and its manifest is read only
+ * once per project. Entries are keyed by path, size, modification time and the
+ * JDK of the toolchain so a changed file or another JDK leads to a new
+ * classification.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public final class ArtifactClassificationCache {
+
+	private static final String CONTEXT_KEY = ArtifactClassificationCache.class.getName() + ".classifications";
+
+	private ArtifactClassificationCache() {
+		// private constructor for utility class
+	}
+
+	/**
+	 * Classify a single file.
+	 *
+	 * @param mojo the mojo
+	 * @param file the jar or jmod file
+	 * @return the classification
+	 * @throws MojoExecutionException on i/o errors
+	 */
+	public static ArtifactClassification classify(AbstractToolMojo mojo, File file) throws MojoExecutionException {
+		return classify(mojo, Collections.singletonList(file)).get(file);
+	}
+
+	/**
+	 * Classify files, all files not yet in the cache are resolved with a single
+	 * call of the location manager.
+	 *
+	 * @param mojo  the mojo
+	 * @param files the jar or jmod files
+	 * @return the classifications in the order of the given files
+	 * @throws MojoExecutionException on i/o errors
+	 */
+	public static Map<File, ArtifactClassification> classify(AbstractToolMojo mojo, Collection<File> files)
+			throws MojoExecutionException {
+
+		final Map<String, ArtifactClassification> cache = getCache(mojo);
+		final File jdkHome = getJdkHome(mojo);
+		final Map<File, ArtifactClassification> result = new LinkedHashMap<>();
+		final Map<File, String> keys = new LinkedHashMap<>();
+		final List<File> toResolve = new ArrayList<>();
+
+		for (File file : files) {
+			String key = getKey(file, jdkHome);
+			ArtifactClassification classification = key == null ? null : cache.get(key);
+			if (classification == null) {
+				keys.put(file, key);
+				toResolve.add(file);
+			}
+			result.put(file, classification);
+		}
+
+		if (!toResolve.isEmpty()) {
+			try (PerformanceTrace.Stage stage = mojo.getPerformanceTrace().start("classification")) {
+				stage.addFiles(toResolve.size());
+				resolve(mojo, jdkHome, toResolve, keys, result, cache);
+			}
+		}
+
+		return result;
+	}
+
+	private static void resolve(AbstractToolMojo mojo, File jdkHome, List<File> toResolve, Map<File, String> keys,
+			Map<File, ArtifactClassification> result, Map<String, ArtifactClassification> cache)
+			throws MojoExecutionException {
+		final ResolvePathsRequest<File> request = ResolvePathsRequest.ofFiles(toResolve);
+
+		if (jdkHome != null) {
+			request.setJdkHome(jdkHome);
+		}
+
+		ResolvePathsResult<File> resolvePathsResult;
+		try {
+			resolvePathsResult = mojo.getLocationManager().resolvePaths(request);
+		} catch (final IOException e) {
+			mojo.getLog().error("classify -> IOException", e);
+			throw new MojoExecutionException("classify: IOException", e);
+		}
+
+		final Map<File, JavaModuleDescriptor> pathElements = resolvePathsResult.getPathElements();
+
+		for (File file : toResolve) {
+			boolean resolved = pathElements.containsKey(file);
+			JavaModuleDescriptor descriptor = pathElements.get(file);
+
+			Manifest manifest = readManifest(mojo, file);
+			String automaticModuleName = null;
+			if (manifest != null) {
+				Attributes mainAttributes = manifest.getMainAttributes();
+				automaticModuleName = mainAttributes.getValue("Automatic-Module-Name");
+			}
+
+			ArtifactClassification classification = new ArtifactClassification(file, resolved, descriptor,
+					manifest != null, automaticModuleName);
+
+			String key = keys.get(file);
+			if (key != null) {
+				cache.put(key, classification);
+			}
+			result.put(file, classification);
+		}
+	}
+
+	/**
+	 * Remove all entries from the cache of the project of a mojo.
+	 *
+	 * @param mojo the mojo
+	 */
+	public static void clear(AbstractToolMojo mojo) {
+		final MavenProject project = mojo.getProject();
+		if (project != null) {
+			project.setContextValue(CONTEXT_KEY, null);
+		}
+	}
+
+	/**
+	 * Get the cache of the project of a mojo. Without a project the
+	 * classifications are not cached beyond the current call.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, ArtifactClassification> getCache(AbstractToolMojo mojo) {
+		final MavenProject project = mojo.getProject();
+		if (project == null) {
+			return new ConcurrentHashMap<>();
+		}
+		synchronized (project) {
+			Object cache = project.getContextValue(CONTEXT_KEY);
+			if (!(cache instanceof Map)) {
+				cache = new ConcurrentHashMap<String, ArtifactClassification>();
+				project.setContextValue(CONTEXT_KEY, cache);
+			}
+			return (Map<String, ArtifactClassification>) cache;
+		}
+	}
+
+	private static File getJdkHome(AbstractToolMojo mojo) {
+		final Toolchain toolchain = mojo.getToolchain();
+		if (toolchain != null && toolchain instanceof DefaultJavaToolChain) {
+			return new File(((DefaultJavaToolChain) toolchain).getJavaHome());
+		}
+		return null;
+	}
+
+	private static String getKey(File file, File jdkHome) {
+		if (file == null || !file.exists()) {
+			return null;
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			return file.getCanonicalPath() + '|' + attrs.size() + '|' + attrs.lastModifiedTime().toMillis() + '|'
+					+ ((jdkHome == null) ? "" : jdkHome.getAbsolutePath());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static Manifest readManifest(AbstractToolMojo mojo, File file) throws MojoExecutionException {
+		if (file == null) {
+			return null;
+		}
+		if (file.isDirectory()) {
+			File manifestFile = new File(file, JarFile.MANIFEST_NAME);
+			if (!manifestFile.isFile()) {
+				return null;
+			}
+			try (InputStream is = new FileInputStream(manifestFile)) {
+				return new Manifest(is);
+			} catch (IOException e) {
+				mojo.getLog().error("error reading manifest of " + file, e);
+				throw new MojoExecutionException("error reading manifest of " + file + ": " + e.getMessage(), e);
+			}
+		}
+		if (!file.isFile()) {
+			return null;
+		}
+		try (JarFile jarFile = new JarFile(file)) {
+			return jarFile.getManifest();
+		} catch (IOException e) {
+			mojo.getLog().error("error reading manifest of " + file, e);
+			throw new MojoExecutionException("error reading manifest of " + file + ": " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Finds the packages referenced by the classes of a jar by reading the
+ * constant pools and the field and method descriptors of the class files.
+ *
+ * @author Bernd Eilers
+ */
+public final class ClassFileScanner {
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private ClassFileScanner() {
+		// private constructor for utility class
+	}
+
+	/**
+	 * Packages of a jar.
+	 */
+	public static class JarPackages {
+
+		private final Set<String> definedPackages = new TreeSet<>();
+
+		private final Set<String> referencedPackages = new TreeSet<>();
+
+		/**
+		 * Get the packages containing classes of the jar.
+		 *
+		 * @return the package names
+		 */
+		public Set<String> getDefinedPackages() {
+			return definedPackages;
+		}
+
+		/**
+		 * Get the packages referenced by the classes of the jar which are not
+		 * defined in the jar itself.
+		 *
+		 * @return the package names
+		 */
+		public Set<String> getReferencedPackages() {
+			return referencedPackages;
+		}
+	}
+
+	/**
+	 * Scan all classes of a jar. Versioned entries of multi release jars and
+	 * module-info are ignored.
+	 *
+	 * @param jar the jar file
+	 * @return the defined and referenced packages
+	 * @throws IOException on i/o error or if a class file is invalid
+	 */
+	public static JarPackages scanJar(File jar) throws IOException {
+		JarPackages result = new JarPackages();
+		Set<String> referencedClasses = new TreeSet<>();
+
+		try (JarFile jarFile = new JarFile(jar)) {
+			Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory() || !name.endsWith(".class") || name.startsWith("META-INF/")
+						|| name.endsWith("module-info.class")) {
+					continue;
+				}
+				String pkg = getPackage(name.substring(0, name.length() - ".class".length()));
+				if (pkg != null) {
+					result.definedPackages.add(pkg);
+				}
+				try (InputStream is = jarFile.getInputStream(entry)) {
+					scanClass(is, referencedClasses);
+				}
+			}
+		}
+
+		for (String className : referencedClasses) {
+			String pkg = getPackage(className);
+			if ((pkg != null) && !result.definedPackages.contains(pkg)) {
+				result.referencedPackages.add(pkg);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the packages containing classes of a jar without reading the classes.
+	 *
+	 * @param jar the jar file
+	 * @return the package names
+	 * @throws IOException on i/o error
+	 */
+	public static Set<String> getDefinedPackages(File jar) throws IOException {
+		Set<String> packages = new TreeSet<>();
+		try (JarFile jarFile = new JarFile(jar)) {
+			Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.endsWith(".class") && !name.startsWith("META-INF/")) {
+					String pkg = getPackage(name);
+					if (pkg != null) {
+						packages.add(pkg);
+					}
+				}
+			}
+		}
+		return packages;
+	}
+
+	/**
+	 * Collect the internal names of all classes referenced by a class file.
+	 *
+	 * @param classFile        the class file
+	 * @param referencedClasses set the internal class names are added to
+	 * @throws IOException on i/o error or if the class file is invalid
+	 */
+	public static void scanClass(InputStream classFile, Set<String> referencedClasses) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(classFile));
+
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a class file");
+		}
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+
+		int count = in.readUnsignedShort();
+		String[] utf8 = new String[count];
+		int[] classes = new int[count];
+		int[] descriptors = new int[count];
+		int nClasses = 0;
+		int nDescriptors = 0;
+
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1: // Utf8
+				utf8[i] = in.readUTF();
+				break;
+			case 7: // Class
+				classes[nClasses++] = in.readUnsignedShort();
+				break;
+			case 12: // NameAndType
+				in.readUnsignedShort();
+				descriptors[nDescriptors++] = in.readUnsignedShort();
+				break;
+			case 16: // MethodType
+				descriptors[nDescriptors++] = in.readUnsignedShort();
+				break;
+			case 8: // String
+			case 19: // Module
+			case 20: // Package
+				in.readUnsignedShort();
+				break;
+			case 15: // MethodHandle
+				in.readUnsignedByte();
+				in.readUnsignedShort();
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				in.readInt();
+				break;
+			case 5: // Long
+			case 6: // Double
+				in.readLong();
+				i++;
+				break;
+			default:
+				throw new IOException("invalid constant pool tag " + tag);
+			}
+		}
+
+		for (int i = 0; i < nClasses; i++) {
+			String name = utf8[classes[i]];
+			if (name == null) {
+				continue;
+			}
+			if (name.startsWith("[")) {
+				addDescriptor(name, referencedClasses);
+			} else {
+				referencedClasses.add(name);
+			}
+		}
+		for (int i = 0; i < nDescriptors; i++) {
+			addDescriptor(utf8[descriptors[i]], referencedClasses);
+		}
+
+		in.readUnsignedShort(); // access flags
+		in.readUnsignedShort(); // this class
+		in.readUnsignedShort(); // super class
+		int interfaces = in.readUnsignedShort();
+		for (int i = 0; i < interfaces; i++) {
+			in.readUnsignedShort();
+		}
+
+		// fields and methods
+		for (int n = 0; n < 2; n++) {
+			int members = in.readUnsignedShort();
+			for (int i = 0; i < members; i++) {
+				in.readUnsignedShort(); // access flags
+				in.readUnsignedShort(); // name
+				addDescriptor(utf8[in.readUnsignedShort()], referencedClasses);
+				skipAttributes(in);
+			}
+		}
+	}
+
+	private static void skipAttributes(DataInputStream in) throws IOException {
+		int attributes = in.readUnsignedShort();
+		for (int i = 0; i < attributes; i++) {
+			in.readUnsignedShort();
+			long length = in.readInt() & 0xFFFFFFFFL;
+			while (length > 0) {
+				long skipped = in.skip(length);
+				if (skipped <= 0) {
+					throw new IOException("unexpected end of class file");
+				}
+				length -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * Add the classes of a field or method descriptor.
+	 *
+	 * @param descriptor        the descriptor
+	 * @param referencedClasses set the internal class names are added to
+	 */
+	static void addDescriptor(String descriptor, Set<String> referencedClasses) {
+		if (descriptor == null) {
+			return;
+		}
+		int i = descriptor.indexOf('L');
+		while (i >= 0) {
+			int end = descriptor.indexOf(';', i);
+			if (end < 0) {
+				return;
+			}
+			referencedClasses.add(descriptor.substring(i + 1, end));
+			i = descriptor.indexOf('L', end);
+		}
+	}
+
+	/**
+	 * Get the package of an internal class name or a class entry name.
+	 *
+	 * @param name the name using '/' as separator
+	 * @return the package name or <code>null</code> for the unnamed package
+	 */
+	static String getPackage(String name) {
+		int i = name.lastIndexOf('/');
+		return i > 0 ? name.substring(0, i).replace('/', '.') : null;
+	}
+}
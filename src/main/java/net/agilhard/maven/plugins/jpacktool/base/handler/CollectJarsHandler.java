@@ -20,16 +20,21 @@ package net.agilhard.maven.plugins.jpacktool.base.handler;
  * under the License.
  */
 
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.jar.Attributes;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -39,13 +44,227 @@ import org.apache.maven.shared.dependency.graph.DependencyNode;
 import org.codehaus.plexus.languages.java.jpms.JavaModuleDescriptor;
 
 import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.FileStager;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.PerformanceTrace;
 
 public class CollectJarsHandler extends AbstractEndVisitDependencyHandler {
 
+	/**
+	 * A jar being staged.
+	 */
+	private static class StagedJar {
+
+		final Path source;
+
+		final Path target;
+
+		volatile boolean done;
+
+		volatile boolean failed;
+
+		Future<Void> future;
+
+		StagedJar(Path source, Path target) {
+			this.source = source;
+			this.target = target;
+		}
+	}
+
+	private Consumer<File> copyListener;
+
+	private final Set<Path> copiedTargets = new HashSet<>();
+
+	private final List<StagedJar> stagedJars = new ArrayList<>();
+
+	private int notifiedJars;
+
+	private ExecutorService stagingExecutor;
+
+	private StagingManifest manifest;
+
+	private int stagingThreads = Runtime.getRuntime().availableProcessors();
+
+	private boolean deleteStaleJars = true;
+
 	public CollectJarsHandler(AbstractToolMojo mojo, DependencyGraphBuilder dependencyGraphBuilder) {
 		super(mojo, dependencyGraphBuilder);
 	}
 
+	/**
+	 * Set a listener which is called with each jar copied to a staging directory.
+	 * The listener is called in the order the jars have been visited, a jar is
+	 * passed on only after all jars visited before it have been staged.
+	 *
+	 * @param copyListener the listener or <code>null</code>
+	 */
+	public void setCopyListener(Consumer<File> copyListener) {
+		this.copyListener = copyListener;
+	}
+
+	/**
+	 * Set the number of threads staging jars concurrently.
+	 *
+	 * @param stagingThreads the number of threads, 0 for the number of processors
+	 */
+	public void setStagingThreads(int stagingThreads) {
+		this.stagingThreads = stagingThreads > 0 ? stagingThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Delete jars from the staging directories which are no longer part of the
+	 * dependency graph.
+	 *
+	 * @param deleteStaleJars <code>true</code> to delete stale jars
+	 */
+	public void setDeleteStaleJars(boolean deleteStaleJars) {
+		this.deleteStaleJars = deleteStaleJars;
+	}
+
+	/**
+	 * Stage a jar by linking or copying it to a staging directory. A jar is
+	 * staged only once even if the artifact occurs at several nodes of the
+	 * dependency graph, and not at all if it has not changed since the previous
+	 * build. While the dependency graph is visited jars are staged in the
+	 * background.
+	 *
+	 * @param path   the jar
+	 * @param target the target in the staging directory
+	 * @throws IOException on i/o error
+	 */
+	protected void copyJar(Path path, Path target) throws IOException {
+		StagedJar jar;
+		synchronized (this) {
+			if (!copiedTargets.add(target)) {
+				return;
+			}
+			jar = new StagedJar(path, target);
+			stagedJars.add(jar);
+			if (stagingExecutor != null) {
+				jar.future = stagingExecutor.submit(() -> {
+					stageJar(jar);
+					return null;
+				});
+				return;
+			}
+		}
+		stageJar(jar);
+	}
+
+	private void stageJar(StagedJar jar) throws IOException {
+		try {
+			if ((manifest != null) && manifest.isUpToDate(jar.source, jar.target)) {
+				getLog().debug("jar " + jar.target + " is up to date");
+			} else {
+				try (PerformanceTrace.Stage stage = mojo.getPerformanceTrace().start("copy",
+						jar.source.getFileName().toString())) {
+					if (mojo.getFileStager().stage(jar.source, jar.target) == FileStager.Method.COPY) {
+						stage.addBytes(Files.size(jar.target));
+					}
+					stage.addFiles(1);
+				}
+				if (manifest != null) {
+					manifest.update(jar.source, jar.target);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			jar.failed = true;
+			throw e;
+		} finally {
+			jar.done = true;
+			notifyStagedJars();
+		}
+	}
+
+	/**
+	 * Pass all jars to the listener which have been staged together with all
+	 * jars visited before them.
+	 */
+	private synchronized void notifyStagedJars() {
+		while ((notifiedJars < stagedJars.size()) && stagedJars.get(notifiedJars).done) {
+			StagedJar jar = stagedJars.get(notifiedJars++);
+			if ((copyListener != null) && !jar.failed) {
+				copyListener.accept(jar.target.toFile());
+			}
+		}
+	}
+
+	@Override
+	protected void handleDependencyRoot(final DependencyNode dependencyNode)
+			throws MojoExecutionException, MojoFailureException {
+
+		manifest = new StagingManifest(new File(outputDirectoryJPacktool, "staging.manifest"),
+				outputDirectoryJPacktool);
+		manifest.load();
+
+		stagingExecutor = Executors.newFixedThreadPool(stagingThreads);
+		try {
+			super.handleDependencyRoot(dependencyNode);
+			waitForStagedJars();
+		} finally {
+			stagingExecutor.shutdownNow();
+			stagingExecutor = null;
+		}
+
+		if (deleteStaleJars) {
+			deleteStaleJars(outputDirectoryModules);
+			deleteStaleJars(outputDirectoryAutomaticJars);
+			deleteStaleJars(outputDirectoryClasspathJars);
+		}
+
+		try {
+			manifest.save();
+		} catch (IOException e) {
+			getLog().warn("can not save staging manifest: " + e.getMessage());
+		}
+	}
+
+	private void waitForStagedJars() throws MojoExecutionException {
+		List<StagedJar> jars;
+		synchronized (this) {
+			jars = new ArrayList<>(stagedJars);
+		}
+		for (StagedJar jar : jars) {
+			if (jar.future == null) {
+				continue;
+			}
+			try {
+				jar.future.get();
+			} catch (ExecutionException e) {
+				this.getLog().error("IOException", e.getCause());
+				throw new MojoExecutionException("Failure during copying of " + jar.source + " occured.",
+						e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MojoExecutionException("interrupted while copying jars", e);
+			}
+		}
+	}
+
+	/**
+	 * Delete jars from a staging directory which have been staged by a previous
+	 * build but not by this one. Jars put there by other means are kept.
+	 *
+	 * @param directory the staging directory or <code>null</code>
+	 * @throws MojoExecutionException on i/o error
+	 */
+	private void deleteStaleJars(File directory) throws MojoExecutionException {
+		if ((directory == null) || !directory.isDirectory()) {
+			return;
+		}
+		try (DirectoryStream<Path> jars = Files.newDirectoryStream(directory.toPath(),
+				path -> path.toString().endsWith(".jar"))) {
+			for (Path jar : jars) {
+				if (!copiedTargets.contains(jar) && manifest.contains(jar)) {
+					getLog().info("delete stale jar " + jar);
+					Files.delete(jar);
+					manifest.remove(jar);
+				}
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("error deleting stale jars in " + directory, e);
+		}
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public void execute() throws MojoExecutionException, MojoFailureException {
@@ -73,31 +292,7 @@ public class CollectJarsHandler extends AbstractEndVisitDependencyHandler {
 	protected void handleNonModJar(final DependencyNode dependencyNode, final Artifact artifact,
 			Map.Entry<File, JavaModuleDescriptor> entry) throws MojoExecutionException, MojoFailureException {
 
-		boolean isAutomatic = (entry == null || entry.getValue() == null) ? false : entry.getValue().isAutomatic();
-
-		if ( (classpathArtifacts != null) && (classpathArtifacts.contains(artifact))) {
-			isAutomatic = false;
-		}
-		
-		if (isAutomatic) {
-
-			// only named are automatic
-
-			try (JarFile jarFile = new JarFile(artifact.getFile())) {
-				Manifest manifest = jarFile.getManifest();
-				if (manifest == null) {
-					isAutomatic = false;
-				} else {
-					Attributes mainAttributes = manifest.getMainAttributes();
-					isAutomatic = mainAttributes.getValue("Automatic-Module-Name") != null;
-				}
-			} catch (IOException e) {
-
-				getLog().error("error reading manifest");
-				throw new MojoExecutionException("error reading manifest");
-			}
-
-		}
+		boolean isAutomatic = isAutomaticModule(artifact, entry);
 
 		Path path = artifact.getFile().toPath();
 
@@ -114,8 +309,8 @@ public class CollectJarsHandler extends AbstractEndVisitDependencyHandler {
 					}
 				}
 				if (target != null) {
-					this.getLog().debug("copy jar " + path + " to " + target.toString());
-					Files.copy(path, target, REPLACE_EXISTING);
+					this.getLog().debug("stage jar " + path + " to " + target.toString());
+					copyJar(path, target);
 				}
 			} catch (final IOException e) {
 				this.getLog().error("IOException", e);
@@ -135,8 +330,8 @@ public class CollectJarsHandler extends AbstractEndVisitDependencyHandler {
 					target = outputDirectoryModules.toPath().resolve(path.getFileName());
 				}
 				if (target != null) {
-					this.getLog().info("copy jar " + path + " to " + target.toString());
-					Files.copy(path, target, REPLACE_EXISTING);
+					this.getLog().info("stage jar " + path + " to " + target.toString());
+					copyJar(path, target);
 				}
 			} catch (final IOException e) {
 				this.getLog().error("IOException", e);
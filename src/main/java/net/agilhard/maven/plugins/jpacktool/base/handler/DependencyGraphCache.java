@@ -0,0 +1,238 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.DefaultProjectBuildingRequest;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectBuildingRequest;
+import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
+import org.apache.maven.shared.dependency.graph.DependencyGraphBuilderException;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.internal.DefaultDependencyNode;
+
+import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.ArtifactSelector;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.PerformanceTrace;
+
+/**
+ * Holds the resolved dependency graph of a project so that it is only built
+ * once per project execution.
+ *
+ * <p>
+ * The graph is stored as a context value of the {@link MavenProject} so all
+ * handlers of a goal and all later goals of the same project (e.g.
+ * jpacktool-prepare followed by jlink) visit the same graph.
+ * </p>
+ * <p>
+ * When the mojo has already resolved the dependencies of the project the
+ * graph is reconstructed from the dependency trails of
+ * {@link MavenProject#getArtifacts()} instead of resolving it again with the
+ * {@link DependencyGraphBuilder}.
+ * </p>
+ * <p>
+ * Artifacts excluded by the excludedArtifacts parameter are pruned together
+ * with their dependencies while the graph is built, so they are not visited by
+ * the handlers. They are still resolved: the artifacts of the project are
+ * resolved by maven before the mojo runs, and the {@link DependencyGraphBuilder}
+ * of maven-dependency-tree 3.0.1 applies the filter to the resolved graph only.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public final class DependencyGraphCache {
+
+	private static final String CONTEXT_KEY = DependencyGraphCache.class.getName() + ".graph";
+
+	private DependencyGraphCache() {
+		// private constructor for utility class
+	}
+
+	/**
+	 * Get the dependency graph of the project of the mojo, build it if it has not
+	 * been build before.
+	 *
+	 * @param mojo                   the mojo
+	 * @param dependencyGraphBuilder the graph builder used when the graph can not
+	 *                               be reconstructed from resolved artifacts
+	 * @return the root node of the dependency graph
+	 * @throws MojoExecutionException if the dependencies can not be resolved
+	 */
+	public static synchronized DependencyNode getDependencyGraph(AbstractToolMojo mojo,
+			DependencyGraphBuilder dependencyGraphBuilder) throws MojoExecutionException {
+
+		final MavenProject project = mojo.getProject();
+		final ArtifactSelector excluded = mojo.getExcludedArtifactSelector();
+
+		// goals with different excludedArtifacts must not share a graph
+		Object cached = project.getContextValue(CONTEXT_KEY);
+		if ((cached instanceof DependencyNode)
+				&& excluded.toString().equals(project.getContextValue(CONTEXT_KEY + ".excluded"))) {
+			mojo.getLog().debug("reusing dependency graph for project " + project.getArtifact());
+			return (DependencyNode) cached;
+		}
+
+		DependencyNode dependencyNode = null;
+
+		final PerformanceTrace.Stage stage = mojo.getPerformanceTrace().start("dependency graph");
+		try {
+			if (mojo.isReuseResolvedDependencies()) {
+				dependencyNode = fromResolvedArtifacts(project, excluded, mojo.getLog());
+			}
+
+			if (dependencyNode == null) {
+				// the filter prunes the resolved graph, it does not avoid resolving excluded artifacts
+				dependencyNode = buildDependencyGraph(mojo, dependencyGraphBuilder, project,
+						excluded.toExcludeFilter());
+			}
+		} finally {
+			stage.close();
+		}
+
+		project.setContextValue(CONTEXT_KEY, dependencyNode);
+		project.setContextValue(CONTEXT_KEY + ".excluded", excluded.toString());
+
+		return dependencyNode;
+	}
+
+	/**
+	 * Forget a cached dependency graph.
+	 *
+	 * @param project the maven project
+	 */
+	public static synchronized void clear(MavenProject project) {
+		project.setContextValue(CONTEXT_KEY, null);
+		project.setContextValue(CONTEXT_KEY + ".excluded", null);
+	}
+
+	/**
+	 * Resolve the dependency graph of a project by means of the
+	 * {@link DependencyGraphBuilder} without caching it.
+	 *
+	 * @param mojo                   the mojo
+	 * @param dependencyGraphBuilder the graph builder
+	 * @param project                the maven project
+	 * @param artifactFilter         the artifact filter or <code>null</code>
+	 * @return the root node of the dependency graph
+	 * @throws MojoExecutionException if the dependencies can not be resolved
+	 */
+	public static DependencyNode buildDependencyGraph(AbstractToolMojo mojo,
+			DependencyGraphBuilder dependencyGraphBuilder, MavenProject project, ArtifactFilter artifactFilter)
+			throws MojoExecutionException {
+
+		final ProjectBuildingRequest buildingRequest = new DefaultProjectBuildingRequest(
+				mojo.getSession().getProjectBuildingRequest());
+
+		buildingRequest.setProject(project);
+
+		mojo.getLog().debug("building dependency graph for project " + project.getArtifact());
+
+		try {
+			return dependencyGraphBuilder.buildDependencyGraph(buildingRequest, artifactFilter);
+		} catch (final DependencyGraphBuilderException e) {
+			throw new MojoExecutionException("Could not resolve dependencies for project: " + project, e);
+		}
+	}
+
+	/**
+	 * Reconstruct the dependency graph from the dependency trails of the already
+	 * resolved artifacts of the project.
+	 *
+	 * @param project  the maven project
+	 * @param excluded artifacts which are left out together with their
+	 *                 dependencies
+	 * @param log      the logger
+	 * @return the root node or <code>null</code> if the graph can not be
+	 *         reconstructed
+	 */
+	static DependencyNode fromResolvedArtifacts(MavenProject project, ArtifactSelector excluded, Log log) {
+
+		final Collection<Artifact> artifacts = project.getArtifacts();
+		final Artifact projectArtifact = project.getArtifact();
+
+		if ((artifacts == null) || artifacts.isEmpty() || (projectArtifact == null)) {
+			return null;
+		}
+
+		final List<Artifact> sorted = new ArrayList<>(artifacts);
+		for (Artifact artifact : sorted) {
+			List<String> trail = artifact.getDependencyTrail();
+			if ((trail == null) || (trail.size() < 2) || (artifact.getFile() == null)) {
+				log.debug("no usable dependency trail for " + artifact + " falling back to dependency graph builder");
+				return null;
+			}
+		}
+
+		// parents must exist before their children are created
+		sorted.sort(Comparator.comparingInt(a -> a.getDependencyTrail().size()));
+
+		final DefaultDependencyNode root = new DefaultDependencyNode(null, projectArtifact, null, null, null);
+		final Map<String, DefaultDependencyNode> nodes = new HashMap<>();
+		final Map<DependencyNode, List<DependencyNode>> children = new LinkedHashMap<>();
+
+		nodes.put(projectArtifact.getId(), root);
+		children.put(root, new ArrayList<>());
+
+		final Set<String> pruned = new HashSet<>();
+
+		for (Artifact artifact : sorted) {
+			List<String> trail = artifact.getDependencyTrail();
+			String parentId = trail.get(trail.size() - 2);
+			if (pruned.contains(parentId) || excluded.matches(artifact)) {
+				pruned.add(artifact.getId());
+				continue;
+			}
+			DefaultDependencyNode parent = nodes.get(parentId);
+			if (parent == null) {
+				log.debug("parent of " + artifact + " not resolved falling back to dependency graph builder");
+				return null;
+			}
+			DefaultDependencyNode node = new DefaultDependencyNode(parent, artifact, null, null, null);
+			nodes.put(artifact.getId(), node);
+			children.put(node, new ArrayList<>());
+			children.get(parent).add(node);
+		}
+
+		for (Artifact artifact : artifacts) {
+			DefaultDependencyNode node = nodes.get(artifact.getId());
+			if (node != null) {
+				node.setChildren(children.get(node));
+			}
+		}
+		root.setChildren(children.get(root));
+
+		log.debug("reusing resolved dependencies of project " + projectArtifact);
+
+		return root;
+	}
+}
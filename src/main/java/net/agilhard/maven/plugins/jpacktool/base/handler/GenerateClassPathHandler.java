@@ -26,9 +26,6 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
-import java.util.jar.Attributes;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -62,28 +59,7 @@ public class GenerateClassPathHandler extends AbstractVisitDependencyHandler {
 
 		getLog().debug("handleNonModJar:" + artifact.getFile());
 
-		boolean isAutomatic = (entry == null || entry.getValue() == null) ? false : entry.getValue().isAutomatic();
-		
-		if ( (classpathArtifacts != null) && (classpathArtifacts.contains(artifact))) {
-			isAutomatic = false;
-		}
-		
-		if (isAutomatic) {
-			try (JarFile jarFile = new JarFile(artifact.getFile())) {
-				Manifest manifest = jarFile.getManifest();
-				if (manifest == null) {
-					isAutomatic = false;
-				} else {
-					Attributes mainAttributes = manifest.getMainAttributes();
-					isAutomatic = mainAttributes.getValue("Automatic-Module-Name") != null;
-				}
-			} catch (IOException e) {
-
-				getLog().error("error reading manifest");
-				throw new MojoExecutionException("error reading manifest");
-			}
-
-		}
+		boolean isAutomatic = isAutomaticModule(artifact, entry);
 
 		Path path = artifact.getFile().toPath();
 
@@ -20,22 +20,24 @@ package net.agilhard.maven.plugins.jpacktool.base.handler;
  */
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.jar.Attributes;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -43,10 +45,12 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
 import org.apache.maven.shared.dependency.graph.DependencyNode;
 import org.codehaus.plexus.languages.java.jpms.JavaModuleDescriptor;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 
 import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
-import net.agilhard.maven.plugins.jpacktool.base.mojo.ExecuteCommand;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.CommandExecutor;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.PerformanceTrace;
 
 public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 
@@ -93,6 +97,84 @@ public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 
 	private boolean useListDeps;
 
+	private boolean jdepsInProcess;
+
+	private int jdepsThreads = 1;
+
+	private long jdepsMemoryPerProcess = 256L * 1024L * 1024L;
+
+	private List<JDepsTask> pendingJdeps = new ArrayList<>();
+
+	private JDepsResultCache jdepsResultCache;
+
+	private boolean jdepsBatch;
+
+	private String jdepsMultiRelease = "base";
+
+	private boolean classFileAnalyzer;
+
+	private PackageModuleIndex packageModuleIndex;
+
+	private ExecutorService prefetchExecutor;
+
+	private final Map<File, Future<PrefetchResult>> prefetched = new ConcurrentHashMap<>();
+
+	/**
+	 * The result of a jdeps call run while jars were still being staged and the
+	 * jars which had been staged when it was started.
+	 */
+	protected static class PrefetchResult {
+
+		private final Set<File> stagedJars;
+
+		private final List<String> lines;
+
+		public PrefetchResult(Set<File> stagedJars, List<String> lines) {
+			this.stagedJars = stagedJars;
+			this.lines = lines;
+		}
+
+		public Set<File> getStagedJars() {
+			return stagedJars;
+		}
+
+		public List<String> getLines() {
+			return lines;
+		}
+	}
+
+	/**
+	 * A jdeps call which has been deferred to be run in parallel with others.
+	 */
+	protected static class JDepsTask {
+
+		private final String nodeString;
+
+		private final File sourceFile;
+
+		private final boolean automaticDep;
+
+		private List<String> lines;
+
+		public JDepsTask(String nodeString, File sourceFile, boolean automaticDep) {
+			this.nodeString = nodeString;
+			this.sourceFile = sourceFile;
+			this.automaticDep = automaticDep;
+		}
+
+		public String getNodeString() {
+			return nodeString;
+		}
+
+		public File getSourceFile() {
+			return sourceFile;
+		}
+
+		public boolean isAutomaticDep() {
+			return automaticDep;
+		}
+	}
+
 	public GenerateJDepsHandler(AbstractToolMojo mojo, DependencyGraphBuilder dependencyGraphBuilder,
 			String jdepsExecutable, boolean generateAutomaticJdeps, boolean generateClassPathJdeps,
 			boolean generateModuleJdeps, List<File> classPathElements, List<String> jarsOnClassPath,
@@ -144,19 +226,54 @@ public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 		return sb.toString();
 	}
 
-	protected Commandline createJDepsCommandLine(File sourceFile) throws MojoFailureException {
-		final Commandline cmd = new Commandline();
+	/**
+	 * Create the arguments of a jdeps call for a single jar.
+	 *
+	 * @param sourceFile the jar to analyze
+	 * @return the list of arguments
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected List<String> createJDepsArgs(File sourceFile) throws MojoFailureException {
+		final List<String> args = new ArrayList<>();
 /*
 		if (this.classPathElements.size() > 0) {
-			cmd.createArg().setValue("--class-path");
+			args.add("--class-path");
 			String s = this.getPathSeparatedList(this.classPathElements);
-			cmd.createArg().setValue(s);
+			args.add(s);
 		}
 */
-		cmd.createArg().setValue("\"");
+		addModulePathArgs(args);
 
+		if (useListDeps) {
+			args.add("--list-deps");
+		} else {
+			args.add("--print-module-deps");
+		}
+
+		if (ignoreMissingDeps) {
+			args.add("--ignore-missing-deps");
+		}
+
+		try {
+			String s = sourceFile.getCanonicalPath();
+			args.add(s);
+		} catch (IOException e) {
+			throw new MojoFailureException("error getting path");
+		}
+
+		return args;
+	}
+
+	/**
+	 * Add the module path of the staging directories to the arguments of a jdeps
+	 * call.
+	 *
+	 * @param args the arguments
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected void addModulePathArgs(List<String> args) throws MojoFailureException {
 		if ((outputDirectoryAutomaticJars != null) || (outputDirectoryModules != null)) {
-			cmd.createArg().setValue("--module-path");
+			args.add("--module-path");
 			StringBuilder sb = new StringBuilder();
 			if (outputDirectoryModules != null) {
 				try {
@@ -175,57 +292,344 @@ public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 					throw new MojoFailureException("error getting path");
 				}
 			}
-			cmd.createArg().setValue(sb.toString());
+			args.add(sb.toString());
 
 		}
+	}
 
-		if (useListDeps) {
-			cmd.createArg().setValue("--list-deps");
+	protected Commandline createJDepsCommandLine(File sourceFile) throws MojoFailureException {
+		final Commandline cmd = new Commandline();
+
+		cmd.createArg().setValue("\"");
+
+		for (String arg : createJDepsArgs(sourceFile)) {
+			cmd.createArg().setValue(arg);
+		}
+
+		cmd.createArg().setValue("\"");
+
+		return cmd;
+	}
+
+	/**
+	 * Run jdeps in a forked process.
+	 *
+	 * @param sourceFile the jar to analyze
+	 * @return the output lines of jdeps
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected List<String> executeJdepsForked(File sourceFile) throws MojoExecutionException, MojoFailureException {
+
+		Commandline cmd = this.createJDepsCommandLine(sourceFile);
+
+		cmd.setExecutable(jdepsExecutable);
+
+		return executeCommand(cmd);
+	}
+
+	/**
+	 * Run jdeps inside of the running JVM by means of the ToolProvider API.
+	 *
+	 * @param sourceFile the jar to analyze
+	 * @return the output lines of jdeps
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected List<String> executeJdepsInProcess(File sourceFile) throws MojoExecutionException, MojoFailureException {
+
+		return executeInProcess(createJDepsArgs(sourceFile));
+	}
+
+	/**
+	 * Run jdeps inside of the running JVM and collect the non empty lines of its
+	 * output.
+	 *
+	 * @param args the arguments
+	 * @return the output lines
+	 * @throws MojoExecutionException on execution error
+	 */
+	protected List<String> executeInProcess(List<String> args) throws MojoExecutionException {
+		final List<String> lines = new ArrayList<>();
+		final CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
+
+		final CommandExecutor.Result result = mojo.getCommandExecutor().executeInProcess("jdeps", args, line -> {
+			if (line.length() > 0) {
+				lines.add(line);
+			}
+		}, err);
+
+		if (result.getExitCode() != 0) {
+			throw new MojoExecutionException("\nExit code: " + result.getExitCode() + " - " + err.getOutput()
+					+ "\nCommand line was: jdeps " + String.join(" ", args) + "\n\n");
+		}
+		return lines;
+	}
+
+	/**
+	 * Get the jdeps result for a single jar, either from a jar analyzed while
+	 * copying or by running jdeps now. A result of a jar analyzed while copying
+	 * is only used if no jar has been staged since and it does not report a
+	 * missing dependency.
+	 *
+	 * @param sourceFile the jar to analyze
+	 * @return the output lines of jdeps
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected List<String> executeJdeps(File sourceFile) throws MojoExecutionException, MojoFailureException {
+		Future<PrefetchResult> future = prefetched.get(sourceFile.getAbsoluteFile());
+		if (future != null) {
+			PrefetchResult result = getJdepsResult(future);
+			if (result.getStagedJars().equals(listStagedJars()) && !hasMissingDependencies(result.getLines())) {
+				return result.getLines();
+			}
+			getLog().debug("analyzing " + sourceFile.getName() + " again with all jars staged");
+		}
+		return runJdeps(sourceFile);
+	}
+
+	/**
+	 * Check if the output of jdeps reports an error or a dependency which has not
+	 * been found.
+	 *
+	 * @param lines the output lines of jdeps
+	 * @return <code>true</code> if a dependency is missing
+	 */
+	protected static boolean hasMissingDependencies(List<String> lines) {
+		for (String line : lines) {
+			String trimmed = line.trim();
+			if (trimmed.startsWith("Error:") || trimmed.contains("not found")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the jars and jmods in the staging directories.
+	 *
+	 * @return the files
+	 */
+	protected Set<File> listStagedJars() {
+		Set<File> jars = new TreeSet<>();
+		for (File dir : new File[] { outputDirectoryModules, outputDirectoryAutomaticJars,
+				outputDirectoryClasspathJars }) {
+			File[] files = dir == null ? null
+					: dir.listFiles((d, name) -> name.endsWith(".jar") || name.endsWith(".jmod"));
+			if (files != null) {
+				for (File file : files) {
+					jars.add(file.getAbsoluteFile());
+				}
+			}
+		}
+		return jars;
+	}
+
+	/**
+	 * Run jdeps or the class file scanner for a single jar unless the result is
+	 * cached.
+	 *
+	 * @param sourceFile the jar to analyze
+	 * @return the output lines of jdeps
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected List<String> runJdeps(File sourceFile) throws MojoExecutionException, MojoFailureException {
+		return runJdeps(sourceFile, true);
+	}
+
+	private List<String> runJdeps(File sourceFile, boolean useCache)
+			throws MojoExecutionException, MojoFailureException {
+		try (PerformanceTrace.Stage stage = mojo.getPerformanceTrace().start("jdeps", sourceFile.getName())) {
+			stage.addBytes(sourceFile.length());
+			stage.addFiles(1);
+			return runJdepsOrGetCached(sourceFile, useCache);
+		}
+	}
+
+	private List<String> runJdepsOrGetCached(File sourceFile, boolean useCache)
+			throws MojoExecutionException, MojoFailureException {
+		String key = null;
+		if (useCache && (jdepsResultCache != null)) {
+			key = jdepsResultCache.computeKey(sourceFile, getJdepsCacheOptions(), getJdepsCacheContext());
+			List<String> lines = jdepsResultCache.get(key);
+			if (lines != null) {
+				getLog().debug("using cached jdeps result for " + sourceFile.getName());
+				return lines;
+			}
+		}
+
+		List<String> lines;
+		if (classFileAnalyzer) {
+			lines = executeClassFileScan(sourceFile);
+		} else if (jdepsInProcess) {
+			lines = executeJdepsInProcess(sourceFile);
 		} else {
-			cmd.createArg().setValue("--print-module-deps");
+			lines = executeJdepsForked(sourceFile);
 		}
 
-		if (ignoreMissingDeps) {
-			cmd.createArg().setValue("--ignore-missing-deps");
+		if (key != null && lines.stream().noneMatch(line -> line.trim().startsWith("Error:"))) {
+			jdepsResultCache.put(key, lines);
 		}
 
+		return lines;
+	}
+
+	/**
+	 * Find the module dependencies of a jar by scanning its class files instead
+	 * of calling jdeps. The result is returned in the output format of jdeps
+	 * --print-module-deps, modules required transitively by another module of
+	 * the result are left out like jdeps does.
+	 *
+	 * @param sourceFile the jar to analyze
+	 * @return the output lines
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected List<String> executeClassFileScan(File sourceFile) throws MojoExecutionException {
+		PackageModuleIndex index = getPackageModuleIndex();
+
+		ClassFileScanner.JarPackages packages;
 		try {
-			String s = sourceFile.getCanonicalPath();
-			cmd.createArg().setValue(s);
+			packages = ClassFileScanner.scanJar(sourceFile);
 		} catch (IOException e) {
-			throw new MojoFailureException("error getting path");
+			throw new MojoExecutionException("error scanning " + sourceFile, e);
 		}
 
+		String ownModule = getModuleName(sourceFile);
 
-		cmd.createArg().setValue("\"");
+		Set<String> modules = new TreeSet<>();
+		List<String> missing = new ArrayList<>();
 
-		return cmd;
+		for (String pkg : packages.getReferencedPackages()) {
+			String module = index.getModule(pkg);
+			if (module != null) {
+				if (!module.equals(ownModule)) {
+					modules.add(module);
+				}
+			} else if (!index.isKnown(pkg)) {
+				missing.add(pkg);
+			}
+		}
+
+		List<String> lines = new ArrayList<>();
+		if (!missing.isEmpty() && !ignoreMissingDeps) {
+			lines.add("Error: missing dependencies of " + sourceFile.getName() + ": " + String.join(",", missing));
+		}
+		if (!modules.isEmpty()) {
+			lines.add(String.join(",", useListDeps ? modules : index.reduce(modules)));
+		}
+		return lines;
 	}
 
-	protected void generateJdeps(String nodeString, File sourceFile, boolean automaticDep)
-			throws MojoExecutionException, MojoFailureException {
+	/**
+	 * Get the index of the packages of the JDK of jdeps and of the jars in the
+	 * staging directories.
+	 *
+	 * @return the index
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected synchronized PackageModuleIndex getPackageModuleIndex() throws MojoExecutionException {
+		if (packageModuleIndex == null) {
+			File jdkHome;
+			try {
+				if (jdepsExecutable != null) {
+					jdkHome = new File(jdepsExecutable).getCanonicalFile().getParentFile().getParentFile();
+				} else {
+					jdkHome = new File(System.getProperty("java.home")).getCanonicalFile();
+				}
+			} catch (IOException e) {
+				throw new MojoExecutionException("error getting path", e);
+			}
 
-		/*
-		 * try { Files.move(targetFile.toPath(), sourceFile.toPath(), REPLACE_EXISTING);
-		 * } catch (IOException e) { throw new MojoFailureException("error moving file",
-		 * e); }
-		 */
-		Commandline cmd = this.createJDepsCommandLine(sourceFile);
+			PackageModuleIndex index = new PackageModuleIndex(jdkHome);
 
-		cmd.setExecutable(jdepsExecutable);
-		String name = sourceFile.getName();
-		int i = name.lastIndexOf('-');
-		name = name.substring(0, i) + ".jdeps";
+			for (File dir : new File[] { outputDirectoryModules, outputDirectoryAutomaticJars,
+					outputDirectoryClasspathJars }) {
+				File[] jars = dir == null ? null : dir.listFiles((d, name) -> name.endsWith(".jar"));
+				if (jars == null) {
+					continue;
+				}
+				for (File jar : jars) {
+					String moduleName = dir == outputDirectoryClasspathJars ? null
+							: getModuleName(jar);
+					try {
+						index.addJar(jar, moduleName);
+					} catch (IOException e) {
+						throw new MojoExecutionException("error reading " + jar, e);
+					}
+				}
+			}
+			packageModuleIndex = index;
+		}
+		return packageModuleIndex;
+	}
 
-		File file = new File(sourceFile.getParent(), name);
+	/**
+	 * Get the options a cached jdeps result depends on.
+	 *
+	 * @return the options
+	 */
+	protected List<String> getJdepsCacheOptions() {
+		List<String> options = new ArrayList<>();
+		options.add("useListDeps=" + useListDeps);
+		options.add("ignoreMissingDeps=" + ignoreMissingDeps);
+		if (classFileAnalyzer) {
+			options.add("classfile");
+		}
+		if (jdepsBatch) {
+			options.add("batch");
+			options.add("multiRelease=" + jdepsMultiRelease);
+		}
+		return options;
+	}
 
-		try (FileOutputStream fout = new FileOutputStream(file)) {
-			executeCommand(cmd, fout);
-		} catch (IOException ioe) {
-			getLog().error("error creating .jdeps file");
-		} catch (MojoExecutionException mee) {
-			throw mee;
+	/**
+	 * Get the directories of the module path a cached jdeps result depends on.
+	 * Only the jars and jmods in them are part of the cache key.
+	 *
+	 * @return the directories
+	 */
+	protected List<File> getJdepsCacheContext() {
+		List<File> context = new ArrayList<>();
+		if (outputDirectoryModules != null) {
+			context.add(outputDirectoryModules);
+		}
+		if (outputDirectoryAutomaticJars != null) {
+			context.add(outputDirectoryAutomaticJars);
 		}
+		if (jdepsBatch && (outputDirectoryClasspathJars != null)) {
+			context.add(outputDirectoryClasspathJars);
+		}
+		return context;
+	}
+
+	protected void generateJdeps(String nodeString, File sourceFile, boolean automaticDep)
+			throws MojoExecutionException, MojoFailureException {
+
+		if ((jdepsThreads > 1) || jdepsBatch) {
+			// fill with empty values now so the maps have the entries in graph order,
+			// the real values are merged in after all jdeps calls have finished
+			allModulesMap.put(nodeString, new ArrayList<>());
+			automaticModulesMap.put(nodeString, new ArrayList<>());
+			linkedModulesMap.put(nodeString, new ArrayList<>());
+			linkedSystemModulesMap.put(nodeString, new ArrayList<>());
+
+			pendingJdeps.add(new JDepsTask(nodeString, sourceFile, automaticDep));
+		} else {
+			handleJdepsOutput(nodeString, executeJdeps(sourceFile), automaticDep);
+		}
+	}
+
+	/**
+	 * Evaluate the output of a jdeps call and add the result to the maps and
+	 * lists of modules, warnings and errors.
+	 *
+	 * @param nodeString   the node string of the dependency
+	 * @param lines        the output lines of jdeps
+	 * @param automaticDep flag if the jar is an automatic module
+	 */
+	protected void handleJdepsOutput(String nodeString, List<String> lines, boolean automaticDep) {
 
 		List<String> deps = new ArrayList<>();
 		List<String> automaticDeps = new ArrayList<>();
@@ -239,91 +643,83 @@ public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 		linkedModulesMap.put(nodeString, linkedDeps);
 		linkedSystemModulesMap.put(nodeString, linkedSystemDeps);
 
-		try (FileReader fr = new FileReader(file); BufferedReader br = new BufferedReader(fr)) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				line = line.trim();
-				if (line.startsWith("Warning:")) {
-					if (!warnings.contains(line)) {
-						if (line.startsWith("Warning: split package:")) {
-							String e[] = line.split(" ");
-							if (e.length == 6) {
-								int i1=e[4].lastIndexOf(File.separatorChar);
-								if ( i1 == -1 ) {
-									i1=0;
-								}
-								String a1 = e[4].substring(i1);
-								int i2=e[5].lastIndexOf(File.separatorChar);
-								if ( i2 == -1 ) {
-									i2=0;
-								}
-								String a2 = e[5].substring(i2);
-								if (!a1.equals(a2)) {
-									warnings.add("e.length=" + e.length);
-									warnings.add("a1=" + a1);
-									warnings.add("a2=" + a2);
-									warnings.add(line);
-								}
-							} else {
+		for (String line : lines) {
+			line = line.trim();
+			if (line.startsWith("Warning:")) {
+				if (!warnings.contains(line)) {
+					if (line.startsWith("Warning: split package:")) {
+						String e[] = line.split(" ");
+						if (e.length == 6) {
+							int i1=e[4].lastIndexOf(File.separatorChar);
+							if ( i1 == -1 ) {
+								i1=0;
+							}
+							String a1 = e[4].substring(i1);
+							int i2=e[5].lastIndexOf(File.separatorChar);
+							if ( i2 == -1 ) {
+								i2=0;
+							}
+							String a2 = e[5].substring(i2);
+							if (!a1.equals(a2)) {
+								warnings.add("e.length=" + e.length);
+								warnings.add("a1=" + a1);
+								warnings.add("a2=" + a2);
 								warnings.add(line);
 							}
 						} else {
 							warnings.add(line);
 						}
-					}
-				} else if (line.startsWith("Error:")) {
-					if (!errors.contains(line)) {
-						errors.add(line);
-					}
-				} else if (useListDeps && line.contains(" ")) {
-					if (!line.contains("unamed module:")) {
+					} else {
 						warnings.add(line);
 					}
-				} else {
-					for (String dep : line.split(",")) {
+				}
+			} else if (line.startsWith("Error:")) {
+				if (!errors.contains(line)) {
+					errors.add(line);
+				}
+			} else if (useListDeps && line.contains(" ")) {
+				if (!line.contains("unamed module:")) {
+					warnings.add(line);
+				}
+			} else {
+				for (String dep : line.split(",")) {
 
-						// remove optional package name, if any
-						int ndx = dep.indexOf('/');
-						if (ndx > 0) {
-							dep = dep.substring(0, ndx);
-						}
+					// remove optional package name, if any
+					int ndx = dep.indexOf('/');
+					if (ndx > 0) {
+						dep = dep.substring(0, ndx);
+					}
 
-						if (!deps.contains(dep)) {
-							deps.add(dep);
+					if (!deps.contains(dep)) {
+						deps.add(dep);
+					}
+					if (!allModules.contains(dep)) {
+						allModules.add(dep);
+					}
+					if (systemModules.contains(dep)) {
+						if (!linkedSystemModules.contains(dep)) {
+							linkedSystemModules.add(dep);
 						}
-						if (!allModules.contains(dep)) {
-							allModules.add(dep);
+						if (!linkedSystemDeps.contains(dep)) {
+							linkedSystemDeps.add(dep);
 						}
-						if (systemModules.contains(dep)) {
-							if (!linkedSystemModules.contains(dep)) {
-								linkedSystemModules.add(dep);
-							}
-							if (!linkedSystemDeps.contains(dep)) {
-								linkedSystemDeps.add(dep);
+					} else {
+						if (automaticDep) {
+							if (!automaticDeps.contains(dep)) {
+								automaticDeps.add(dep);
 							}
 						} else {
-							if (automaticDep) {
-								if (!automaticDeps.contains(dep)) {
-									automaticDeps.add(dep);
-								}
-							} else {
-								if (!linkedModules.contains(dep)) {
-									linkedModules.add(dep);
-								}
-								if (!linkedDeps.contains(dep)) {
-									linkedDeps.add(dep);
-								}
+							if (!linkedModules.contains(dep)) {
+								linkedModules.add(dep);
+							}
+							if (!linkedDeps.contains(dep)) {
+								linkedDeps.add(dep);
 							}
 						}
-
 					}
+
 				}
 			}
-
-			// Files.move(sourceFile.toPath(), targetFile.toPath(), REPLACE_EXISTING);
-
-		} catch (IOException ioe) {
-			throw new MojoExecutionException("i/o error", ioe);
 		}
 
 		allModulesMap.put(nodeString, deps);
@@ -332,38 +728,403 @@ public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 		linkedSystemModulesMap.put(nodeString, linkedSystemDeps);
 	}
 
-	protected void handleNonModJar(final DependencyNode dependencyNode, final Artifact artifact,
-			Map.Entry<File, JavaModuleDescriptor> entry) throws MojoExecutionException, MojoFailureException {
+	@Override
+	protected void handleDependencyRoot(final DependencyNode dependencyNode)
+			throws MojoExecutionException, MojoFailureException {
+		pendingJdeps.clear();
+		packageModuleIndex = null;
+		super.handleDependencyRoot(dependencyNode);
+		executePendingJdeps();
+		if (jdepsResultCache != null) {
+			jdepsResultCache.evict();
+		}
+	}
 
-		getLog().debug("handleNonModJar:" + artifact.getFile());
+	/**
+	 * Get the number of jdeps calls which may run at the same time, the number of
+	 * threads is limited by the memory available for the forked jdeps processes
+	 * or the heap of the running JVM when jdeps runs in process.
+	 *
+	 * @param tasks the number of jdeps calls
+	 * @return the number of worker threads
+	 */
+	protected int getEffectiveJdepsThreads(int tasks) {
+		int threads = Math.min(jdepsThreads, tasks);
 
-		boolean isAutomatic = (entry == null || entry.getValue() == null) ? false : entry.getValue().isAutomatic();
+		long available;
+		if (jdepsInProcess || classFileAnalyzer) {
+			Runtime rt = Runtime.getRuntime();
+			available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		} else {
+			available = getFreePhysicalMemory();
+		}
 
-		if ((classpathArtifacts != null) && (classpathArtifacts.contains(artifact))) {
-			isAutomatic = false;
+		if ((available > 0) && (jdepsMemoryPerProcess > 0)) {
+			long byMemory = available / jdepsMemoryPerProcess;
+			if (byMemory < threads) {
+				getLog().debug("limiting jdeps threads to " + byMemory + " because of available memory");
+				threads = (int) byMemory;
+			}
 		}
 
-		String nodeString = dependencyNode.toNodeString();
+		return Math.max(1, threads);
+	}
 
-		if (!nodeStrings.contains(nodeString)) {
-			nodeStrings.add(nodeString);
+	/**
+	 * Get the free physical memory of the machine.
+	 *
+	 * @return the free physical memory in bytes or -1 if it is unknown
+	 */
+	protected static long getFreePhysicalMemory() {
+		Object os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+		try {
+			Class<?> clazz = Class.forName("com.sun.management.OperatingSystemMXBean");
+			if (clazz.isInstance(os)) {
+				return ((Number) clazz.getMethod("getFreePhysicalMemorySize").invoke(os)).longValue();
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// not available on this JVM
 		}
+		return -1;
+	}
 
-		if (isAutomatic) {
-			try (JarFile jarFile = new JarFile(artifact.getFile())) {
-				Manifest manifest = jarFile.getManifest();
-				if (manifest == null) {
-					isAutomatic = false;
-				} else {
-					Attributes mainAttributes = manifest.getMainAttributes();
-					isAutomatic = mainAttributes.getValue("Automatic-Module-Name") != null;
+	/**
+	 * Run the jdeps calls collected while visiting the dependency graph on a
+	 * bounded thread pool. The largest jars are started first, the results are
+	 * merged in graph order so the outcome does not depend on the scheduling.
+	 *
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected void executePendingJdeps() throws MojoExecutionException, MojoFailureException {
+		if (pendingJdeps.isEmpty()) {
+			return;
+		}
+
+		if (jdepsBatch) {
+			executeJdepsBatch();
+		} else {
+			executeJdepsParallel();
+		}
+
+		for (JDepsTask task : pendingJdeps) {
+			handleJdepsOutput(task.getNodeString(), task.lines, task.isAutomaticDep());
+		}
+		pendingJdeps.clear();
+	}
+
+	/**
+	 * Run the pending jdeps calls on a bounded thread pool.
+	 *
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected void executeJdepsParallel() throws MojoExecutionException, MojoFailureException {
+		int threads = getEffectiveJdepsThreads(pendingJdeps.size());
+		getLog().info("running " + pendingJdeps.size() + " jdeps calls with " + threads + " threads");
+
+		List<JDepsTask> bySize = new ArrayList<>(pendingJdeps);
+		bySize.sort((t1, t2) -> Long.compare(t2.getSourceFile().length(), t1.getSourceFile().length()));
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Map<JDepsTask, Future<List<String>>> futures = new HashMap<>();
+			for (JDepsTask task : bySize) {
+				futures.put(task, executor.submit(() -> executeJdeps(task.getSourceFile())));
+			}
+
+			for (JDepsTask task : pendingJdeps) {
+				task.lines = getJdepsResult(futures.get(task));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wait for the result of a jdeps call running in another thread.
+	 *
+	 * @param <T>    the type of the result
+	 * @param future the future of the call
+	 * @return the result of the call
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected <T> T getJdepsResult(Future<T> future)
+			throws MojoExecutionException, MojoFailureException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("interrupted while waiting for jdeps", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof MojoExecutionException) {
+				throw (MojoExecutionException) cause;
+			}
+			if (cause instanceof MojoFailureException) {
+				throw (MojoFailureException) cause;
+			}
+			throw new MojoExecutionException("error executing jdeps", cause);
+		}
+	}
+
+	/**
+	 * Start analyzing jars as soon as they have been copied to the staging
+	 * directories by {@link #prefetchJdeps(File)}.
+	 */
+	public void startPrefetch() {
+		if (prefetchExecutor == null) {
+			prefetchExecutor = Executors.newFixedThreadPool(getEffectiveJdepsThreads(jdepsThreads));
+		}
+	}
+
+	/**
+	 * Stop analyzing jars in the background and forget all results.
+	 */
+	public void stopPrefetch() {
+		if (prefetchExecutor != null) {
+			prefetchExecutor.shutdownNow();
+			prefetchExecutor = null;
+		}
+		prefetched.clear();
+	}
+
+	/**
+	 * Queue the analysis of a jar which has just been copied to a staging
+	 * directory. The result is picked up when the jar is visited later. The
+	 * jars visited before it have been staged, but a dependency which is resolved
+	 * below a later node of the dependency graph may still be missing. The jar is
+	 * therefore analyzed again if jars have been staged after the analysis has
+	 * been started, and the result is not stored in the jdeps result cache.
+	 *
+	 * @param stagedFile the copied jar
+	 */
+	public void prefetchJdeps(File stagedFile) {
+		if (prefetchExecutor == null) {
+			return;
+		}
+		File dir = stagedFile.getAbsoluteFile().getParentFile();
+		boolean analyze = (generateModuleJdeps && isDirectory(dir, outputDirectoryModules))
+				|| (generateAutomaticJdeps && isDirectory(dir, outputDirectoryAutomaticJars))
+				|| (generateClassPathJdeps && isDirectory(dir, outputDirectoryClasspathJars));
+		if (analyze) {
+			File file = stagedFile.getAbsoluteFile();
+			prefetched.computeIfAbsent(file, f -> prefetchExecutor.submit(() -> {
+				Set<File> stagedJars = listStagedJars();
+				return new PrefetchResult(stagedJars, runJdeps(f, false));
+			}));
+		}
+	}
+
+	private static boolean isDirectory(File dir, File outputDirectory) {
+		return (outputDirectory != null) && dir.equals(outputDirectory.getAbsoluteFile());
+	}
+
+	/**
+	 * Analyze all pending jars with a single jdeps call printing a summary per
+	 * archive. The summary is split back into the output format of a single jdeps
+	 * call for each node: it uses the same module path, dependencies on jars of
+	 * the batch are reported by their module names and the modules are reduced
+	 * like --print-module-deps does unless useListDeps is set.
+	 *
+	 * @throws MojoExecutionException on execution error
+	 * @throws MojoFailureException on i/o error
+	 */
+	protected void executeJdepsBatch() throws MojoExecutionException, MojoFailureException {
+
+		final List<JDepsTask> toAnalyze = new ArrayList<>();
+		final Map<JDepsTask, String> keys = new HashMap<>();
+
+		for (JDepsTask task : pendingJdeps) {
+			if (jdepsResultCache != null) {
+				String key = jdepsResultCache.computeKey(task.getSourceFile(), getJdepsCacheOptions(),
+						getJdepsCacheContext());
+				List<String> lines = jdepsResultCache.get(key);
+				if (lines != null) {
+					task.lines = lines;
+					continue;
 				}
+				keys.put(task, key);
+			}
+			toAnalyze.add(task);
+		}
+
+		if (toAnalyze.isEmpty()) {
+			return;
+		}
+
+		// jdeps names an archive by its file name or by its module name
+		final Map<String, List<JDepsTask>> byArchive = new LinkedHashMap<>();
+		final Map<String, String> moduleNames = new HashMap<>();
+		final List<String> args = new ArrayList<>();
+
+		addModulePathArgs(args);
+		args.add("-s");
+		if (ignoreMissingDeps) {
+			args.add("--ignore-missing-deps");
+		}
+		if (jdepsMultiRelease != null) {
+			args.add("--multi-release");
+			args.add(jdepsMultiRelease);
+		}
+
+		for (JDepsTask task : toAnalyze) {
+			File sourceFile = task.getSourceFile();
+			String path;
+			try {
+				path = sourceFile.getCanonicalPath();
 			} catch (IOException e) {
+				throw new MojoFailureException("error getting path");
+			}
+			if (!args.contains(path)) {
+				args.add(path);
+			}
+			byArchive.computeIfAbsent(sourceFile.getName(), k -> new ArrayList<>()).add(task);
+			String moduleName = getModuleName(sourceFile);
+			if (moduleName != null) {
+				moduleNames.put(sourceFile.getName(), moduleName);
+				if (!moduleName.equals(sourceFile.getName())) {
+					byArchive.computeIfAbsent(moduleName, k -> new ArrayList<>()).add(task);
+				}
+			}
+		}
 
-				getLog().error("error reading manifest");
-				throw new MojoExecutionException("error reading manifest");
+		getLog().info("running jdeps on " + toAnalyze.size() + " jars in batch mode");
+
+		final Map<JDepsTask, List<String>> messages = new HashMap<>();
+		final Map<JDepsTask, Set<String>> deps = new HashMap<>();
+
+		for (String line : executeJdepsBatchCommand(args)) {
+			line = line.trim();
+			if (line.startsWith("Warning:") || line.startsWith("Error:")) {
+				addMessage(messages, getTasksMentioned(line, byArchive, toAnalyze), line);
+				continue;
+			}
+			int ndx = line.indexOf(" -> ");
+			if (ndx < 0) {
+				continue;
 			}
+			String source = line.substring(0, ndx).trim();
+			String target = line.substring(ndx + 4).trim();
 
+			List<JDepsTask> tasks = byArchive.get(source);
+			if (tasks == null) {
+				continue;
+			}
+			if ("not found".equals(target)) {
+				if (!ignoreMissingDeps) {
+					addMessage(messages, tasks, "Error: missing dependencies of " + source);
+				}
+				continue;
+			}
+			if (target.endsWith(".jar")) {
+				// a jar of the batch, reported by its module name like a single jdeps call
+				// does, or a jar on the class path which is not a module dependency
+				target = moduleNames.get(new File(target).getName());
+				if (target == null) {
+					continue;
+				}
+			}
+			if (target.contains(" ")) {
+				addMessage(messages, tasks, "Warning: " + line);
+				continue;
+			}
+			for (JDepsTask task : tasks) {
+				if (!target.equals(moduleNames.get(task.getSourceFile().getName()))) {
+					deps.computeIfAbsent(task, k -> new TreeSet<>()).add(target);
+				}
+			}
+		}
+
+		PackageModuleIndex index = useListDeps ? null : getPackageModuleIndex();
+
+		for (JDepsTask task : toAnalyze) {
+			List<String> lines = new ArrayList<>();
+			List<String> list = messages.get(task);
+			if (list != null) {
+				lines.addAll(list);
+			}
+			Set<String> modules = deps.get(task);
+			if ((modules != null) && !modules.isEmpty()) {
+				lines.add(String.join(",", index == null ? modules : index.reduce(modules)));
+			}
+			String key = keys.get(task);
+			if ((key != null) && lines.stream().noneMatch(line -> line.startsWith("Error:"))) {
+				jdepsResultCache.put(key, lines);
+			}
+			task.lines = lines;
+		}
+	}
+
+	/**
+	 * Get the module name of a jar to analyze.
+	 *
+	 * @param sourceFile the jar
+	 * @return the module name or <code>null</code>
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected String getModuleName(File sourceFile) throws MojoExecutionException {
+		return ArtifactClassificationCache.classify(mojo, sourceFile).getModuleName();
+	}
+
+	/**
+	 * Get the tasks of the archives a warning or error of a batch jdeps call
+	 * refers to, or all tasks if it can not be assigned to an archive.
+	 */
+	private static Collection<JDepsTask> getTasksMentioned(String line, Map<String, List<JDepsTask>> byArchive,
+			List<JDepsTask> all) {
+		Set<JDepsTask> tasks = new LinkedHashSet<>();
+		for (JDepsTask task : all) {
+			String name = task.getSourceFile().getName();
+			if (line.contains(File.separator + name) || line.contains("/" + name) || line.contains(" " + name)) {
+				tasks.add(task);
+			}
+		}
+		return tasks.isEmpty() ? all : tasks;
+	}
+
+	private static void addMessage(Map<JDepsTask, List<String>> messages, Collection<JDepsTask> tasks,
+			String line) {
+		for (JDepsTask task : tasks) {
+			List<String> list = messages.computeIfAbsent(task, k -> new ArrayList<>());
+			if (!list.contains(line)) {
+				list.add(line);
+			}
+		}
+	}
+
+	/**
+	 * Execute jdeps with the given arguments in process or forked.
+	 *
+	 * @param args the arguments
+	 * @return the output lines
+	 * @throws MojoExecutionException on execution error
+	 */
+	protected List<String> executeJdepsBatchCommand(List<String> args) throws MojoExecutionException {
+		if (jdepsInProcess) {
+			return executeInProcess(args);
+		} else {
+			final Commandline cmd = new Commandline();
+			cmd.setExecutable(jdepsExecutable);
+			for (String arg : args) {
+				cmd.createArg().setValue(arg);
+			}
+			return executeCommand(cmd);
+		}
+	}
+
+	protected void handleNonModJar(final DependencyNode dependencyNode, final Artifact artifact,
+			Map.Entry<File, JavaModuleDescriptor> entry) throws MojoExecutionException, MojoFailureException {
+
+		getLog().debug("handleNonModJar:" + artifact.getFile());
+
+		boolean isAutomatic = isAutomaticModule(artifact, entry);
+
+		String nodeString = dependencyNode.toNodeString();
+
+		if (!nodeStrings.contains(nodeString)) {
+			nodeStrings.add(nodeString);
 		}
 
 		Path path = artifact.getFile().toPath();
@@ -446,8 +1207,29 @@ public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 		}
 	}
 	
-	protected void executeCommand(final Commandline cmd, OutputStream outputStream) throws MojoExecutionException {
-		ExecuteCommand.executeCommand(false, this.getLog(), cmd, outputStream);
+	/**
+	 * Execute a forked command and collect the non empty lines of its output while
+	 * it is running.
+	 *
+	 * @param cmd the command line
+	 * @return the output lines
+	 * @throws MojoExecutionException on execution error
+	 */
+	protected List<String> executeCommand(final Commandline cmd) throws MojoExecutionException {
+		final List<String> lines = new ArrayList<>();
+		final CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
+
+		final CommandExecutor.Result result = mojo.getCommandExecutor().execute(cmd, line -> {
+			if (line.length() > 0) {
+				lines.add(line);
+			}
+		}, err);
+
+		if (result.getExitCode() != 0) {
+			throw new MojoExecutionException("\nExit code: " + result.getExitCode() + " - " + err.getOutput()
+					+ "\nCommand line was: " + cmd + "\n\n");
+		}
+		return lines;
 	}
 
 	public List<File> getClassPathElements() {
@@ -498,6 +1280,108 @@ public class GenerateJDepsHandler extends AbstractEndVisitDependencyHandler {
 		return jarsOnClassPath;
 	}
 
+	public boolean isJdepsInProcess() {
+		return jdepsInProcess;
+	}
+
+	/**
+	 * Run jdeps inside of the running JVM instead of forking a process for each
+	 * jar.
+	 *
+	 * @param jdepsInProcess flag if jdeps is run in process
+	 */
+	public void setJdepsInProcess(boolean jdepsInProcess) {
+		this.jdepsInProcess = jdepsInProcess;
+	}
+
+	public int getJdepsThreads() {
+		return jdepsThreads;
+	}
+
+	/**
+	 * Set the maximum number of jdeps calls running in parallel, a value of 1
+	 * runs jdeps sequentially while visiting the dependency graph.
+	 *
+	 * @param jdepsThreads the number of threads
+	 */
+	public void setJdepsThreads(int jdepsThreads) {
+		this.jdepsThreads = jdepsThreads;
+	}
+
+	public long getJdepsMemoryPerProcess() {
+		return jdepsMemoryPerProcess;
+	}
+
+	/**
+	 * Set the memory in bytes reserved for each jdeps call when computing the
+	 * number of threads.
+	 *
+	 * @param jdepsMemoryPerProcess memory in bytes
+	 */
+	public void setJdepsMemoryPerProcess(long jdepsMemoryPerProcess) {
+		this.jdepsMemoryPerProcess = jdepsMemoryPerProcess;
+	}
+
+	public JDepsResultCache getJdepsResultCache() {
+		return jdepsResultCache;
+	}
+
+	/**
+	 * Set the cache of jdeps results.
+	 *
+	 * @param jdepsResultCache the cache or <code>null</code> to always call jdeps
+	 */
+	public void setJdepsResultCache(JDepsResultCache jdepsResultCache) {
+		this.jdepsResultCache = jdepsResultCache;
+	}
+
+	public boolean isJdepsBatch() {
+		return jdepsBatch;
+	}
+
+	/**
+	 * Analyze all jars with a single jdeps call instead of one call per jar.
+	 *
+	 * @param jdepsBatch flag if batch mode is used
+	 */
+	public void setJdepsBatch(boolean jdepsBatch) {
+		this.jdepsBatch = jdepsBatch;
+	}
+
+	public String getJdepsMultiRelease() {
+		return jdepsMultiRelease;
+	}
+
+	/**
+	 * Set the version used for multi release jars in batch mode.
+	 *
+	 * @param jdepsMultiRelease the version or <code>base</code>
+	 */
+	public void setJdepsMultiRelease(String jdepsMultiRelease) {
+		this.jdepsMultiRelease = jdepsMultiRelease;
+	}
+
+	public boolean isClassFileAnalyzer() {
+		return classFileAnalyzer;
+	}
+
+	/**
+	 * Scan the class files of the jars instead of calling jdeps.
+	 *
+	 * @param classFileAnalyzer flag if the class file scanner is used
+	 */
+	public void setClassFileAnalyzer(boolean classFileAnalyzer) {
+		this.classFileAnalyzer = classFileAnalyzer;
+	}
+
+	public void setClassPathElements(List<File> classPathElements) {
+		this.classPathElements = classPathElements;
+	}
+
+	public void setJarsOnClassPath(List<String> jarsOnClassPath) {
+		this.jarsOnClassPath = jarsOnClassPath;
+	}
+
 	public List<String> getWarnings() {
 		return warnings;
 	}
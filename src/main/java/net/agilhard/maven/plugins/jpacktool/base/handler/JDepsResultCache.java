@@ -0,0 +1,277 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
+
+/**
+ * Persistent cache of jdeps results.
+ *
+ * <p>
+ * The output of a jdeps call only depends on the bytes of the analyzed jar,
+ * the JDK release and the jdeps options including the module path. The cache
+ * stores the output lines under a SHA-256 key of these values so that a clean
+ * build does not have to call jdeps again for unchanged jars. The module path
+ * enters the key by the names and contents of its jars and jmods only, so the
+ * key neither changes with the modification times of freshly staged jars nor
+ * with other files written to the staging directories. The cache is bounded in
+ * size, least recently used entries are evicted first.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class JDepsResultCache {
+
+	private static final String SUFFIX = ".jdeps";
+
+	private final File directory;
+
+	private final long maxSize;
+
+	private final String jdkRelease;
+
+	private final Log log;
+
+	private final AtomicInteger hits = new AtomicInteger();
+
+	private final AtomicInteger misses = new AtomicInteger();
+
+	private final Map<File, String> checksums = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param directory       the cache directory
+	 * @param maxSize         maximum size of the cache in bytes
+	 * @param jdepsExecutable the jdeps executable, used to find the JDK release
+	 * @param log             the logger
+	 */
+	public JDepsResultCache(File directory, long maxSize, String jdepsExecutable, Log log) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.jdkRelease = getJdkRelease(jdepsExecutable);
+		this.log = log;
+	}
+
+	/**
+	 * Get the release of the JDK a jdeps executable belongs to.
+	 *
+	 * @param jdepsExecutable the jdeps executable
+	 * @return the content of the release file of the JDK or the path and
+	 *         modification time of jdeps if there is no release file
+	 */
+	protected static String getJdkRelease(String jdepsExecutable) {
+		if (jdepsExecutable == null) {
+			return System.getProperty("java.home") + "|" + System.getProperty("java.vm.version");
+		}
+		File jdeps = new File(jdepsExecutable);
+		File home = jdeps.getAbsoluteFile().getParentFile().getParentFile();
+		File releaseFile = new File(home, "release");
+		if (releaseFile.isFile()) {
+			Properties props = new Properties();
+			try (InputStream is = Files.newInputStream(releaseFile.toPath())) {
+				props.load(is);
+				return props.getProperty("IMPLEMENTOR", "") + "|" + props.getProperty("JAVA_VERSION", "") + "|"
+						+ props.getProperty("JAVA_RUNTIME_VERSION", "");
+			} catch (IOException e) {
+				// fall through
+			}
+		}
+		return jdeps.getAbsolutePath() + "|" + jdeps.lastModified();
+	}
+
+	/**
+	 * Compute the cache key of a jdeps call.
+	 *
+	 * @param sourceFile the analyzed jar
+	 * @param options    the jdeps options without the jar itself
+	 * @param context    the directories of the module path, the jars and
+	 *                   jmods in them are part of the key
+	 * @return the key
+	 * @throws MojoExecutionException on i/o error
+	 */
+	public String computeKey(File sourceFile, List<String> options, List<File> context)
+			throws MojoExecutionException {
+		MessageDigest md = newDigest();
+		md.update(jdkRelease.getBytes(StandardCharsets.UTF_8));
+		for (String option : options) {
+			md.update((byte) 0);
+			md.update(option.getBytes(StandardCharsets.UTF_8));
+		}
+		for (File dir : context) {
+			File[] files = dir.listFiles((d, name) -> name.endsWith(".jar") || name.endsWith(".jmod"));
+			if (files == null) {
+				continue;
+			}
+			Arrays.sort(files);
+			for (File file : files) {
+				md.update((byte) 0);
+				md.update((file.getName() + "|" + checksum(file)).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		md.update((byte) 0);
+		md.update(checksum(sourceFile).getBytes(StandardCharsets.UTF_8));
+		return AbstractToolMojo.bytesToHex(md.digest());
+	}
+
+	/**
+	 * Get the cached jdeps output.
+	 *
+	 * @param key the key
+	 * @return the output lines or <code>null</code> if there is no entry
+	 */
+	public List<String> get(String key) {
+		File file = new File(directory, key + SUFFIX);
+		if (file.isFile()) {
+			try {
+				List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+				// mark as recently used
+				file.setLastModified(System.currentTimeMillis());
+				hits.incrementAndGet();
+				return lines;
+			} catch (IOException e) {
+				log.debug("can not read jdeps cache entry " + file);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Store jdeps output.
+	 *
+	 * @param key   the key
+	 * @param lines the output lines of jdeps
+	 */
+	public void put(String key, List<String> lines) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			log.warn("jdeps cache directory can not be created:" + directory);
+			return;
+		}
+		File file = new File(directory, key + SUFFIX);
+		try {
+			File tmp = File.createTempFile(key, ".tmp", directory);
+			Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.debug("can not write jdeps cache entry " + file);
+		}
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache is smaller than
+	 * its maximum size.
+	 */
+	public synchronized void evict() {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if (files == null) {
+			return;
+		}
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+		if (size <= maxSize) {
+			return;
+		}
+		List<File> entries = new ArrayList<>(Arrays.asList(files));
+		entries.sort(Comparator.comparingLong(File::lastModified));
+		for (File file : entries) {
+			if (size <= maxSize) {
+				break;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				size -= length;
+			}
+		}
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get the SHA-256 checksum of a file. The checksum is computed once per
+	 * file, length and modification time during the lifetime of the cache.
+	 */
+	private String checksum(File file) throws MojoExecutionException {
+		File key = file.getAbsoluteFile();
+		String stamp = file.length() + "|" + file.lastModified() + "|";
+		String value = checksums.get(key);
+		if ((value == null) || !value.startsWith(stamp)) {
+			value = stamp + sha256(file);
+			checksums.put(key, value);
+		}
+		return value.substring(stamp.length());
+	}
+
+	private static MessageDigest newDigest() throws MojoExecutionException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new MojoExecutionException("SHA-256 algorithm not found", e);
+		}
+	}
+
+	private static String sha256(File file) throws MojoExecutionException {
+		MessageDigest md = newDigest();
+		byte[] buffer = new byte[8192];
+		try (InputStream is = Files.newInputStream(file.toPath());
+				DigestInputStream dis = new DigestInputStream(is, md)) {
+			while (dis.read(buffer) > -1) {
+				//
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("I/O Error", e);
+		}
+		return AbstractToolMojo.bytesToHex(md.digest());
+	}
+}
@@ -0,0 +1,290 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderNotFoundException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Maps package names to the modules containing them.
+ *
+ * <p>
+ * The index of a JDK is read from the /packages directory of its jrt file
+ * system and kept for the whole build. Packages of the jars of the project
+ * are added to a copy of the JDK index. The index also knows the modules each
+ * module requires transitively to reduce a list of module dependencies the way
+ * jdeps --print-module-deps does.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class PackageModuleIndex {
+
+	private static final Map<String, Map<String, String>> JDK_INDEXES = new ConcurrentHashMap<>();
+
+	private static final Map<String, Map<String, Set<String>>> JDK_TRANSITIVE_REQUIRES = new ConcurrentHashMap<>();
+
+	private final Map<String, String> systemPackages;
+
+	private final Map<String, Set<String>> transitiveRequires = new HashMap<>();
+
+	private final Map<String, String> modulePackages = new HashMap<>();
+
+	private final Set<String> classPathPackages = new HashSet<>();
+
+	/**
+	 * Create an index for a JDK.
+	 *
+	 * @param jdkHome the home directory of the JDK
+	 * @throws MojoExecutionException if the packages of the JDK can not be read
+	 */
+	public PackageModuleIndex(File jdkHome) throws MojoExecutionException {
+		this.systemPackages = getJdkIndex(jdkHome);
+		this.transitiveRequires.putAll(getJdkTransitiveRequires(jdkHome));
+	}
+
+	/**
+	 * Get the module containing a package.
+	 *
+	 * @param pkg the package name
+	 * @return the module name or <code>null</code> if the package is unknown or
+	 *         on the class path
+	 */
+	public String getModule(String pkg) {
+		String module = systemPackages.get(pkg);
+		if (module == null) {
+			module = modulePackages.get(pkg);
+		}
+		return module;
+	}
+
+	/**
+	 * Check if a package is provided by the JDK.
+	 *
+	 * @param pkg the package name
+	 * @return <code>true</code> for packages of system modules
+	 */
+	public boolean isSystemPackage(String pkg) {
+		return systemPackages.containsKey(pkg);
+	}
+
+	/**
+	 * Check if a package can be found at all.
+	 *
+	 * @param pkg the package name
+	 * @return <code>true</code> if the package is contained in the JDK or in a
+	 *         jar of the project
+	 */
+	public boolean isKnown(String pkg) {
+		return systemPackages.containsKey(pkg) || modulePackages.containsKey(pkg) || classPathPackages.contains(pkg);
+	}
+
+	/**
+	 * Add the packages of a jar of the project.
+	 *
+	 * @param jar        the jar file
+	 * @param moduleName the module name or <code>null</code> for a jar on the
+	 *                   class path
+	 * @throws IOException on i/o error
+	 */
+	public void addJar(File jar, String moduleName) throws IOException {
+		for (String pkg : ClassFileScanner.getDefinedPackages(jar)) {
+			if (moduleName == null) {
+				classPathPackages.add(pkg);
+			} else {
+				modulePackages.putIfAbsent(pkg, moduleName);
+			}
+		}
+		if (moduleName != null) {
+			try (JarFile jarFile = new JarFile(jar)) {
+				ZipEntry entry = jarFile.getEntry("module-info.class");
+				if (entry != null) {
+					try (InputStream is = jarFile.getInputStream(entry)) {
+						transitiveRequires.putIfAbsent(moduleName, readTransitiveRequires(is));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reduce a list of module dependencies to the modules which are not
+	 * required transitively by another module of the list, like jdeps
+	 * --print-module-deps does.
+	 *
+	 * @param modules the module names
+	 * @return the reduced module names in their original order
+	 */
+	public List<String> reduce(Collection<String> modules) {
+		Set<String> implied = new HashSet<>();
+		for (String module : modules) {
+			Deque<String> todo = new ArrayDeque<>(getTransitiveRequires(module));
+			while (!todo.isEmpty()) {
+				String required = todo.pop();
+				if (!required.equals(module) && implied.add(required)) {
+					todo.addAll(getTransitiveRequires(required));
+				}
+			}
+		}
+		List<String> reduced = new ArrayList<>();
+		for (String module : modules) {
+			if (!implied.contains(module) && !reduced.contains(module)) {
+				reduced.add(module);
+			}
+		}
+		return reduced;
+	}
+
+	private Set<String> getTransitiveRequires(String module) {
+		Set<String> requires = transitiveRequires.get(module);
+		return requires == null ? Collections.emptySet() : requires;
+	}
+
+	private static String getKey(File jdkHome) throws MojoExecutionException {
+		try {
+			return jdkHome.getCanonicalPath();
+		} catch (IOException e) {
+			throw new MojoExecutionException("error getting path", e);
+		}
+	}
+
+	private static Map<String, Set<String>> getJdkTransitiveRequires(File jdkHome) throws MojoExecutionException {
+		String key = getKey(jdkHome);
+		Map<String, Set<String>> requires = JDK_TRANSITIVE_REQUIRES.get(key);
+		if (requires == null) {
+			requires = readJdkTransitiveRequires(jdkHome);
+			JDK_TRANSITIVE_REQUIRES.put(key, requires);
+		}
+		return requires;
+	}
+
+	private static Map<String, Set<String>> readJdkTransitiveRequires(File jdkHome) throws MojoExecutionException {
+		Map<String, Set<String>> requires = new HashMap<>();
+		try (FileSystem fs = newJrtFileSystem(jdkHome)) {
+			try (DirectoryStream<Path> modules = Files.newDirectoryStream(fs.getPath("/modules"))) {
+				for (Path module : modules) {
+					Path moduleInfo = module.resolve("module-info.class");
+					if (Files.isRegularFile(moduleInfo)) {
+						try (InputStream is = Files.newInputStream(moduleInfo)) {
+							requires.put(module.getFileName().toString(), readTransitiveRequires(is));
+						}
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new MojoExecutionException("error reading modules of JDK " + jdkHome, e);
+		}
+		return Collections.unmodifiableMap(requires);
+	}
+
+	/**
+	 * Read the names of the modules required transitively by a module
+	 * descriptor. <code>java.lang.module.ModuleDescriptor</code> is used by
+	 * reflection because it is not available on Java 8, nothing is reduced there.
+	 */
+	private static Set<String> readTransitiveRequires(InputStream is) {
+		Set<String> requires = new HashSet<>();
+		try {
+			Class<?> descriptorClass = Class.forName("java.lang.module.ModuleDescriptor");
+			Object descriptor = descriptorClass.getMethod("read", InputStream.class).invoke(null, is);
+			Class<?> requiresClass = Class.forName("java.lang.module.ModuleDescriptor$Requires");
+			Method name = requiresClass.getMethod("name");
+			Method modifiers = requiresClass.getMethod("modifiers");
+			for (Object r : (Collection<?>) descriptorClass.getMethod("requires").invoke(descriptor)) {
+				for (Object modifier : (Collection<?>) modifiers.invoke(r)) {
+					if ("TRANSITIVE".equals(modifier.toString())) {
+						requires.add((String) name.invoke(r));
+					}
+				}
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// not running on Java 9 or later
+		}
+		return requires;
+	}
+
+	private static Map<String, String> getJdkIndex(File jdkHome) throws MojoExecutionException {
+		String key = getKey(jdkHome);
+		Map<String, String> index = JDK_INDEXES.get(key);
+		if (index == null) {
+			index = readJdkIndex(jdkHome);
+			JDK_INDEXES.put(key, index);
+		}
+		return index;
+	}
+
+	private static Map<String, String> readJdkIndex(File jdkHome) throws MojoExecutionException {
+		Map<String, String> index = new HashMap<>();
+		try (FileSystem fs = newJrtFileSystem(jdkHome)) {
+			Path packages = fs.getPath("/packages");
+			try (DirectoryStream<Path> pkgs = Files.newDirectoryStream(packages)) {
+				for (Path pkg : pkgs) {
+					try (DirectoryStream<Path> modules = Files.newDirectoryStream(pkg)) {
+						for (Path module : modules) {
+							index.putIfAbsent(pkg.getFileName().toString(), module.getFileName().toString());
+						}
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new MojoExecutionException("error reading packages of JDK " + jdkHome, e);
+		}
+		return Collections.unmodifiableMap(index);
+	}
+
+	private static FileSystem newJrtFileSystem(File jdkHome) throws IOException {
+		URI uri = URI.create("jrt:/");
+		Map<String, String> env = Collections.singletonMap("java.home", jdkHome.getAbsolutePath());
+		try {
+			return FileSystems.newFileSystem(uri, env);
+		} catch (ProviderNotFoundException e) {
+			// running on Java 8, use the jrt file system provider of the JDK
+			File jrtFs = new File(jdkHome, "lib/jrt-fs.jar");
+			URLClassLoader loader = new URLClassLoader(new URL[] { jrtFs.toURI().toURL() });
+			return FileSystems.newFileSystem(uri, Collections.emptyMap(), loader);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
+
+/**
+ * Remembers size and modification time of staged jars and of their sources so
+ * jars which have not changed since the previous build are not staged again.
+ *
+ * <p>
+ * If only the modification time of a source has changed, e.g. because a
+ * snapshot has been downloaded again, the checksums of source and staged jar
+ * are compared.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class StagingManifest {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Manifest entry of a single staged jar.
+	 */
+	static class Entry {
+
+		final String source;
+
+		final long size;
+
+		final long modified;
+
+		final long targetSize;
+
+		final long targetModified;
+
+		final String sha256;
+
+		Entry(String source, long size, long modified, long targetSize, long targetModified, String sha256) {
+			this.source = source;
+			this.size = size;
+			this.modified = modified;
+			this.targetSize = targetSize;
+			this.targetModified = targetModified;
+			this.sha256 = sha256;
+		}
+
+		static Entry parse(String value) {
+			String[] fields = value.split(",", 6);
+			if (fields.length != 6) {
+				return null;
+			}
+			try {
+				return new Entry(fields[5], Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4].isEmpty() ? null : fields[4]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		String format() {
+			return size + "," + modified + "," + targetSize + "," + targetModified + ","
+					+ (sha256 == null ? "" : sha256) + "," + source;
+		}
+	}
+
+	private final File file;
+
+	private final Path baseDirectory;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a manifest.
+	 *
+	 * @param file          the file the manifest is stored in
+	 * @param baseDirectory staged jars are recorded relative to this directory
+	 */
+	public StagingManifest(File file, File baseDirectory) {
+		this.file = file;
+		this.baseDirectory = baseDirectory.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Load the manifest of the previous build. A missing or unreadable manifest
+	 * results in an empty manifest.
+	 */
+	public void load() {
+		entries.clear();
+		if (!file.isFile()) {
+			return;
+		}
+		Properties props = new Properties();
+		try (InputStream is = Files.newInputStream(file.toPath())) {
+			props.load(is);
+		} catch (IOException | IllegalArgumentException e) {
+			return;
+		}
+		for (String key : props.stringPropertyNames()) {
+			Entry entry = Entry.parse(props.getProperty(key));
+			if (entry != null) {
+				entries.put(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Store the manifest.
+	 *
+	 * @throws IOException on i/o error
+	 */
+	public void save() throws IOException {
+		Properties props = new Properties();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			props.setProperty(e.getKey(), e.getValue().format());
+		}
+		File dir = file.getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("directory can not be created:" + dir);
+		}
+		try (OutputStream os = Files.newOutputStream(file.toPath())) {
+			props.store(os, "jpacktool staged jars");
+		}
+	}
+
+	/**
+	 * Check if a staged jar is up to date.
+	 *
+	 * @param source the jar in the repository
+	 * @param target the staged jar
+	 * @return <code>true</code> if the jar does not need to be staged again
+	 * @throws IOException on i/o error
+	 */
+	public boolean isUpToDate(Path source, Path target) throws IOException {
+		String key = getKey(target);
+		Entry entry = entries.get(key);
+		if ((entry == null) || !entry.source.equals(source.toAbsolutePath().toString())
+				|| !Files.isRegularFile(target)) {
+			return false;
+		}
+
+		BasicFileAttributes targetAttrs = Files.readAttributes(target, BasicFileAttributes.class);
+		if ((targetAttrs.size() != entry.targetSize)
+				|| (targetAttrs.lastModifiedTime().toMillis() != entry.targetModified)) {
+			return false;
+		}
+
+		BasicFileAttributes sourceAttrs = Files.readAttributes(source, BasicFileAttributes.class);
+		if (sourceAttrs.size() != entry.size) {
+			return false;
+		}
+		if (sourceAttrs.lastModifiedTime().toMillis() == entry.modified) {
+			return true;
+		}
+
+		// same size but touched, compare the content
+		String targetSha = (entry.sha256 != null) ? entry.sha256 : sha256(target);
+		String sourceSha = sha256(source);
+		if (!sourceSha.equals(targetSha)) {
+			return false;
+		}
+		entries.put(key, new Entry(entry.source, sourceAttrs.size(), sourceAttrs.lastModifiedTime().toMillis(),
+				entry.targetSize, entry.targetModified, sourceSha));
+		return true;
+	}
+
+	/**
+	 * Record a jar which has just been staged.
+	 *
+	 * @param source the jar in the repository
+	 * @param target the staged jar
+	 * @throws IOException on i/o error
+	 */
+	public void update(Path source, Path target) throws IOException {
+		BasicFileAttributes sourceAttrs = Files.readAttributes(source, BasicFileAttributes.class);
+		BasicFileAttributes targetAttrs = Files.readAttributes(target, BasicFileAttributes.class);
+		entries.put(getKey(target),
+				new Entry(source.toAbsolutePath().toString(), sourceAttrs.size(),
+						sourceAttrs.lastModifiedTime().toMillis(), targetAttrs.size(),
+						targetAttrs.lastModifiedTime().toMillis(), null));
+	}
+
+	/**
+	 * Check if a jar has been staged by a previous build.
+	 *
+	 * @param target the staged jar
+	 * @return <code>true</code> if the manifest contains the jar
+	 */
+	public boolean contains(Path target) {
+		return entries.containsKey(getKey(target));
+	}
+
+	/**
+	 * Forget a staged jar.
+	 *
+	 * @param target the staged jar
+	 */
+	public void remove(Path target) {
+		entries.remove(getKey(target));
+	}
+
+	private String getKey(Path target) {
+		Path path = target.toAbsolutePath().normalize();
+		if (path.startsWith(baseDirectory)) {
+			path = baseDirectory.relativize(path);
+		}
+		return path.toString().replace(File.separatorChar, '/');
+	}
+
+	static String sha256(Path path) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not available", e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return AbstractToolMojo.bytesToHex(digest.digest());
+	}
+}
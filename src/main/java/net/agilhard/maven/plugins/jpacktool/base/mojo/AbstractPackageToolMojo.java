@@ -22,6 +22,7 @@ package net.agilhard.maven.plugins.jpacktool.base.mojo;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -29,13 +30,18 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.apache.commons.lang3.SystemUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -45,8 +51,6 @@ import org.apache.maven.project.MavenProject;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
 import org.apache.maven.shared.filtering.MavenFileFilter;
 import org.apache.maven.shared.filtering.MavenResourcesFiltering;
-import org.apache.maven.toolchain.Toolchain;
-import org.apache.maven.toolchain.java.DefaultJavaToolChain;
 import org.codehaus.plexus.archiver.zip.ZipArchiver;
 import org.codehaus.plexus.context.Context;
 import org.codehaus.plexus.context.ContextException;
@@ -54,8 +58,12 @@ import org.codehaus.plexus.languages.java.jpms.JavaModuleDescriptor;
 import org.codehaus.plexus.languages.java.jpms.ResolvePathsRequest;
 import org.codehaus.plexus.languages.java.jpms.ResolvePathsResult;
 import org.codehaus.plexus.personality.plexus.lifecycle.phase.Contextualizable;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.Commandline;
 import org.sonatype.plexus.build.incremental.BuildContext;
 
+import net.agilhard.maven.plugins.jpacktool.base.handler.ArtifactClassification;
+import net.agilhard.maven.plugins.jpacktool.base.handler.ArtifactClassificationCache;
 import net.agilhard.maven.plugins.jpacktool.base.handler.CollectArtifactsToLinkHandler;
 
 /**
@@ -189,6 +197,64 @@ public abstract class AbstractPackageToolMojo extends AbstractTemplateToolMojo i
 	 */
 	@Parameter(defaultValue = "false")
 	protected boolean jPacktoolMoveRealModules;
+
+	/**
+	 * Only log which jars from the jpacktool-prepare goal would be put where
+	 * into the image instead of putting them there.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean layoutDryRun;
+
+	/**
+	 * Link images consisting of JDK modules only once per set of modules, jlink
+	 * options and JDK into a cache shared by all projects. The jlink goal copies
+	 * the cached runtime into the image, the jpackager goal uses it as
+	 * <code>--runtime-image</code>.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean runtimeCache;
+
+	/**
+	 * Directory of the runtime cache.
+	 */
+	@Parameter(defaultValue = "${user.home}/.m2/jpacktool-cache/runtimes")
+	protected File runtimeCacheDirectory;
+
+	/**
+	 * Maximum size of the runtime cache in megabytes. The least recently used
+	 * runtimes are removed when the cache grows beyond this size.
+	 */
+	@Parameter(defaultValue = "2048")
+	protected long runtimeCacheMaxSize;
+
+	/**
+	 * Additionally write the image as a local OCI image layout directory
+	 * <code>${finalName}-oci</code> with separate layers for the runtime, the
+	 * dependency jars and the application. No registry is accessed. The runtime
+	 * needs a C library, so the image is meant to be put on top of a base image
+	 * by the tool which pushes it.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean ociImage;
+
+	/**
+	 * Also write the OCI image layout as a single <code>tar</code> file and
+	 * attach it to the project.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean ociImageTarball;
+
+	/**
+	 * Reference name of the OCI image.
+	 */
+	@Parameter(defaultValue = "${project.version}")
+	protected String ociImageTag;
+
+	/**
+	 * Directory the image is put into in the OCI image.
+	 */
+	@Parameter(defaultValue = "/opt/${project.artifactId}")
+	protected String ociImageDirectory;
 	
 	/**
 	 * <p>
@@ -323,6 +389,326 @@ public abstract class AbstractPackageToolMojo extends AbstractTemplateToolMojo i
 		return target;
 	}
 
+	/**
+	 * Plan where the jars from the jpacktool-prepare goal are put into the
+	 * image. Nothing is changed on disk.
+	 *
+	 * @param dir           the image or input directory
+	 * @param appFolderName the name of the application folder or
+	 *                      <code>null</code>
+	 * @return the plan
+	 * @throws IOException if a staging directory can not be read
+	 */
+	protected ImageLayout planJPacktoolLayout(File dir, String appFolderName) throws IOException {
+		Path appDir = dir.toPath();
+		if ((appFolderName != null) && (!"".equals(appFolderName))) {
+			appDir = appDir.resolve(appFolderName);
+		}
+		ImageLayout layout = new ImageLayout();
+		if (this.jPacktoolMoveClassPathJars) {
+			layout.addJars(outputDirectoryClasspathJars, appDir.resolve(classPathFolderName));
+		}
+		if (this.jPacktoolMoveAutomaticModules) {
+			layout.addJars(outputDirectoryAutomaticJars, appDir.resolve(automaticModulesFolderName));
+		}
+		if (this.jPacktoolMoveRealModules) {
+			layout.addJars(outputDirectoryModules, appDir.resolve(modulesFolderName));
+		}
+		return layout;
+	}
+
+	/**
+	 * Put the jars from the jpacktool-prepare goal into the image according to
+	 * {@link #planJPacktoolLayout(File, String)}, or only log the plan if
+	 * layoutDryRun is set.
+	 *
+	 * @param dir           the image or input directory
+	 * @param appFolderName the name of the application folder or
+	 *                      <code>null</code>
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected void layoutJPacktoolJars(File dir, String appFolderName) throws MojoExecutionException {
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("layout jars")) {
+			ImageLayout layout = planJPacktoolLayout(dir, appFolderName);
+			if (this.layoutDryRun) {
+				layout.log(this.getLog(), "[dry run] ");
+				return;
+			}
+			if (this.getLog().isDebugEnabled()) {
+				layout.log(this.getLog(), "layout ");
+			}
+			layout.execute(this.getFileStager(), Runtime.getRuntime().availableProcessors());
+			stage.addBytes(layout.getCopiedBytes());
+			stage.addFiles(layout.size());
+		} catch (IOException e) {
+			throw new MojoExecutionException("error putting jars into " + dir + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Check if the modules to add can be linked into a base runtime from the
+	 * runtime cache, i.e. if the runtime cache is enabled and all modules to add
+	 * are JDK modules.
+	 *
+	 * @param jmodsFolder  the jmods directory of the JDK
+	 * @param bindServices <code>true</code> if service providers are bound, in
+	 *                     which case no other module path entries may exist
+	 * @return <code>true</code> if {@link #getBaseRuntime(File, List)} can be
+	 *         used
+	 * @throws MojoExecutionException if the system modules can not be determined
+	 */
+	protected boolean canUseBaseRuntime(final File jmodsFolder, final boolean bindServices)
+			throws MojoExecutionException {
+		if (!this.runtimeCache || (this.runtimeCacheDirectory == null) || this.modulesToAdd.isEmpty()) {
+			return false;
+		}
+		if (!this.getSystemModules().containsAll(this.modulesToAdd)) {
+			return false;
+		}
+		if (bindServices) {
+			for (final String path : this.pathsOfModules) {
+				if (!new File(path).equals(jmodsFolder) && !isSameFile(new File(path), jmodsFolder)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean isSameFile(final File a, final File b) {
+		try {
+			return a.getCanonicalFile().equals(b.getCanonicalFile());
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get a runtime consisting of the modules to add from the runtime cache,
+	 * linking it if it is not cached yet. The runtime is keyed by the modules,
+	 * the limit modules, the jlink options and the <code>release</code> file of
+	 * the JDK.
+	 *
+	 * @param jmodsFolder   the jmods directory of the JDK
+	 * @param jlinkOptions  further jlink options
+	 * @return the runtime directory
+	 * @throws MojoExecutionException on i/o error or if jlink fails
+	 * @throws MojoFailureException   if jlink can not be found
+	 */
+	protected File getBaseRuntime(final File jmodsFolder, final List<String> jlinkOptions)
+			throws MojoExecutionException, MojoFailureException {
+		final List<String> modules = new ArrayList<>(this.modulesToAdd);
+		Collections.sort(modules);
+		final RuntimeCache cache = new RuntimeCache(this.runtimeCacheDirectory,
+				this.runtimeCacheMaxSize * 1024L * 1024L, this.getLog());
+
+		final PerformanceTrace.Stage stage = this.getPerformanceTrace().start("base runtime");
+		try {
+			final String jlinkExec = this.getToolExecutable("jlink");
+			final LinkFingerprint fingerprint = new LinkFingerprint(null);
+			fingerprint.add("modules", this.getCommaSeparatedList(modules));
+			if (this.hasLimitModules()) {
+				final List<String> limit = new ArrayList<>(this.limitModules);
+				Collections.sort(limit);
+				fingerprint.add("limitModules", this.getCommaSeparatedList(limit));
+			}
+			fingerprint.add("options", String.join(" ", jlinkOptions));
+			fingerprint.add("jmods", jmodsFolder.getCanonicalPath());
+			fingerprint.addFile(new File(new File(jlinkExec).getParentFile().getParentFile(), "release"));
+			fingerprint.addFile(new File(jmodsFolder.getParentFile(), "release"));
+			final String key = fingerprint.compute();
+
+			File runtime = cache.get(key);
+			if (runtime != null) {
+				this.getLog().info("using cached runtime " + runtime);
+				return runtime;
+			}
+
+			final File linked = cache.newTemporaryDirectory(key);
+			final Commandline cmd = new Commandline();
+			cmd.setExecutable(jlinkExec);
+			for (final String option : jlinkOptions) {
+				cmd.createArg().setValue(option);
+			}
+			cmd.createArg().setValue("--module-path");
+			cmd.createArg().setValue(jmodsFolder.getCanonicalPath());
+			if (this.hasLimitModules()) {
+				cmd.createArg().setValue("--limit-modules");
+				cmd.createArg().setValue(this.getCommaSeparatedList(this.limitModules));
+			}
+			cmd.createArg().setValue("--add-modules");
+			cmd.createArg().setValue(this.getCommaSeparatedList(modules));
+			cmd.createArg().setValue("--output");
+			cmd.createArg().setValue(linked.getAbsolutePath());
+
+			this.getLog().info("linking runtime " + key + " into cache");
+			try {
+				this.executeCommand(cmd);
+				runtime = cache.put(key, linked);
+			} finally {
+				if (linked.exists()) {
+					FileUtils.deleteDirectory(linked);
+				}
+			}
+			cache.evict(key);
+			return runtime;
+		} catch (final IOException e) {
+			throw new MojoExecutionException("error using runtime cache: " + e.getMessage(), e);
+		} finally {
+			stage.close();
+		}
+	}
+
+	/**
+	 * Copy a base runtime from the runtime cache into an image.
+	 *
+	 * @param runtime the runtime directory
+	 * @param dir     the image directory
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected void copyBaseRuntime(final File runtime, final File dir) throws MojoExecutionException {
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("copy runtime")) {
+			// never hard link, the image may be changed afterwards
+			final FileStager stager = new FileStager(
+					this.getFileStager().getMode() == FileStager.Mode.COPY ? FileStager.Mode.COPY
+							: FileStager.Mode.REFLINK,
+					this.getLog());
+			stage.addFiles(RuntimeCache.copy(runtime, dir, stager));
+			stage.addBytes(stager.getCopiedBytes());
+		} catch (final IOException e) {
+			throw new MojoExecutionException("error copying runtime " + runtime + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * List all files and symbolic links below a directory.
+	 *
+	 * @param dir the directory
+	 * @return the sorted paths relative to the directory, separated by
+	 *         <code>/</code>
+	 * @throws IOException on i/o error
+	 */
+	protected List<String> listImageFiles(final File dir) throws IOException {
+		final Path base = dir.toPath();
+		try (Stream<Path> stream = Files.walk(base)) {
+			return stream.filter(p -> !Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS))
+					.map(p -> base.relativize(p).toString().replace(File.separatorChar, '/')).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Check if a file in the image is a jar of a released third party
+	 * dependency. Those jars change less often than snapshots and jars of the
+	 * project's own group.
+	 *
+	 * @param path the path in the image
+	 * @param dependencyJars the file names of the dependency jars
+	 * @return <code>true</code> if the file belongs into the dependency layer
+	 */
+	protected boolean isDependencyJar(final String path, final Set<String> dependencyJars) {
+		final int i = path.lastIndexOf('/');
+		return dependencyJars.contains(i < 0 ? path : path.substring(i + 1));
+	}
+
+	/**
+	 * Get the file names of all released dependencies which are not in the
+	 * project's group.
+	 *
+	 * @return the file names
+	 */
+	protected Set<String> getDependencyJarNames() {
+		final Set<String> names = new HashSet<>();
+		for (final Artifact artifact : this.project.getArtifacts()) {
+			if ((artifact.getFile() != null) && !artifact.isSnapshot()
+					&& !artifact.getGroupId().equals(this.project.getGroupId())) {
+				names.add(artifact.getFile().getName());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Write an image directory as OCI image layout with a runtime, a
+	 * dependency and an application layer.
+	 *
+	 * @param dir           the image directory
+	 * @param isRuntimeFile tells which paths in the image belong to the runtime
+	 * @param entrypoint    path of the launcher in the image or <code>null</code>
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected void createOciImage(final File dir, final Predicate<String> isRuntimeFile, final String entrypoint)
+			throws MojoExecutionException {
+		final File layoutDir = new File(this.buildDirectory, this.getFinalName() + "-oci");
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("oci image")) {
+			final LayerArchive runtimeLayer = new LayerArchive(dir);
+			final LayerArchive dependencyLayer = new LayerArchive(dir);
+			final LayerArchive appLayer = new LayerArchive(dir);
+			final Set<String> dependencyJars = getDependencyJarNames();
+			for (final String path : listImageFiles(dir)) {
+				if (isRuntimeFile.test(path)) {
+					runtimeLayer.add(path);
+				} else if (isDependencyJar(path, dependencyJars)) {
+					dependencyLayer.add(path);
+				} else {
+					appLayer.add(path);
+				}
+			}
+			runtimeLayer.setPrefix(this.ociImageDirectory);
+			dependencyLayer.setPrefix(this.ociImageDirectory);
+			appLayer.setPrefix(this.ociImageDirectory);
+
+			final OciImageLayout layout = new OciImageLayout(layoutDir);
+			layout.addLayer(runtimeLayer, "jpacktool runtime");
+			layout.addLayer(dependencyLayer, "jpacktool dependencies");
+			layout.addLayer(appLayer, "jpacktool application");
+			layout.setPlatform(getOciOs(), getOciArchitecture());
+			layout.setWorkingDir(this.ociImageDirectory);
+			if (entrypoint != null) {
+				layout.setEntrypoint(Collections.singletonList(this.ociImageDirectory + "/" + entrypoint));
+			}
+			if ((this.jpacktoolModel != null) && (this.jpacktoolModel.get("linkedSystemModules") != null)) {
+				@SuppressWarnings("unchecked")
+				final List<String> modules = (List<String>) this.jpacktoolModel.get("linkedSystemModules");
+				layout.setLabel("net.agilhard.jpacktool.linkedSystemModules", this.getCommaSeparatedList(modules));
+			}
+			final String digest = layout.write(this.ociImageTag);
+			stage.addFiles(runtimeLayer.size() + dependencyLayer.size() + appLayer.size());
+			stage.addBytes(runtimeLayer.getSize() + dependencyLayer.getSize() + appLayer.getSize());
+			this.getLog().info("OCI image layout " + layoutDir + " manifest sha256:" + digest);
+
+			if (this.ociImageTarball) {
+				final File tarball = this.getArtifactFile(this.buildDirectory, this.getFinalName(), "oci", "tar");
+				layout.writeTarball(tarball);
+				this.mavenProjectHelper.attachArtifact(this.project, "tar", "oci", tarball);
+			}
+		} catch (final IOException e) {
+			throw new MojoExecutionException("error writing OCI image layout " + layoutDir + ": " + e.getMessage(),
+					e);
+		}
+	}
+
+	private static String getOciOs() {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return "windows";
+		} else if (SystemUtils.IS_OS_MAC) {
+			return "darwin";
+		}
+		return "linux";
+	}
+
+	private static String getOciArchitecture() {
+		final String arch = System.getProperty("os.arch");
+		if ("x86_64".equals(arch) || "amd64".equals(arch)) {
+			return "amd64";
+		} else if ("aarch64".equals(arch)) {
+			return "arm64";
+		} else if ("x86".equals(arch) || "i386".equals(arch)) {
+			return "386";
+		}
+		return arch;
+	}
+
 	/**
 	 * This will convert a module path separated by either {@code :} or {@code ;}
 	 * into a string which uses the platform depend path separator uniformly.
@@ -466,16 +852,14 @@ public abstract class AbstractPackageToolMojo extends AbstractTemplateToolMojo i
 				dependencyArtifacts= this.getDependenciesToLink();
 			}
 			
-			final ResolvePathsRequest<File> request = ResolvePathsRequest.ofFiles(dependencyArtifacts);
+			final Map<File, ArtifactClassification> classifications = ArtifactClassificationCache.classify(this,
+					dependencyArtifacts);
 
-			final Toolchain toolchain = this.getToolchain();
-			if ((toolchain != null) && (toolchain instanceof DefaultJavaToolChain)) {
-				request.setJdkHome(new File(((DefaultJavaToolChain) toolchain).getJavaHome()));
-			}
-
-			final ResolvePathsResult<File> resolvePathsResult = this.locationManager.resolvePaths(request);
-
-			for (final Map.Entry<File, JavaModuleDescriptor> entry : resolvePathsResult.getPathElements().entrySet()) {
+			for (final ArtifactClassification classification : classifications.values()) {
+				final Map.Entry<File, JavaModuleDescriptor> entry = classification.getPathElement();
+				if (entry == null) {
+					continue;
+				}
 				if (entry.getValue() == null) {
 
 					if ( ! isJpacktoolPrepareUsed()) {
@@ -783,6 +1167,23 @@ public abstract class AbstractPackageToolMojo extends AbstractTemplateToolMojo i
 		}
 	}
 
+	/**
+	 * Add a JVM argument after the model has been updated, e.g. to pass an
+	 * archive created from the finished image to the launcher.
+	 *
+	 * @param arg the argument
+	 */
+	protected void addJvmArgToModel(String arg) {
+		if (jvmArgs == null) {
+			jvmArgs = new ArrayList<String>();
+		}
+		jvmArgs.add(arg);
+		if (jpacktoolModel == null) {
+			jpacktoolModel = new HashMap<String, Object>();
+		}
+		jpacktoolModel.put("jvmArgs", String.join(" ", jvmArgs));
+	}
+
 	protected void updateModel() throws MojoFailureException {
 		if (jpacktoolModel == null) {
 			jpacktoolModel = new HashMap<String, Object>();
@@ -955,7 +1356,12 @@ public abstract class AbstractPackageToolMojo extends AbstractTemplateToolMojo i
 				}
 			}
 			resourcesExecutor.setOutputDirectory(outputDirectory);
-			resourcesExecutor.execute();
+			final PerformanceTrace.Stage stage = getPerformanceTrace().start("resources");
+			try {
+				resourcesExecutor.execute();
+			} finally {
+				stage.close();
+			}
 		}
 	}
 
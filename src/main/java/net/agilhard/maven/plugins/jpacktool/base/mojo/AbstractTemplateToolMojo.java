@@ -178,8 +178,10 @@ public abstract class AbstractTemplateToolMojo extends AbstractToolMojo {
 			} catch (IOException e) {
 				throw new MojoFailureException("error to generate from template", e);
 			}
-			try {
+			try (PerformanceTrace.Stage stage = getPerformanceTrace().start("template", templateName)) {
 				genFile.generate();
+				stage.addBytes(outputFile.length());
+				stage.addFiles(1);
 			} catch (IOException | TemplateException e) {
 				throw new MojoFailureException("error to generate from template", e);
 			}
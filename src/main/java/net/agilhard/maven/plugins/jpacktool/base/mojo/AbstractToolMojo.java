@@ -20,11 +20,9 @@ package net.agilhard.maven.plugins.jpacktool.base.mojo;
  * under the License.
  */
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
@@ -93,6 +91,21 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 	@Parameter
 	protected List<ArtifactParameter> classpathArtifacts;
 
+	protected ArtifactSelector excludedArtifactSelector;
+
+	protected ArtifactSelector classpathArtifactSelector;
+
+	/**
+	 * Reuse the dependencies already resolved by maven for the project to build the
+	 * dependency graph instead of resolving the graph again.
+	 * <p>
+	 * By default the graph is resolved with the dependency graph builder, which
+	 * also contains dependencies outside of the resolved scope.
+	 * </p>
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean reuseResolvedDependencies;
+
 	@Component
 	protected LocationManager locationManager;
 
@@ -128,6 +141,79 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 	@Parameter(defaultValue = "false")
 	protected boolean verbose;
 
+	/**
+	 * Timeout in seconds for forked tools like jlink or jpackage, 0 for no
+	 * timeout.
+	 */
+	@Parameter(defaultValue = "0")
+	protected int toolTimeout;
+
+	/**
+	 * Run jlink and jpackage inside of the maven JVM by means of the ToolProvider
+	 * API if the JDK of the toolchain is the JDK maven is running with.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean toolsInProcess;
+
+	protected CommandExecutor commandExecutor;
+
+	/**
+	 * Write a trace of the stages of this goal in Chrome trace event format and a
+	 * summary to the jpacktool directory, log the summary and warn about stages
+	 * which have become slower since the previous run.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean performanceReport;
+
+	/**
+	 * Percentage by which a stage may be slower than in the previous run before
+	 * it is reported as regression.
+	 */
+	@Parameter(defaultValue = "20")
+	protected int performanceRegressionThreshold;
+
+	protected PerformanceTrace performanceTrace;
+
+	/**
+	 * How jars are put into the staging directories and into the image:
+	 * <code>copy</code>, <code>link</code> (hard links),
+	 * <code>reflink</code> (copy-on-write clones) or <code>auto</code> (hard
+	 * links, then clones). Files which can not be linked or cloned are copied.
+	 * Linking is opt-in: linked files are shared with the local repository, so
+	 * modifying a jar of the staging directories or of the image in place also
+	 * modifies the jar in the local repository.
+	 */
+	@Parameter(defaultValue = "copy")
+	protected String stagingMode;
+
+	protected FileStager fileStager;
+
+	/**
+	 * Put released jars of the local repository into a content addressed store
+	 * shared by all projects and link or clone them from there into staging
+	 * directories and images. Only used with the stagingMode <code>link</code>,
+	 * <code>reflink</code> or <code>auto</code>, with <code>copy</code> the
+	 * jars would be copied twice, so the store is ignored.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean jarStore;
+
+	/**
+	 * Directory of the jar store.
+	 */
+	@Parameter(defaultValue = "${user.home}/.m2/jpacktool-cache/jars")
+	protected File jarStoreDirectory;
+
+	/**
+	 * Maximum size of the jar store in megabytes. The least recently used jars
+	 * are removed when the store grows beyond this size.
+	 */
+	@Parameter(defaultValue = "2048")
+	protected long jarStoreMaxSize;
+
+	@Parameter(defaultValue = "${settings.localRepository}", readonly = true)
+	protected File localRepositoryDirectory;
+
 	/**
 	 * skip plugin execution.
 	 */
@@ -170,9 +256,73 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 		if (this.getShouldSkipReason() != null) {
 			this.getLog().warn("skipped due to: " + this.shouldSkipReason);
 		} else {
-			this.executeToolStart();
-			this.executeToolMain();
-			this.executeToolFinish();
+			this.excludedArtifactSelector = ArtifactSelector.compile(this.excludedArtifacts);
+			this.classpathArtifactSelector = ArtifactSelector.compile(this.classpathArtifacts);
+			if (this.stagingMode != null) {
+				this.fileStager = createFileStager(FileStager.Mode.parse(this.stagingMode));
+			}
+			final PerformanceTrace.Stage stage = this.getPerformanceTrace().start(this.getClass().getSimpleName());
+			try {
+				this.executeToolStart();
+				this.executeToolMain();
+				this.executeToolFinish();
+			} finally {
+				stage.close();
+				this.writePerformanceReport();
+				if ((this.fileStager != null) && (this.fileStager.getJarStore() != null)) {
+					this.fileStager.getJarStore().evict();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the trace of the stages of this mojo.
+	 *
+	 * @return the trace
+	 */
+	public synchronized PerformanceTrace getPerformanceTrace() {
+		if (this.performanceTrace == null) {
+			this.performanceTrace = new PerformanceTrace(this.getClass().getSimpleName());
+		}
+		return this.performanceTrace;
+	}
+
+	/**
+	 * Get the stager used to put files into staging directories and into the
+	 * image.
+	 *
+	 * @return the stager
+	 */
+	public synchronized FileStager getFileStager() {
+		if (this.fileStager == null) {
+			this.fileStager = createFileStager(FileStager.Mode.COPY);
+		}
+		return this.fileStager;
+	}
+
+	protected FileStager createFileStager(FileStager.Mode mode) {
+		FileStager stager = new FileStager(mode, this.getLog());
+		if (this.jarStore && (mode == FileStager.Mode.COPY)) {
+			this.getLog().warn("jarStore is ignored with stagingMode copy");
+		} else if (this.jarStore && (this.jarStoreDirectory != null)) {
+			stager.setJarStore(new JarStore(this.jarStoreDirectory, this.localRepositoryDirectory,
+					this.jarStoreMaxSize * 1024L * 1024L, this.getLog()));
+		}
+		return stager;
+	}
+
+	protected void writePerformanceReport() {
+		if (this.fileStager != null) {
+			this.fileStager.logStatistics();
+		}
+		if (this.performanceReport && (this.performanceTrace != null)) {
+			try {
+				this.performanceTrace.write(this.outputDirectoryJPacktool, this.performanceRegressionThreshold,
+						this.getLog());
+			} catch (final IOException e) {
+				this.getLog().warn("can not write performance report: " + e.getMessage());
+			}
 		}
 	}
 
@@ -303,7 +453,56 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 	}
 
 	protected void executeCommand(final Commandline cmd) throws MojoExecutionException {
-		ExecuteCommand.executeCommand(this.verbose, this.getLog(), cmd);
+		final PerformanceTrace.Stage stage = this.getPerformanceTrace()
+				.start(CommandExecutor.getToolName(cmd.getExecutable()));
+		try {
+			if (this.toolsInProcess && this.canRunInProcess(cmd.getExecutable())) {
+				ExecuteCommand.executeInProcess(this.getCommandExecutor(), this.verbose, this.getLog(), cmd);
+			} else {
+				ExecuteCommand.executeCommand(this.getCommandExecutor(), this.verbose, this.getLog(), cmd);
+			}
+		} finally {
+			stage.close();
+		}
+	}
+
+	/**
+	 * Get the executor for external tools which records the execution times of
+	 * this mojo.
+	 *
+	 * @return the executor
+	 */
+	public synchronized CommandExecutor getCommandExecutor() {
+		if (this.commandExecutor == null) {
+			this.commandExecutor = new CommandExecutor(this.getLog());
+			this.commandExecutor.setTimeout(this.toolTimeout);
+		}
+		return this.commandExecutor;
+	}
+
+	/**
+	 * Check if a tool of the JDK can be run inside of the running JVM by means of
+	 * the ToolProvider API. This is only the case if the tool belongs to the JDK
+	 * maven is running with.
+	 *
+	 * @param executable the executable of the tool
+	 * @return <code>true</code> if the tool can be run in process
+	 */
+	public boolean canRunInProcess(final String executable) {
+		if (executable == null) {
+			return false;
+		}
+		if (!ExecuteCommand.isToolProviderAvailable(CommandExecutor.getToolName(executable))) {
+			return false;
+		}
+		try {
+			final File toolHome = new File(CommandExecutor.unquote(executable)).getCanonicalFile().getParentFile()
+					.getParentFile();
+			final File javaHome = new File(System.getProperty("java.home")).getCanonicalFile();
+			return toolHome.equals(javaHome);
+		} catch (final IOException e) {
+			return false;
+		}
 	}
 
 	public Toolchain getToolchain() {
@@ -375,6 +574,43 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 		return this.classpathArtifacts;
 	}
 
+	/**
+	 * Get the compiled excludedArtifacts.
+	 *
+	 * @return the selector
+	 */
+	public synchronized ArtifactSelector getExcludedArtifactSelector() {
+		if (this.excludedArtifactSelector == null) {
+			this.excludedArtifactSelector = compileSelector(this.excludedArtifacts);
+		}
+		return this.excludedArtifactSelector;
+	}
+
+	/**
+	 * Get the compiled classpathArtifacts.
+	 *
+	 * @return the selector
+	 */
+	public synchronized ArtifactSelector getClasspathArtifactSelector() {
+		if (this.classpathArtifactSelector == null) {
+			this.classpathArtifactSelector = compileSelector(this.classpathArtifacts);
+		}
+		return this.classpathArtifactSelector;
+	}
+
+	private static ArtifactSelector compileSelector(List<ArtifactParameter> parameters) {
+		try {
+			return ArtifactSelector.compile(parameters);
+		} catch (final MojoFailureException e) {
+			// execute() has already reported invalid parameters
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	public boolean isReuseResolvedDependencies() {
+		return this.reuseResolvedDependencies;
+	}
+
 	public LocationManager getLocationManager() {
 		return this.locationManager;
 	}
@@ -413,23 +649,29 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 			cmd.createArg().setValue("--list-modules");
 			cmd.setExecutable(javaExecutable);
 
-			final File file = new File(this.outputDirectoryJPacktool, "java_modules.list");
-			try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-				ExecuteCommand.executeCommand(false, this.getLog(), cmd, fileOutputStream);
-			} catch (final IOException ioe) {
-				throw new MojoExecutionException("i/o error", ioe);
+			final List<String> lines = new ArrayList<>();
+			final CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
+			final CommandExecutor.Result result = this.getCommandExecutor().execute(cmd, line -> {
+				if (!"".equals(line)) {
+					lines.add(line);
+				}
+			}, err);
+			if (result.getExitCode() != 0) {
+				throw new MojoExecutionException("Exit code: " + result.getExitCode() + " - " + err.getOutput()
+						+ "\nCommand line was: " + cmd);
 			}
-			try (FileReader fr = new FileReader(file); BufferedReader br = new BufferedReader(fr)) {
-				String line;
-				while ((line = br.readLine()) != null) {
-					if (!"".equals(line)) {
-						final int i = line.indexOf('@');
-						if (i > 0) {
-							line = line.substring(0, i);
-						}
-						this.systemModules.add(line);
-					}
+
+			for (String line : lines) {
+				final int i = line.indexOf('@');
+				if (i > 0) {
+					line = line.substring(0, i);
 				}
+				this.systemModules.add(line);
+			}
+
+			final File file = new File(this.outputDirectoryJPacktool, "java_modules.list");
+			try {
+				Files.write(file.toPath(), lines);
 			} catch (final IOException ioe) {
 				throw new MojoExecutionException("i/o error", ioe);
 			}
@@ -498,7 +740,7 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 		}
 	}
 
-	protected static String bytesToHex(byte[] hash) {
+	public static String bytesToHex(byte[] hash) {
 	    StringBuffer hexString = new StringBuffer();
 	    for (int i = 0; i < hash.length; i++) {
 	    String hex = Integer.toHexString(0xff & hash[i]);
@@ -509,6 +751,18 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 	}
 	
 	public void publishSHA256(File file) throws MojoFailureException {
+		publishSHA256(file, "sha256");
+	}
+
+	/**
+	 * Write the SHA-256 of a file to a <code>.sha256</code> file next to it and
+	 * attach that file to the project.
+	 *
+	 * @param file       the file
+	 * @param classifier the classifier of the attached artifact
+	 * @throws MojoFailureException on i/o error
+	 */
+	public void publishSHA256(File file, String classifier) throws MojoFailureException {
 		MessageDigest md;
 		try {
 			md = MessageDigest.getInstance("SHA-256");
@@ -516,8 +770,11 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 			throw new MojoFailureException("SHA-256 algorithm not found", e1);
 		}
 		byte[] buffer = new byte[1024];
-		try (InputStream is = Files.newInputStream(file.toPath());
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("sha256");
+				InputStream is = Files.newInputStream(file.toPath());
 				DigestInputStream dis = new DigestInputStream(is, md)) {
+			stage.addBytes(file.length());
+			stage.addFiles(1);
 			/* Read decorated stream (dis) to EOF as normal... */
 			while (dis.read(buffer) > -1) {
 				//
@@ -541,7 +798,7 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 		} catch (IOException e) {
 			throw new MojoFailureException("I/O Error", e);
 		}
-		this.mavenProjectHelper.attachArtifact(this.project, "sha256", "sha256", outFile);
+		this.mavenProjectHelper.attachArtifact(this.project, "sha256", classifier, outFile);
 	}
 
 	protected File createZipArchiveFromDirectory(final File outputDirectory, final File outputDirectoryToZip)
@@ -555,8 +812,10 @@ public abstract class AbstractToolMojo extends AbstractMojo {
 			resultArchive = this.getArtifactFile(outputDirectory, finalName, null, "zip");
 
 			this.zipArchiver.setDestFile(resultArchive);
-			try {
+			try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("zip")) {
 				this.zipArchiver.createArchive();
+				stage.addBytes(resultArchive.length());
+				stage.addFiles(1);
 			} catch (final ArchiverException e) {
 				this.getLog().error(e.getMessage(), e);
 				throw new MojoExecutionException(e.getMessage(), e);
@@ -0,0 +1,251 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.apache.maven.artifact.versioning.InvalidVersionSpecificationException;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.apache.maven.plugin.MojoFailureException;
+
+/**
+ * Matches artifacts against a list of {@link ArtifactParameter}s.
+ *
+ * <p>
+ * Parameters with a literal groupId and artifactId are looked up by
+ * <code>groupId:artifactId</code>, only parameters containing wildcards are
+ * checked one by one. In groupId and artifactId <code>*</code> matches any
+ * sequence of characters. A version is either a literal version, a version
+ * range like <code>[1.0,2.0)</code> or <code>*</code>. Type and classifier may
+ * be <code>*</code> to match any type or classifier.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public final class ArtifactSelector {
+
+	private static final String ANY = "*";
+
+	private static final ArtifactSelector EMPTY = new ArtifactSelector();
+
+	/**
+	 * A single compiled parameter.
+	 */
+	static class Entry {
+
+		private final boolean wildcard;
+
+		private final Pattern groupId;
+
+		private final Pattern artifactId;
+
+		private final String version;
+
+		private final VersionRange versionRange;
+
+		private final String type;
+
+		private final String classifier;
+
+		private final String spec;
+
+		Entry(ArtifactParameter parameter) throws MojoFailureException {
+			// literal groupId and artifactId are matched by the lookup key
+			this.wildcard = isWildcard(parameter.getGroupId()) || isWildcard(parameter.getArtifactId());
+			this.groupId = wildcard ? toPattern(parameter.getGroupId()) : null;
+			this.artifactId = wildcard ? toPattern(parameter.getArtifactId()) : null;
+
+			String v = parameter.getVersion();
+			if ((v == null) && (parameter.getVersionRange() != null)) {
+				v = parameter.getVersionRange().toString();
+			}
+			if ((v == null) || v.isEmpty() || ANY.equals(v)) {
+				this.version = null;
+				this.versionRange = null;
+			} else if (v.startsWith("[") || v.startsWith("(")) {
+				this.version = null;
+				try {
+					this.versionRange = VersionRange.createFromVersionSpec(v);
+				} catch (InvalidVersionSpecificationException e) {
+					throw new MojoFailureException("invalid version range " + v + " for artifact "
+							+ parameter.getGroupId() + ":" + parameter.getArtifactId(), e);
+				}
+			} else {
+				this.version = v;
+				this.versionRange = null;
+			}
+
+			this.type = ANY.equals(parameter.getType()) ? null : parameter.getType();
+			this.classifier = parameter.getClassifier();
+			this.spec = parameter.getGroupId() + ":" + parameter.getArtifactId() + ":" + (v == null ? ANY : v) + ":"
+					+ parameter.getType() + ":" + (classifier == null ? "" : classifier);
+		}
+
+		boolean matches(Artifact artifact) {
+			if (wildcard && !(groupId.matcher(artifact.getGroupId()).matches()
+					&& artifactId.matcher(artifact.getArtifactId()).matches())) {
+				return false;
+			}
+			if ((type != null) && !type.equals(artifact.getType())) {
+				return false;
+			}
+			if (!ANY.equals(classifier)) {
+				String c = artifact.getClassifier();
+				boolean noClassifier = (classifier == null) || classifier.isEmpty();
+				if (noClassifier ? ((c != null) && !c.isEmpty()) : !classifier.equals(c)) {
+					return false;
+				}
+			}
+			if (version != null) {
+				return version.equals(artifact.getVersion()) || version.equals(artifact.getBaseVersion());
+			}
+			if (versionRange != null) {
+				return (artifact.getVersion() != null)
+						&& versionRange.containsVersion(new DefaultArtifactVersion(artifact.getVersion()));
+			}
+			return true;
+		}
+	}
+
+	private final Map<String, List<Entry>> byKey = new HashMap<>();
+
+	private final List<Entry> wildcards = new ArrayList<>();
+
+	private final String spec;
+
+	private ArtifactSelector() {
+		this.spec = "";
+	}
+
+	private ArtifactSelector(List<ArtifactParameter> parameters) throws MojoFailureException {
+		StringBuilder sb = new StringBuilder();
+		for (ArtifactParameter parameter : parameters) {
+			Entry entry = new Entry(parameter);
+			if (entry.wildcard) {
+				wildcards.add(entry);
+			} else {
+				byKey.computeIfAbsent(parameter.getGroupId() + ":" + parameter.getArtifactId(),
+						k -> new ArrayList<>()).add(entry);
+			}
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(entry.spec);
+		}
+		this.spec = sb.toString();
+	}
+
+	/**
+	 * Compile a list of artifact parameters.
+	 *
+	 * @param parameters the parameters or <code>null</code>
+	 * @return the selector
+	 * @throws MojoFailureException if a version range is invalid
+	 */
+	public static ArtifactSelector compile(List<ArtifactParameter> parameters) throws MojoFailureException {
+		if ((parameters == null) || parameters.isEmpty()) {
+			return EMPTY;
+		}
+		return new ArtifactSelector(parameters);
+	}
+
+	/**
+	 * Check if the selector matches no artifact at all.
+	 *
+	 * @return <code>true</code> if the selector has been compiled from an empty
+	 *         list
+	 */
+	public boolean isEmpty() {
+		return byKey.isEmpty() && wildcards.isEmpty();
+	}
+
+	/**
+	 * Check if an artifact is selected.
+	 *
+	 * @param artifact the artifact
+	 * @return <code>true</code> if one of the parameters matches the artifact
+	 */
+	public boolean matches(Artifact artifact) {
+		if ((artifact == null) || isEmpty()) {
+			return false;
+		}
+		List<Entry> entries = byKey.getOrDefault(artifact.getGroupId() + ":" + artifact.getArtifactId(),
+				Collections.emptyList());
+		for (Entry entry : entries) {
+			if (entry.matches(artifact)) {
+				return true;
+			}
+		}
+		for (Entry entry : wildcards) {
+			if (entry.matches(artifact)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get a filter excluding the selected artifacts.
+	 *
+	 * @return the filter or <code>null</code> if the selector is empty
+	 */
+	public ArtifactFilter toExcludeFilter() {
+		if (isEmpty()) {
+			return null;
+		}
+		return artifact -> !matches(artifact);
+	}
+
+	/**
+	 * Get a canonical description of the selector.
+	 *
+	 * @return the specifications of all parameters
+	 */
+	@Override
+	public String toString() {
+		return spec;
+	}
+
+	private static boolean isWildcard(String s) {
+		return (s == null) || s.contains(ANY);
+	}
+
+	private static Pattern toPattern(String glob) {
+		if (glob == null) {
+			return Pattern.compile(".*");
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String part : glob.split("\\*", -1)) {
+			if (sb.length() > 0) {
+				sb.append(".*");
+			}
+			sb.append(Pattern.quote(part));
+		}
+		return Pattern.compile(sb.toString());
+	}
+}
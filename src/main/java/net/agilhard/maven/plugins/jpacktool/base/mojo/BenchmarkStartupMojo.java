@@ -0,0 +1,543 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Measure the startup of the launcher generated by the jlink goal or of the
+ * application image created by the jpackager goal.
+ *
+ * <p>
+ * The launcher is started a number of times after warm-up runs. For each run
+ * the time until a readiness line is printed (or until the application exits)
+ * and the peak resident set size are measured. The time until the main class is
+ * loaded and the number of loaded classes are taken from one additional run
+ * with class loading logged, which would slow down the measured runs. The
+ * results are written as JSON and CSV to the jpacktool directory and the
+ * medians are compared to a baseline.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+@Mojo(name = "benchmark-startup", defaultPhase = LifecyclePhase.VERIFY, requiresProject = true)
+public class BenchmarkStartupMojo extends AbstractToolMojo {
+
+	static final String TIME_TO_MAIN = "timeToMain";
+
+	static final String TIME_TO_READY = "timeToReady";
+
+	static final String TIME_TO_EXIT = "timeToExit";
+
+	static final String PEAK_RSS = "peakRssKb";
+
+	static final String LOADED_CLASSES = "loadedClasses";
+
+	private static final Pattern UPTIME = Pattern.compile("^\\[(\\d+)ms\\]\\s*(\\S+) source: ");
+
+	/**
+	 * The launcher to benchmark. Defaults to the launcher of the image created
+	 * by the jlink or jpackager goal before in the same build.
+	 */
+	@Parameter
+	protected File benchmarkLauncher;
+
+	/**
+	 * The main class, used to measure the time until it is loaded. Defaults to
+	 * the main class of the jpacktool model.
+	 */
+	@Parameter
+	protected String benchmarkMainClass;
+
+	/**
+	 * Arguments passed to the launcher.
+	 */
+	@Parameter
+	protected List<String> benchmarkArguments;
+
+	/**
+	 * Regular expression for a line printed by the application when it is
+	 * ready. The application is terminated when it is printed. Without it the
+	 * time until the application exits is measured.
+	 */
+	@Parameter
+	protected String readinessPattern;
+
+	/**
+	 * Number of runs before the measured runs, e.g. to fill the page cache or to
+	 * let the launcher create a CDS archive.
+	 */
+	@Parameter(defaultValue = "1")
+	protected int warmupIterations;
+
+	/**
+	 * Number of measured runs.
+	 */
+	@Parameter(defaultValue = "5")
+	protected int iterations;
+
+	/**
+	 * Time in seconds after which a run is regarded as failed.
+	 */
+	@Parameter(defaultValue = "60")
+	protected int benchmarkTimeout;
+
+	/**
+	 * Properties file with the medians of a previous benchmark to compare with.
+	 */
+	@Parameter(defaultValue = "${project.basedir}/src/benchmark/startup-baseline.properties")
+	protected File benchmarkBaseline;
+
+	/**
+	 * Write the medians of this benchmark to the baseline file.
+	 */
+	@Parameter(property = "jpacktool.updateBaseline", defaultValue = "false")
+	protected boolean updateBaseline;
+
+	/**
+	 * Percentage by which a median may be worse than the baseline before it is
+	 * reported as regression.
+	 */
+	@Parameter(defaultValue = "20")
+	protected int benchmarkRegressionThreshold;
+
+	/**
+	 * Fail the build on a regression instead of logging a warning.
+	 */
+	@Parameter(defaultValue = "true")
+	protected boolean failOnRegression;
+
+	/** {@inheritDoc} */
+	@Override
+	public void executeToolMain() throws MojoExecutionException, MojoFailureException {
+		final File launcherFile = getBenchmarkLauncher();
+		if ((launcherFile == null) || !launcherFile.isFile()) {
+			throw new MojoFailureException("no launcher to benchmark, set benchmarkLauncher or run the jlink or "
+					+ "jpackager goal before: " + launcherFile);
+		}
+		final String mainClass = getBenchmarkMainClass();
+		final Pattern readiness = (this.readinessPattern == null) ? null : Pattern.compile(this.readinessPattern);
+
+		final List<Map<String, Long>> results = new ArrayList<>();
+		final Map<String, Long> classLoading = new LinkedHashMap<>();
+		final PerformanceTrace.Stage stage = this.getPerformanceTrace().start("benchmark startup");
+		try {
+			for (int i = 0; i < this.warmupIterations; i++) {
+				runOnce(launcherFile, mainClass, readiness, false);
+			}
+			for (int i = 0; i < this.iterations; i++) {
+				final Map<String, Long> result = runOnce(launcherFile, mainClass, readiness, false);
+				this.getLog().info("run " + (i + 1) + ": " + result);
+				results.add(result);
+			}
+			final Map<String, Long> instrumented = runOnce(launcherFile, mainClass, readiness, true);
+			for (final String metric : new String[] { TIME_TO_MAIN, LOADED_CLASSES }) {
+				if (instrumented.containsKey(metric)) {
+					classLoading.put(metric, instrumented.get(metric));
+				}
+			}
+			this.getLog().info("run with class loading logged: " + classLoading);
+		} finally {
+			stage.close();
+		}
+
+		final Map<String, Long> medians = new LinkedHashMap<>();
+		for (final String metric : getMetrics(results)) {
+			medians.put(metric, median(results, metric));
+		}
+		this.getLog().info("startup medians of " + results.size() + " runs: " + medians);
+
+		writeReports(results, medians, classLoading);
+		medians.putAll(classLoading);
+		compareWithBaseline(medians);
+	}
+
+	/**
+	 * Get the launcher to benchmark.
+	 *
+	 * @return the launcher or <code>null</code> if none is known
+	 */
+	protected File getBenchmarkLauncher() {
+		if (this.benchmarkLauncher != null) {
+			return this.benchmarkLauncher;
+		}
+		final Object launcher = this.project.getProperties().get(this.jpacktoolPropertyPrefix + ".launcher");
+		return (launcher == null) ? null : new File(launcher.toString());
+	}
+
+	@SuppressWarnings("unchecked")
+	protected String getBenchmarkMainClass() {
+		if (this.benchmarkMainClass != null) {
+			return this.benchmarkMainClass;
+		}
+		final Object model = this.project.getProperties().get(this.jpacktoolPropertyPrefix + ".model");
+		if (model instanceof Map) {
+			final Object mainClass = ((Map<String, Object>) model).get("mainClass");
+			return (mainClass == null) ? null : mainClass.toString();
+		}
+		return null;
+	}
+
+	/**
+	 * Start the launcher once and measure it.
+	 *
+	 * @param launcherFile the launcher
+	 * @param mainClass    the main class or <code>null</code>
+	 * @param readiness    the readiness line or <code>null</code> to wait for
+	 *                     the exit of the application
+	 * @param logClassLoading log the class loading to measure the time until
+	 *                     the main class is loaded and the number of classes
+	 * @return the metrics of the run
+	 * @throws MojoExecutionException if the run fails
+	 */
+	protected Map<String, Long> runOnce(final File launcherFile, final String mainClass, final Pattern readiness,
+			final boolean logClassLoading) throws MojoExecutionException {
+		// the working directory is the image, the log is written next to it
+		final File workingDirectory = launcherFile.getAbsoluteFile().getParentFile().getParentFile();
+		final File classLoadLog = new File(workingDirectory.getParentFile(), "benchmark-classload.log");
+		classLoadLog.delete();
+
+		final TrainingRun run = new TrainingRun(launcherFile, workingDirectory, this.getLog());
+		run.setArguments(this.benchmarkArguments);
+		if (logClassLoading) {
+			run.setJavaOptions(Collections.singletonList(
+					"-Xlog:class+load=info:file=../" + classLoadLog.getName() + ":uptimemillis"));
+		}
+		final ProcessBuilder pb = run.createProcessBuilder();
+
+		final Map<String, Long> result = new LinkedHashMap<>();
+		final CountDownLatch ready = new CountDownLatch(1);
+		final long start = System.nanoTime();
+		final Process process;
+		try {
+			process = pb.start();
+			process.getOutputStream().close();
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to start " + launcherFile + ": " + e.getMessage(), e);
+		}
+
+		final long[] readyTime = { -1 };
+		final Thread reader = new Thread(() -> {
+			try (BufferedReader br = new BufferedReader(
+					new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if ((readiness != null) && (readyTime[0] < 0) && readiness.matcher(line).find()) {
+						readyTime[0] = System.nanoTime();
+						ready.countDown();
+					}
+				}
+			} catch (final IOException e) {
+				// process has been terminated
+			}
+		}, "benchmark-output");
+		reader.setDaemon(true);
+		reader.start();
+
+		final long pid = getPid(process);
+		long peakRss = -1;
+		final long deadline = start + TimeUnit.SECONDS.toNanos(this.benchmarkTimeout);
+		try {
+			while (process.isAlive() && (ready.getCount() > 0)) {
+				peakRss = Math.max(peakRss, readPeakRss(pid));
+				if (System.nanoTime() > deadline) {
+					process.destroyForcibly();
+					throw new MojoExecutionException("benchmark run did not "
+							+ ((readiness == null) ? "exit" : "print the readiness line") + " within "
+							+ this.benchmarkTimeout + " seconds: " + launcherFile);
+				}
+				ready.await(10, TimeUnit.MILLISECONDS);
+			}
+			final long end = System.nanoTime();
+			peakRss = Math.max(peakRss, readPeakRss(pid));
+			if (readiness != null) {
+				if (readyTime[0] < 0) {
+					// the line may have been printed just before the exit
+					reader.join(TimeUnit.SECONDS.toMillis(5));
+				}
+				if (readyTime[0] < 0) {
+					throw new MojoExecutionException(
+							"application exited without printing the readiness line: " + launcherFile);
+				}
+				result.put(TIME_TO_READY, TimeUnit.NANOSECONDS.toMillis(readyTime[0] - start));
+				process.destroy();
+				if (!process.waitFor(30, TimeUnit.SECONDS)) {
+					process.destroyForcibly();
+				}
+			} else {
+				result.put(TIME_TO_EXIT, TimeUnit.NANOSECONDS.toMillis(end - start));
+			}
+			reader.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (final InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("interrupted while running " + launcherFile, e);
+		}
+
+		if (peakRss >= 0) {
+			result.put(PEAK_RSS, peakRss);
+		}
+		if (logClassLoading) {
+			readClassLoadLog(classLoadLog, mainClass, result);
+			classLoadLog.delete();
+		}
+		return result;
+	}
+
+	/**
+	 * Add the time until the main class is loaded and the number of loaded
+	 * classes from a <code>-Xlog:class+load</code> log to the result.
+	 *
+	 * @param classLoadLog the log with uptime decorations
+	 * @param mainClass    the main class or <code>null</code>
+	 * @param result       the metrics of the run
+	 */
+	static void readClassLoadLog(final File classLoadLog, final String mainClass, final Map<String, Long> result) {
+		if (!classLoadLog.isFile()) {
+			return;
+		}
+		long count = 0;
+		try {
+			for (final String line : Files.readAllLines(classLoadLog.toPath(), StandardCharsets.UTF_8)) {
+				final Matcher m = UPTIME.matcher(line);
+				if (m.find()) {
+					count++;
+					if (m.group(2).equals(mainClass) && !result.containsKey(TIME_TO_MAIN)) {
+						result.put(TIME_TO_MAIN, Long.parseLong(m.group(1)));
+					}
+				}
+			}
+		} catch (final IOException e) {
+			return;
+		}
+		result.put(LOADED_CLASSES, count);
+	}
+
+	/**
+	 * Get the process id by means of <code>Process.pid()</code> which is not
+	 * available on Java 8.
+	 */
+	private static long getPid(final Process process) {
+		try {
+			return ((Long) Process.class.getMethod("pid").invoke(process)).longValue();
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Read the peak resident set size of a process on Linux. Launchers which
+	 * <code>exec</code> java or load the JVM into their own process are measured
+	 * correctly.
+	 *
+	 * @return the size in KB or -1 if it is not known
+	 */
+	private static long readPeakRss(final long pid) {
+		if (pid < 0) {
+			return -1;
+		}
+		final File status = new File("/proc/" + pid + "/status");
+		try {
+			for (final String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.substring(6).replace("kB", "").trim());
+				}
+			}
+		} catch (final IOException | RuntimeException e) {
+			// not on Linux or the process has exited
+		}
+		return -1;
+	}
+
+	private static List<String> getMetrics(final List<Map<String, Long>> results) {
+		final List<String> metrics = new ArrayList<>();
+		for (final String metric : new String[] { TIME_TO_MAIN, TIME_TO_READY, TIME_TO_EXIT, PEAK_RSS,
+				LOADED_CLASSES }) {
+			for (final Map<String, Long> result : results) {
+				if (result.containsKey(metric)) {
+					metrics.add(metric);
+					break;
+				}
+			}
+		}
+		return metrics;
+	}
+
+	static long median(final List<Map<String, Long>> results, final String metric) {
+		final List<Long> values = new ArrayList<>();
+		for (final Map<String, Long> result : results) {
+			if (result.containsKey(metric)) {
+				values.add(result.get(metric));
+			}
+		}
+		Collections.sort(values);
+		final int n = values.size();
+		if (n == 0) {
+			return -1;
+		}
+		return ((n % 2) == 1) ? values.get(n / 2) : (values.get(n / 2 - 1) + values.get(n / 2)) / 2;
+	}
+
+	/**
+	 * Write the results of all runs and the medians as JSON and CSV.
+	 *
+	 * @param results      the metrics of the measured runs
+	 * @param medians      the medians
+	 * @param classLoading the metrics of the run with class loading logged
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected void writeReports(final List<Map<String, Long>> results, final Map<String, Long> medians,
+			final Map<String, Long> classLoading) throws MojoExecutionException {
+		final File json = new File(this.outputDirectoryJPacktool, "benchmark-startup.json");
+		final File csv = new File(this.outputDirectoryJPacktool, "benchmark-startup.csv");
+		final List<String> metrics = new ArrayList<>(medians.keySet());
+		try {
+			Files.createDirectories(this.outputDirectoryJPacktool.toPath());
+			try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(json.toPath(), StandardCharsets.UTF_8))) {
+				pw.println("{\"launcher\":" + Json.quote(String.valueOf(getBenchmarkLauncher())) + ",");
+				pw.println("\"warmupIterations\":" + this.warmupIterations + ",");
+				pw.print("\"median\":");
+				pw.print(toJson(medians));
+				pw.println(",");
+				pw.print("\"classLoading\":");
+				pw.print(toJson(classLoading));
+				pw.println(",");
+				pw.println("\"runs\":[");
+				for (int i = 0; i < results.size(); i++) {
+					pw.print(toJson(results.get(i)));
+					pw.println((i < results.size() - 1) ? "," : "");
+				}
+				pw.println("]}");
+			}
+			try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(csv.toPath(), StandardCharsets.UTF_8))) {
+				pw.println("run," + String.join(",", metrics));
+				for (int i = 0; i < results.size(); i++) {
+					final StringBuilder sb = new StringBuilder().append(i + 1);
+					for (final String metric : metrics) {
+						final Long value = results.get(i).get(metric);
+						sb.append(',').append((value == null) ? "" : value.toString());
+					}
+					pw.println(sb);
+				}
+			}
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to write benchmark report: " + e.getMessage(), e);
+		}
+		this.getLog().info("benchmark report written to " + json + " and " + csv);
+	}
+
+	/**
+	 * Compare the medians with the baseline and write the baseline if
+	 * requested.
+	 *
+	 * @param medians the medians
+	 * @throws MojoExecutionException on i/o error
+	 * @throws MojoFailureException   on a regression if failOnRegression is set
+	 */
+	protected void compareWithBaseline(final Map<String, Long> medians)
+			throws MojoExecutionException, MojoFailureException {
+		if (this.updateBaseline) {
+			final Properties props = new Properties();
+			for (final Map.Entry<String, Long> e : medians.entrySet()) {
+				props.setProperty(e.getKey(), e.getValue().toString());
+			}
+			try {
+				Files.createDirectories(this.benchmarkBaseline.getAbsoluteFile().getParentFile().toPath());
+				try (OutputStream os = Files.newOutputStream(this.benchmarkBaseline.toPath())) {
+					props.store(os, "jpacktool startup baseline");
+				}
+			} catch (final IOException e) {
+				throw new MojoExecutionException("unable to write " + this.benchmarkBaseline, e);
+			}
+			this.getLog().info("baseline written to " + this.benchmarkBaseline);
+			return;
+		}
+		if (!this.benchmarkBaseline.isFile()) {
+			this.getLog().info("no baseline " + this.benchmarkBaseline + " to compare with");
+			return;
+		}
+
+		final Properties baseline = new Properties();
+		try (InputStream is = Files.newInputStream(this.benchmarkBaseline.toPath())) {
+			baseline.load(is);
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to read " + this.benchmarkBaseline, e);
+		}
+		final List<String> regressions = new ArrayList<>();
+		for (final Map.Entry<String, Long> e : medians.entrySet()) {
+			final String value = baseline.getProperty(e.getKey());
+			if (value == null) {
+				continue;
+			}
+			final long base = Long.parseLong(value.trim());
+			final long current = e.getValue();
+			// ignore differences of a few milliseconds, they are mostly noise
+			final boolean time = e.getKey().startsWith("time");
+			if ((current * 100 > base * (100 + this.benchmarkRegressionThreshold))
+					&& (!time || (current - base >= 10))) {
+				regressions.add(e.getKey() + " is " + current + ", baseline " + base);
+			}
+		}
+		if (regressions.isEmpty()) {
+			this.getLog().info("no startup regression compared to " + this.benchmarkBaseline);
+		} else if (this.failOnRegression) {
+			throw new MojoFailureException("startup regression: " + String.join("; ", regressions));
+		} else {
+			for (final String regression : regressions) {
+				this.getLog().warn("startup regression: " + regression);
+			}
+		}
+	}
+
+	private static String toJson(final Map<String, Long> values) {
+		final StringBuilder sb = new StringBuilder("{");
+		String sep = "";
+		for (final Map.Entry<String, Long> e : values.entrySet()) {
+			sb.append(sep).append('"').append(e.getKey()).append("\":").append(e.getValue());
+			sep = ",";
+		}
+		return sb.append('}').toString();
+	}
+}
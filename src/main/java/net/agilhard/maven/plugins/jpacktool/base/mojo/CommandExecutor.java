@@ -0,0 +1,370 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * Executes external tools and streams their output line by line to
+ * {@link StreamConsumer}s while they are running.
+ *
+ * <p>
+ * A tool is either forked or run inside of the maven JVM by means of the
+ * java.util.spi.ToolProvider API. Forked tools can be killed after a timeout.
+ * Wall clock and CPU time of each execution are returned and logged at debug
+ * level. An instance may be used by several threads at the same time.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class CommandExecutor {
+
+	private static final long POLL_MILLIS = 20;
+
+	/**
+	 * Result of a single execution.
+	 */
+	public static class Result {
+
+		private final String toolName;
+
+		private final int exitCode;
+
+		private final long wallTime;
+
+		private final long cpuTime;
+
+		private final boolean inProcess;
+
+		public Result(String toolName, int exitCode, long wallTime, long cpuTime, boolean inProcess) {
+			this.toolName = toolName;
+			this.exitCode = exitCode;
+			this.wallTime = wallTime;
+			this.cpuTime = cpuTime;
+			this.inProcess = inProcess;
+		}
+
+		public String getToolName() {
+			return toolName;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		/**
+		 * Get the wall clock time of the execution.
+		 *
+		 * @return the time in milliseconds
+		 */
+		public long getWallTime() {
+			return wallTime;
+		}
+
+		/**
+		 * Get the CPU time of the execution. For forked tools the value is
+		 * sampled while the process is running and may be a bit too small.
+		 *
+		 * @return the time in milliseconds or -1 if it is unknown
+		 */
+		public long getCpuTime() {
+			return cpuTime;
+		}
+
+		public boolean isInProcess() {
+			return inProcess;
+		}
+
+		@Override
+		public String toString() {
+			return toolName + (inProcess ? " (in process)" : "") + ": exit code " + exitCode + ", " + wallTime
+					+ " ms" + (cpuTime >= 0 ? ", cpu " + cpuTime + " ms" : "");
+		}
+	}
+
+	/**
+	 * Writer passing each complete line to a {@link StreamConsumer}.
+	 */
+	static class LineWriter extends Writer {
+
+		private final StreamConsumer consumer;
+
+		private final StringBuilder line = new StringBuilder();
+
+		LineWriter(StreamConsumer consumer) {
+			this.consumer = consumer;
+		}
+
+		@Override
+		public synchronized void write(char[] cbuf, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				char c = cbuf[i];
+				if (c == '\n') {
+					int end = line.length();
+					if (end > 0 && line.charAt(end - 1) == '\r') {
+						line.setLength(end - 1);
+					}
+					emit();
+				} else {
+					line.append(c);
+				}
+			}
+		}
+
+		private void emit() {
+			if (consumer != null) {
+				consumer.consumeLine(line.toString());
+			}
+			line.setLength(0);
+		}
+
+		@Override
+		public void flush() {
+			// lines are passed on as soon as they are complete
+		}
+
+		@Override
+		public synchronized void close() {
+			if (line.length() > 0) {
+				emit();
+			}
+		}
+	}
+
+	private final Log log;
+
+	private int timeout;
+
+	public CommandExecutor(Log log) {
+		this.log = log;
+	}
+
+	/**
+	 * Set the time after which a forked tool is killed.
+	 *
+	 * @param timeout the timeout in seconds, 0 for no timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Remove the quotes {@link Commandline#getExecutable()} adds to paths
+	 * containing special characters.
+	 *
+	 * @param executable the executable
+	 * @return the executable without surrounding quotes
+	 */
+	public static String unquote(String executable) {
+		String s = executable.trim();
+		while (s.length() > 1 && ((s.startsWith("'") && s.endsWith("'"))
+				|| (s.startsWith("\"") && s.endsWith("\"")))) {
+			s = s.substring(1, s.length() - 1);
+		}
+		return s;
+	}
+
+	/**
+	 * Get the name of a tool from its executable.
+	 *
+	 * @param executable the executable e.g. /usr/lib/jvm/bin/jlink.exe
+	 * @return the tool name e.g. jlink
+	 */
+	public static String getToolName(String executable) {
+		String name = new File(unquote(executable)).getName();
+		if (name.toLowerCase().endsWith(".exe")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return name;
+	}
+
+	/**
+	 * Fork a tool.
+	 *
+	 * @param cmd the command line
+	 * @param out consumer of the standard output or <code>null</code>
+	 * @param err consumer of the error output or <code>null</code>
+	 * @return the result
+	 * @throws MojoExecutionException if the tool can not be started, times out
+	 *                                or the thread is interrupted
+	 */
+	public Result execute(final Commandline cmd, final StreamConsumer out, final StreamConsumer err)
+			throws MojoExecutionException {
+		final String toolName = getToolName(cmd.getExecutable());
+
+		if (log.isDebugEnabled()) {
+			// no quoted arguments ???
+			log.debug(CommandLineUtils.toString(cmd.getCommandline()).replaceAll("'", ""));
+		}
+
+		final long start = System.nanoTime();
+
+		final Process process;
+		try {
+			process = cmd.execute();
+		} catch (final CommandLineException e) {
+			throw new MojoExecutionException("Unable to execute command: " + e.getMessage(), e);
+		}
+
+		try {
+			process.getOutputStream().close();
+		} catch (final IOException e) {
+			// ignore
+		}
+
+		final Thread outPumper = pump(process.getInputStream(), out, toolName + "-out");
+		final Thread errPumper = pump(process.getErrorStream(), err, toolName + "-err");
+
+		long cpuTime = -1;
+		try {
+			final long deadline = timeout > 0 ? start + TimeUnit.SECONDS.toNanos(timeout) : Long.MAX_VALUE;
+			while (!process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				cpuTime = getCpuTime(process, cpuTime);
+				if (System.nanoTime() > deadline) {
+					process.destroyForcibly();
+					throw new MojoExecutionException(
+							"Timeout after " + timeout + " seconds\nCommand line was: " + cmd + "\n\n");
+				}
+			}
+			outPumper.join();
+			errPumper.join();
+		} catch (final InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("interrupted while executing " + toolName, e);
+		}
+
+		return logResult(new Result(toolName, process.exitValue(), toMillis(System.nanoTime() - start), cpuTime,
+				false));
+	}
+
+	/**
+	 * Run a tool inside of the running JVM by means of the ToolProvider API.
+	 * The timeout is not applied because the tool can not be stopped.
+	 *
+	 * @param toolName the name of the tool e.g. jlink
+	 * @param args     the arguments
+	 * @param out      consumer of the standard output or <code>null</code>
+	 * @param err      consumer of the error output or <code>null</code>
+	 * @return the result
+	 * @throws MojoExecutionException if the tool is not available or fails with
+	 *                                an exception
+	 */
+	public Result executeInProcess(final String toolName, final List<String> args, final StreamConsumer out,
+			final StreamConsumer err) throws MojoExecutionException {
+
+		if (log.isDebugEnabled()) {
+			log.debug(toolName + " (in process) " + String.join(" ", args));
+		}
+
+		final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		final boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+		final long startCpu = cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : 0;
+		final long start = System.nanoTime();
+
+		final LineWriter outWriter = new LineWriter(out);
+		final LineWriter errWriter = new LineWriter(err);
+		final int exitCode;
+		try (PrintWriter outPrinter = new PrintWriter(outWriter); PrintWriter errPrinter = new PrintWriter(errWriter)) {
+			exitCode = ExecuteCommand.runToolProvider(toolName, args, outPrinter, errPrinter);
+		}
+
+		final long cpuTime = cpuTimeSupported ? toMillis(threadMXBean.getCurrentThreadCpuTime() - startCpu) : -1;
+
+		return logResult(new Result(toolName, exitCode, toMillis(System.nanoTime() - start), cpuTime, true));
+	}
+
+	private Result logResult(Result result) {
+		if (log.isDebugEnabled()) {
+			log.debug(result.toString());
+		}
+		return result;
+	}
+
+	private static long toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static Thread pump(final InputStream is, final StreamConsumer consumer, final String name) {
+		final Thread thread = new Thread(() -> {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (consumer != null) {
+						consumer.consumeLine(line);
+					}
+				}
+			} catch (final IOException e) {
+				// process has been destroyed
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Sample the CPU time of a running process by means of the ProcessHandle API
+	 * of Java 9 and above.
+	 *
+	 * @param process  the process
+	 * @param previous the previously sampled value
+	 * @return the CPU time in milliseconds or the previous value if it is not
+	 *         available
+	 */
+	private static long getCpuTime(final Process process, final long previous) {
+		try {
+			final Method info = Process.class.getMethod("info");
+			final Method totalCpuDuration = Class.forName("java.lang.ProcessHandle$Info")
+					.getMethod("totalCpuDuration");
+			final Optional<?> duration = (Optional<?>) totalCpuDuration.invoke(info.invoke(process));
+			if (duration.isPresent()) {
+				return ((Duration) duration.get()).toMillis();
+			}
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			// Java 8
+		}
+		return previous;
+	}
+}
@@ -21,11 +21,17 @@ package net.agilhard.maven.plugins.jpacktool.base.mojo;
 
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.codehaus.plexus.util.StringUtils;
-import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 
@@ -36,112 +42,211 @@ public class ExecuteCommand {
     }
 
     public static void executeCommand(final boolean verbose, final Log log, final Commandline cmd, OutputStream outputStream) throws MojoExecutionException {
-        if ( log.isDebugEnabled() )
-        {
-            // no quoted arguments ???
-            log.debug( CommandLineUtils.toString( cmd.getCommandline() ).replaceAll( "'", "" ) );
-        }
+        executeCommand( new CommandExecutor( log ), verbose, log, cmd, outputStream );
+    }
+
+    /**
+     * Execute a command and write its standard output line by line to a stream while it is running.
+     *
+     * @param executor the executor
+     * @param verbose flag if the output is logged
+     * @param log the logger
+     * @param cmd the command line
+     * @param outputStream receives the standard output
+     * @throws MojoExecutionException if the command fails
+     */
+    public static void executeCommand(final CommandExecutor executor, final boolean verbose, final Log log,
+                                      final Commandline cmd, OutputStream outputStream) throws MojoExecutionException {
 
         final PrintStream printStream = new PrintStream(outputStream);
-        
-        final CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
-        final CommandLineUtils.StringStreamConsumer out = new CommandLineUtils.StringStreamConsumer();
-        try
-        {
-            final int exitCode = CommandLineUtils.executeCommandLine( cmd, out, err );
 
-            final String output = ( StringUtils.isEmpty( out.getOutput() ) ? null : '\n' + out.getOutput().trim() );
+        final CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
 
-            if ( StringUtils.isNotEmpty( output ) )
-            {
-                for ( final String outputLine : output.split( "\\n" ) )
-                {
-                    if ( outputLine.length() > 0) {
-                        printStream.println(outputLine);
-                        if ( verbose ) { 
-                            log.info( outputLine );
-                        }
-                    }
-                }
-            }
-            printStream.close();
-            
-            if ( exitCode != 0 )
-            {    
-                final StringBuilder msg = new StringBuilder( "\nExit code: " );
-                msg.append( exitCode );
-                if ( StringUtils.isNotEmpty( err.getOutput() ) )
-                {
-                    msg.append( " - " ).append( err.getOutput() );
+        final CommandExecutor.Result result = executor.execute( cmd, line -> {
+            if ( line.length() > 0) {
+                printStream.println(line);
+                if ( verbose ) {
+                    log.info( line );
                 }
-                msg.append( '\n' );
-                msg.append( "Command line was: " ).append( cmd ).append( '\n' ).append( '\n' );
-
-                throw new MojoExecutionException( msg.toString() );
             }
+        }, err );
 
-        }
-        catch ( final CommandLineException e )
-        {
-            throw new MojoExecutionException( "Unable to execute command: " + e.getMessage(), e );
-        }
+        printStream.flush();
 
+        checkExitCode( result.getExitCode(), err.getOutput(), cmd.toString() );
     }
 
     public static void executeCommand(final boolean verbose, final Log log, final Commandline cmd) throws MojoExecutionException {
-        if ( log.isDebugEnabled() )
-        {
-            // no quoted arguments ???
-            log.debug( CommandLineUtils.toString( cmd.getCommandline() ).replaceAll( "'", "" ) );
-        }
+        executeCommand( new CommandExecutor( log ), verbose, log, cmd );
+    }
+
+    /**
+     * Execute a command, the output is logged while the command is running if verbose is set, otherwise it is
+     * logged as error if the command fails.
+     *
+     * @param executor the executor
+     * @param verbose flag if the output is logged
+     * @param log the logger
+     * @param cmd the command line
+     * @throws MojoExecutionException if the command fails
+     */
+    public static void executeCommand(final CommandExecutor executor, final boolean verbose, final Log log,
+                                      final Commandline cmd) throws MojoExecutionException {
 
         final CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
-        final CommandLineUtils.StringStreamConsumer out = new CommandLineUtils.StringStreamConsumer();
-        try
+        final List<String> output = new ArrayList<>();
+
+        final CommandExecutor.Result result = executor.execute( cmd, line -> {
+            if ( verbose ) {
+                log.info( line );
+            } else {
+                synchronized ( output ) {
+                    output.add( line );
+                }
+            }
+        }, err );
+
+        if ( result.getExitCode() != 0 )
         {
-            final int exitCode = CommandLineUtils.executeCommandLine( cmd, out, err );
+            // Reconsider to use WARN / ERROR ?
+            for ( final String outputLine : output )
+            {
+                log.error( outputLine );
+            }
+        }
 
-            final String output = ( StringUtils.isEmpty( out.getOutput() ) ? null : '\n' + out.getOutput().trim() );
+        checkExitCode( result.getExitCode(), err.getOutput(), cmd.toString() );
+    }
 
-            if ( exitCode != 0 )
-            {
+    /**
+     * Execute a tool inside of the running JVM, the output is handled like by
+     * {@link #executeCommand(CommandExecutor, boolean, Log, Commandline)}.
+     *
+     * @param executor the executor
+     * @param verbose flag if the output is logged
+     * @param log the logger
+     * @param cmd the command line, the executable is used as name of the tool
+     * @throws MojoExecutionException if the tool fails
+     */
+    public static void executeInProcess(final CommandExecutor executor, final boolean verbose, final Log log,
+                                        final Commandline cmd) throws MojoExecutionException {
+
+        final String toolName = CommandExecutor.getToolName( cmd.getExecutable() );
+        final List<String> args = Arrays.asList( cmd.getArguments() );
 
-                if ( StringUtils.isNotEmpty( output ) )
-                {
-                    // Reconsider to use WARN / ERROR ?
-                   //  getLog().error( output );
-                    for ( final String outputLine : output.split( "\\n" ) )
-                    {
-                        log.error( outputLine );
-                    }
-                }
+        final CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
+        final List<String> output = new ArrayList<>();
 
-                final StringBuilder msg = new StringBuilder( "\nExit code: " );
-                msg.append( exitCode );
-                if ( StringUtils.isNotEmpty( err.getOutput() ) )
-                {
-                    msg.append( " - " ).append( err.getOutput() );
-                }
-                msg.append( '\n' );
-                msg.append( "Command line was: " ).append( cmd ).append( '\n' ).append( '\n' );
+        final CommandExecutor.Result result = executor.executeInProcess( toolName, args, line -> {
+            if ( verbose ) {
+                log.info( line );
+            } else {
+                output.add( line );
+            }
+        }, err );
 
-                throw new MojoExecutionException( msg.toString() );
+        if ( result.getExitCode() != 0 )
+        {
+            for ( final String outputLine : output )
+            {
+                log.error( outputLine );
             }
+        }
+
+        checkExitCode( result.getExitCode(), err.getOutput(), toolName + " " + String.join( " ", args ) );
+    }
 
-            if ( StringUtils.isNotEmpty( output ) && verbose )
+    private static void checkExitCode( final int exitCode, final String errOutput, final String commandLine )
+        throws MojoExecutionException
+    {
+        if ( exitCode != 0 )
+        {
+            final StringBuilder msg = new StringBuilder( "\nExit code: " );
+            msg.append( exitCode );
+            if ( StringUtils.isNotEmpty( errOutput ) )
             {
-                //getLog().info( output );
-                for ( final String outputLine : output.split( "\n" ) )
-                {
-                    log.info( outputLine );
-                }
+                msg.append( " - " ).append( errOutput );
             }
+            msg.append( '\n' );
+            msg.append( "Command line was: " ).append( commandLine ).append( '\n' ).append( '\n' );
+
+            throw new MojoExecutionException( msg.toString() );
+        }
+    }
+
+    /**
+     * Find a tool by means of the java.util.spi.ToolProvider API of Java 9 and above.
+     *
+     * @param toolName the name of the tool e.g. jdeps
+     * @return the tool provider or <code>null</code> if not available
+     */
+    protected static Object findToolProvider( final String toolName )
+    {
+        try
+        {
+            final Class<?> toolProviderClass = Class.forName( "java.util.spi.ToolProvider" );
+            final Method findFirst = toolProviderClass.getMethod( "findFirst", String.class );
+            final Optional<?> tool = (Optional<?>) findFirst.invoke( null, toolName );
+            return tool.isPresent() ? tool.get() : null;
         }
-        catch ( final CommandLineException e )
+        catch ( final ReflectiveOperationException e )
         {
-            throw new MojoExecutionException( "Unable to execute command: " + e.getMessage(), e );
+            // Java 8 or tool not available
+            return null;
+        }
+    }
+
+    /**
+     * Check if a tool can be run inside of the running JVM.
+     *
+     * @param toolName the name of the tool e.g. jdeps
+     * @return <code>true</code> if a ToolProvider for the tool exists
+     */
+    public static boolean isToolProviderAvailable( final String toolName )
+    {
+        return findToolProvider( toolName ) != null;
+    }
+
+    /**
+     * Run a tool by means of the java.util.spi.ToolProvider API.
+     *
+     * @param toolName the name of the tool e.g. jlink
+     * @param args the arguments for the tool
+     * @param out receives the standard output of the tool
+     * @param err receives the error output of the tool
+     * @return the exit code of the tool
+     * @throws MojoExecutionException if the tool is not available or throws an exception
+     */
+    static int runToolProvider( final String toolName, final List<String> args, final PrintWriter out,
+                                final PrintWriter err ) throws MojoExecutionException
+    {
+        final Object tool = findToolProvider( toolName );
+        if ( tool == null )
+        {
+            throw new MojoExecutionException( "Unable to find tool provider for " + toolName );
         }
 
+        try
+        {
+            // use the interface method, the implementing classes are not exported
+            final Method run = Class.forName( "java.util.spi.ToolProvider" )
+                .getMethod( "run", PrintWriter.class, PrintWriter.class, String[].class );
+            return (Integer) run.invoke( tool, out, err, args.toArray( new String[args.size()] ) );
+        }
+        catch ( final InvocationTargetException e )
+        {
+            throw new MojoExecutionException( "Unable to execute " + toolName + ": " + e.getCause().getMessage(),
+                                              e.getCause() );
+        }
+        catch ( final ReflectiveOperationException e )
+        {
+            throw new MojoExecutionException( "Unable to execute " + toolName + ": " + e.getMessage(), e );
+        }
+        finally
+        {
+            out.flush();
+            err.flush();
+        }
     }
 
 }
@@ -0,0 +1,315 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Puts files into staging directories and into the image by creating hard
+ * links or copy-on-write clones (reflinks) where the file system allows it
+ * and by copying otherwise.
+ *
+ * <p>
+ * Staged files share their content with the source, so they must never be
+ * modified in place. All tools used by jpacktool only read them. An instance
+ * may be used by several threads at the same time.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class FileStager {
+
+	/**
+	 * How files are staged.
+	 */
+	public enum Mode {
+		/** always copy */
+		COPY,
+		/** hard link, copy if source and target are on different file systems */
+		LINK,
+		/** copy-on-write clone, copy if the file system does not support it */
+		REFLINK,
+		/** hard link, then reflink, then copy */
+		AUTO;
+
+		/**
+		 * Parse a mode.
+		 *
+		 * @param value the mode name, case is ignored
+		 * @return the mode
+		 * @throws MojoFailureException if the value is not a mode
+		 */
+		public static Mode parse(final String value) throws MojoFailureException {
+			try {
+				return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+			} catch (final IllegalArgumentException e) {
+				throw new MojoFailureException(
+						"invalid staging mode " + value + ", valid modes are copy, link, reflink and auto");
+			}
+		}
+	}
+
+	/**
+	 * How a file has actually been staged.
+	 */
+	public enum Method {
+		LINK, REFLINK, COPY, UNCHANGED
+	}
+
+	private static final long REFLINK_TIMEOUT_SECONDS = 60;
+
+	private final Mode mode;
+
+	private final Log log;
+
+	/**
+	 * Pairs of file stores for which linking or cloning has failed, the key is
+	 * the method followed by the names of the stores.
+	 */
+	private final Map<String, Boolean> unsupported = new ConcurrentHashMap<>();
+
+	private final AtomicLong links = new AtomicLong();
+
+	private final AtomicLong reflinks = new AtomicLong();
+
+	private final AtomicLong copies = new AtomicLong();
+
+	private final AtomicLong copiedBytes = new AtomicLong();
+
+	private JarStore jarStore;
+
+	public FileStager(final Mode mode, final Log log) {
+		this.mode = mode;
+		this.log = log;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Set a store jars are put into before they are staged from there. The store
+	 * is not used if files are always copied.
+	 *
+	 * @param jarStore the store or <code>null</code>
+	 */
+	public void setJarStore(final JarStore jarStore) {
+		this.jarStore = jarStore;
+	}
+
+	public JarStore getJarStore() {
+		return jarStore;
+	}
+
+	/**
+	 * Stage a file. An existing target is replaced unless it already is the
+	 * source file. If a jar store is set, jars are linked or cloned from the
+	 * store.
+	 *
+	 * @param file   the source file
+	 * @param target the target file
+	 * @return how the file has been staged
+	 * @throws IOException on i/o error
+	 */
+	public Method stage(final Path file, final Path target) throws IOException {
+		Path source = file;
+		if ((jarStore != null) && (mode != Mode.COPY) && jarStore.accepts(source)) {
+			source = jarStore.put(source);
+		}
+
+		if (Files.exists(target) && Files.isSameFile(source, target)) {
+			return Method.UNCHANGED;
+		}
+
+		if ((mode == Mode.LINK) || (mode == Mode.AUTO)) {
+			if (tryLink(source, target)) {
+				links.incrementAndGet();
+				return Method.LINK;
+			}
+		}
+		if ((mode == Mode.REFLINK) || (mode == Mode.AUTO)) {
+			if (tryReflink(source, target)) {
+				reflinks.incrementAndGet();
+				return Method.REFLINK;
+			}
+		}
+
+		copy(source, target);
+		copies.incrementAndGet();
+		copiedBytes.addAndGet(Files.size(target));
+		return Method.COPY;
+	}
+
+	/**
+	 * Copy a file by channel transfer, which lets the operating system copy the
+	 * data without passing it through the JVM where possible. The data is
+	 * written to a temporary file which is renamed to the target, so readers
+	 * never see a partially written jar.
+	 *
+	 * @param source the source file
+	 * @param target the target file
+	 * @throws IOException on i/o error
+	 */
+	protected void copy(final Path source, final Path target) throws IOException {
+		final Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			final long size = in.size();
+			long position = 0;
+			while (position < size) {
+				final long n = in.transferTo(position, size - position, out);
+				if (n <= 0) {
+					throw new IOException(source + " has been truncated while copying");
+				}
+				position += n;
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		try {
+			Files.move(tmp, target, REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(tmp, target, REPLACE_EXISTING);
+		}
+	}
+
+	private boolean tryLink(final Path source, final Path target) throws IOException {
+		final String key = getStoreKey("link", source, target);
+		if ((key == null) || unsupported.containsKey(key)) {
+			return false;
+		}
+		Files.deleteIfExists(target);
+		try {
+			Files.createLink(target, source);
+			return true;
+		} catch (final IOException | UnsupportedOperationException | SecurityException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("can not link " + source + " to " + target + ": " + e);
+			}
+			unsupported.put(key, Boolean.TRUE);
+			return false;
+		}
+	}
+
+	private boolean tryReflink(final Path source, final Path target) throws IOException {
+		final String key = getStoreKey("reflink", source, target);
+		if ((key == null) || unsupported.containsKey(key)) {
+			return false;
+		}
+
+		final ProcessBuilder pb;
+		if (SystemUtils.IS_OS_LINUX) {
+			pb = new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString());
+		} else if (SystemUtils.IS_OS_MAC) {
+			pb = new ProcessBuilder("cp", "-c", source.toString(), target.toString());
+		} else {
+			unsupported.put(key, Boolean.TRUE);
+			return false;
+		}
+
+		Files.deleteIfExists(target);
+		try {
+			// discard the output so the process can not block on a full pipe,
+			// cp is only used on Linux and macOS
+			final Process process = pb.redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null"))).start();
+			process.getOutputStream().close();
+			if (process.waitFor(REFLINK_TIMEOUT_SECONDS, TimeUnit.SECONDS) && (process.exitValue() == 0)) {
+				return true;
+			}
+			process.destroyForcibly();
+		} catch (final IOException e) {
+			// cp not available
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while cloning " + source, e);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("can not clone " + source + " to " + target);
+		}
+		Files.deleteIfExists(target);
+		unsupported.put(key, Boolean.TRUE);
+		return false;
+	}
+
+	/**
+	 * Get the key of the file stores of source and target.
+	 *
+	 * @return the key or <code>null</code> if both files are on different file
+	 *         stores
+	 */
+	private static String getStoreKey(final String method, final Path source, final Path target)
+			throws IOException {
+		final Path dir = target.toAbsolutePath().getParent();
+		if (dir == null) {
+			return null;
+		}
+		final FileStore sourceStore = Files.getFileStore(source);
+		final FileStore targetStore = Files.getFileStore(dir);
+		if (!sourceStore.equals(targetStore)) {
+			return null;
+		}
+		return method + ":" + sourceStore.name() + ":" + sourceStore.type();
+	}
+
+	/**
+	 * Get the number of bytes which had to be copied.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes.get();
+	}
+
+	/**
+	 * Log how many files have been linked, cloned and copied.
+	 */
+	public void logStatistics() {
+		if ((links.get() + reflinks.get() + copies.get()) > 0) {
+			log.info("staged files: " + links.get() + " linked, " + reflinks.get() + " cloned, " + copies.get()
+					+ " copied (" + copiedBytes.get() + " bytes)");
+		}
+		if ((jarStore != null) && ((jarStore.getAdded() + jarStore.getReused()) > 0)) {
+			log.info("jar store " + jarStore.getDirectory() + ": " + jarStore.getAdded() + " added, "
+					+ jarStore.getReused() + " reused");
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Plan of the files to put into an image.
+ *
+ * <p>
+ * The plan is a list of source to target operations which is computed before
+ * anything is changed. It can be logged instead of being executed. Executing
+ * it stages all files by means of a {@link FileStager} in parallel, so the
+ * sources are left intact and executing the same plan again gives the same
+ * result.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class ImageLayout {
+
+	/**
+	 * A single file to put into the image.
+	 */
+	public static class Operation {
+
+		private final Path source;
+
+		private final Path target;
+
+		public Operation(Path source, Path target) {
+			this.source = source;
+			this.target = target;
+		}
+
+		public Path getSource() {
+			return source;
+		}
+
+		public Path getTarget() {
+			return target;
+		}
+
+		@Override
+		public String toString() {
+			return source + " -> " + target;
+		}
+	}
+
+	private final Map<Path, Operation> operations = new LinkedHashMap<>();
+
+	private final AtomicLong copiedBytes = new AtomicLong();
+
+	/**
+	 * Add an operation. A later operation with the same target replaces an
+	 * earlier one.
+	 *
+	 * @param source the source file
+	 * @param target the target file
+	 */
+	public void add(Path source, Path target) {
+		operations.put(target.toAbsolutePath().normalize(), new Operation(source, target));
+	}
+
+	/**
+	 * Add all jars of a directory.
+	 *
+	 * @param directory       the directory, ignored if it does not exist
+	 * @param targetDirectory the directory in the image
+	 * @throws IOException on i/o error
+	 */
+	public void addJars(File directory, Path targetDirectory) throws IOException {
+		if ((directory == null) || !directory.isDirectory()) {
+			return;
+		}
+		Set<Path> jars = new TreeSet<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath(),
+				path -> path.toString().endsWith(".jar"))) {
+			for (Path jar : stream) {
+				jars.add(jar);
+			}
+		}
+		for (Path jar : jars) {
+			add(jar, targetDirectory.resolve(jar.getFileName()));
+		}
+	}
+
+	/**
+	 * Get the planned operations.
+	 *
+	 * @return the operations in the order they have been added
+	 */
+	public List<Operation> getOperations() {
+		return Collections.unmodifiableList(new ArrayList<>(operations.values()));
+	}
+
+	public int size() {
+		return operations.size();
+	}
+
+	/**
+	 * Get the number of bytes which had to be copied because they could not be
+	 * linked.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getCopiedBytes() {
+		return copiedBytes.get();
+	}
+
+	/**
+	 * Log the plan.
+	 *
+	 * @param log    the logger
+	 * @param prefix text put in front of each operation
+	 */
+	public void log(Log log, String prefix) {
+		for (Operation operation : operations.values()) {
+			log.info(prefix + operation);
+		}
+	}
+
+	/**
+	 * Execute the plan. All target directories are created first, then the files
+	 * are staged in parallel. All operations are tried even if some of them
+	 * fail.
+	 *
+	 * @param stager  the stager
+	 * @param threads the number of threads
+	 * @throws IOException if an operation has failed, further failures are added
+	 *                     as suppressed exceptions
+	 */
+	public void execute(FileStager stager, int threads) throws IOException {
+		Set<Path> directories = new TreeSet<>();
+		for (Operation operation : operations.values()) {
+			Path dir = operation.getTarget().toAbsolutePath().getParent();
+			if (dir != null) {
+				directories.add(dir);
+			}
+		}
+		for (Path dir : directories) {
+			Files.createDirectories(dir);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, operations.size())));
+		IOException failure = null;
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (Operation operation : operations.values()) {
+				futures.add(executor.submit(() -> {
+					if (stager.stage(operation.getSource(), operation.getTarget()) == FileStager.Method.COPY) {
+						copiedBytes.addAndGet(Files.size(operation.getTarget()));
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					IOException ex = (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+							: new IOException(e.getCause());
+					if (failure == null) {
+						failure = ex;
+					} else {
+						failure.addSuppressed(ex);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while putting files into the image", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Size of a Java Run Time Image broken down by the JDK modules in
+ * <code>lib/modules</code>, native libraries, jars of the application folder
+ * and the remaining directories.
+ *
+ * <p>
+ * The modules are read by means of the jrt file system of the image itself,
+ * their sizes are the uncompressed sizes of their resources. System modules
+ * are attributed to the artifacts which need them according to jdeps, together
+ * with the modules they require.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class ImageSizeAnalyzer {
+
+	private static final String MODULES = "lib/modules";
+
+	private final File image;
+
+	private final String appFolderName;
+
+	private long totalSize;
+
+	private final Map<String, Long> moduleSizes = new TreeMap<>();
+
+	private final Map<String, Set<String>> moduleRequires = new TreeMap<>();
+
+	private final Map<String, Long> nativeLibrarySizes = new TreeMap<>();
+
+	private final Map<String, Long> appJarSizes = new TreeMap<>();
+
+	private final Map<String, Long> directorySizes = new TreeMap<>();
+
+	/**
+	 * Create an analyzer.
+	 *
+	 * @param image         the image directory
+	 * @param appFolderName the name of the application folder, may be
+	 *                      <code>null</code>
+	 */
+	public ImageSizeAnalyzer(File image, String appFolderName) {
+		this.image = image;
+		this.appFolderName = ((appFolderName == null) || appFolderName.isEmpty()) ? null : appFolderName;
+	}
+
+	/**
+	 * Analyze the image.
+	 *
+	 * @throws IOException on i/o error
+	 */
+	public void analyze() throws IOException {
+		final Path base = image.toPath();
+		Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					addFile(base.relativize(file).toString().replace('\\', '/'), attrs.size());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		if (new File(image, MODULES).isFile()) {
+			readModules();
+		}
+	}
+
+	private void addFile(String path, long size) {
+		totalSize += size;
+		final String name = path.substring(path.lastIndexOf('/') + 1);
+		if (MODULES.equals(path)) {
+			return;
+		}
+		if (isNativeLibrary(name)) {
+			nativeLibrarySizes.put(path, size);
+		} else if ((appFolderName != null) && path.startsWith(appFolderName + "/") && name.endsWith(".jar")) {
+			appJarSizes.put(path, size);
+		} else {
+			final int i = path.indexOf('/');
+			String dir = (i < 0) ? "." : path.substring(0, i);
+			if ((appFolderName != null) && dir.equals(appFolderName)) {
+				// resources of the application by their own directory
+				final int j = path.indexOf('/', i + 1);
+				dir = (j < 0) ? dir : path.substring(0, j);
+			}
+			add(directorySizes, dir, size);
+		}
+	}
+
+	static boolean isNativeLibrary(String name) {
+		return name.endsWith(".so") || name.contains(".so.") || name.endsWith(".dylib") || name.endsWith(".dll")
+				|| name.endsWith(".jnilib");
+	}
+
+	/**
+	 * Read the modules of <code>lib/modules</code> by means of the jrt file
+	 * system of the image, which also works if the image has another Java
+	 * version than the running JVM.
+	 */
+	private void readModules() throws IOException {
+		final Map<String, String> env = Collections.singletonMap("java.home", image.getAbsolutePath());
+		final URL jrtFs = new File(image, "lib/jrt-fs.jar").toURI().toURL();
+		try (URLClassLoader loader = new URLClassLoader(new URL[] { jrtFs });
+				FileSystem fs = FileSystems.newFileSystem(URI.create("jrt:/"), env, loader)) {
+			final Path modules = fs.getPath("/modules");
+			final List<Path> dirs = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(modules)) {
+				for (final Path dir : stream) {
+					dirs.add(dir);
+				}
+			}
+			for (final Path dir : dirs) {
+				final String module = dir.getFileName().toString();
+				final long[] size = { 0 };
+				Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						size[0] += attrs.size();
+						return FileVisitResult.CONTINUE;
+					}
+				});
+				moduleSizes.put(module, size[0]);
+				final Path moduleInfo = dir.resolve("module-info.class");
+				if (Files.isRegularFile(moduleInfo)) {
+					try (InputStream is = Files.newInputStream(moduleInfo)) {
+						moduleRequires.put(module, readRequires(is));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the names of the required modules from a module descriptor by means
+	 * of <code>java.lang.module.ModuleDescriptor</code>, which is not available
+	 * on Java 8.
+	 */
+	private static Set<String> readRequires(InputStream is) {
+		final Set<String> requires = new TreeSet<>();
+		try {
+			final Class<?> descriptorClass = Class.forName("java.lang.module.ModuleDescriptor");
+			final Object descriptor = descriptorClass.getMethod("read", InputStream.class).invoke(null, is);
+			final Class<?> requiresClass = Class.forName("java.lang.module.ModuleDescriptor$Requires");
+			final Method name = requiresClass.getMethod("name");
+			for (final Object r : (Collection<?>) descriptorClass.getMethod("requires").invoke(descriptor)) {
+				requires.add((String) name.invoke(r));
+			}
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			// requires are unknown, only direct dependencies are attributed
+		}
+		return requires;
+	}
+
+	private static void add(Map<String, Long> map, String key, long size) {
+		final Long old = map.get(key);
+		map.put(key, (old == null) ? size : old + size);
+	}
+
+	public long getTotalSize() {
+		return totalSize;
+	}
+
+	public long getModulesFileSize() {
+		return new File(image, MODULES).length();
+	}
+
+	public Map<String, Long> getModuleSizes() {
+		return moduleSizes;
+	}
+
+	public Map<String, Long> getNativeLibrarySizes() {
+		return nativeLibrarySizes;
+	}
+
+	public Map<String, Long> getAppJarSizes() {
+		return appJarSizes;
+	}
+
+	public Map<String, Long> getDirectorySizes() {
+		return directorySizes;
+	}
+
+	/**
+	 * Get the system modules of the image needed by a list of modules,
+	 * including the modules they require.
+	 *
+	 * @param modules the modules
+	 * @return the modules and all modules they require which are in the image
+	 */
+	public Set<String> getModuleClosure(Collection<String> modules) {
+		final Set<String> closure = new TreeSet<>();
+		final Deque<String> todo = new ArrayDeque<>(modules);
+		while (!todo.isEmpty()) {
+			final String module = todo.pop();
+			if (moduleSizes.containsKey(module) && closure.add(module)) {
+				final Set<String> requires = moduleRequires.get(module);
+				if (requires != null) {
+					todo.addAll(requires);
+				}
+			}
+		}
+		return closure;
+	}
+
+	/**
+	 * Sum the sizes of modules.
+	 *
+	 * @param modules the modules
+	 * @return the size in bytes
+	 */
+	public long getModulesSize(Collection<String> modules) {
+		long size = 0;
+		for (final String module : modules) {
+			final Long s = moduleSizes.get(module);
+			if (s != null) {
+				size += s;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Attribute the system modules to the artifacts which need them. For each
+	 * artifact the modules it needs, their size and the size of the modules no
+	 * other artifact needs are computed.
+	 *
+	 * @param linkedSystemModulesMap the system modules needed by each artifact
+	 * @return the attribution by artifact with the keys <code>direct</code>,
+	 *         <code>modules</code>, <code>bytes</code> and
+	 *         <code>exclusiveBytes</code>
+	 */
+	public Map<String, Map<String, Object>> attribute(Map<String, List<String>> linkedSystemModulesMap) {
+		final Map<String, Set<String>> closures = new LinkedHashMap<>();
+		final Map<String, Integer> users = new TreeMap<>();
+		for (final Map.Entry<String, List<String>> e : linkedSystemModulesMap.entrySet()) {
+			final Set<String> closure = getModuleClosure(e.getValue());
+			closures.put(e.getKey(), closure);
+			for (final String module : closure) {
+				final Integer n = users.get(module);
+				users.put(module, (n == null) ? 1 : n + 1);
+			}
+		}
+		final Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+		for (final Map.Entry<String, Set<String>> e : closures.entrySet()) {
+			final List<String> exclusive = new ArrayList<>();
+			for (final String module : e.getValue()) {
+				if (users.get(module) == 1) {
+					exclusive.add(module);
+				}
+			}
+			final Map<String, Object> info = new LinkedHashMap<>();
+			info.put("direct", new TreeSet<>(linkedSystemModulesMap.get(e.getKey())));
+			info.put("modules", e.getValue());
+			info.put("bytes", getModulesSize(e.getValue()));
+			info.put("exclusiveBytes", getModulesSize(exclusive));
+			result.put(e.getKey(), info);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the artifacts which need a system module directly.
+	 *
+	 * @param linkedSystemModulesMap the system modules needed by each artifact
+	 * @return the artifacts by module
+	 */
+	public static Map<String, Set<String>> getArtifactsByModule(Map<String, List<String>> linkedSystemModulesMap) {
+		final Map<String, Set<String>> result = new TreeMap<>();
+		for (final Map.Entry<String, List<String>> e : linkedSystemModulesMap.entrySet()) {
+			for (final String module : e.getValue()) {
+				Set<String> artifacts = result.get(module);
+				if (artifacts == null) {
+					artifacts = new TreeSet<>();
+					result.put(module, artifacts);
+				}
+				artifacts.add(e.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Write the report as JSON.
+	 *
+	 * @param file                   the report file
+	 * @param linkedSystemModulesMap the system modules needed by each artifact,
+	 *                               may be <code>null</code>
+	 * @throws IOException on i/o error
+	 */
+	public void writeJson(File file, Map<String, List<String>> linkedSystemModulesMap) throws IOException {
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+			pw.println("{\"image\":" + Json.quote(image.getAbsolutePath()) + ",");
+			pw.println("\"totalBytes\":" + totalSize + ",");
+			pw.println("\"modulesFileBytes\":" + getModulesFileSize() + ",");
+			final Map<String, Set<String>> byModule = (linkedSystemModulesMap == null)
+					? Collections.<String, Set<String>>emptyMap()
+					: getArtifactsByModule(linkedSystemModulesMap);
+			final Map<String, Map<String, Object>> attribution = (linkedSystemModulesMap == null)
+					? Collections.<String, Map<String, Object>>emptyMap()
+					: attribute(linkedSystemModulesMap);
+			pw.println("\"modules\":{");
+			String sep = "";
+			for (final Map.Entry<String, Long> e : sortBySize(moduleSizes).entrySet()) {
+				pw.print(sep + Json.quote(e.getKey()) + ":{\"bytes\":" + e.getValue());
+				final Set<String> artifacts = byModule.get(e.getKey());
+				if (artifacts != null) {
+					pw.print(",\"neededBy\":" + toJson(artifacts));
+				}
+				// artifacts which need the module by means of another module
+				final Set<String> indirect = new TreeSet<>();
+				for (final Map.Entry<String, Map<String, Object>> a : attribution.entrySet()) {
+					if (((Collection<?>) a.getValue().get("modules")).contains(e.getKey())
+							&& ((artifacts == null) || !artifacts.contains(a.getKey()))) {
+						indirect.add(a.getKey());
+					}
+				}
+				if (!indirect.isEmpty()) {
+					pw.print(",\"pulledInBy\":" + toJson(indirect));
+				}
+				pw.print("}");
+				sep = ",\n";
+			}
+			pw.println("},");
+			pw.println("\"nativeLibraries\":" + toJson(sortBySize(nativeLibrarySizes)) + ",");
+			pw.println("\"appJars\":" + toJson(sortBySize(appJarSizes)) + ",");
+			pw.print("\"directories\":" + toJson(sortBySize(directorySizes)));
+			if (linkedSystemModulesMap != null) {
+				pw.println(",");
+				pw.println("\"artifacts\":{");
+				sep = "";
+				for (final Map.Entry<String, Map<String, Object>> e : attribution.entrySet()) {
+					final Map<String, Object> info = e.getValue();
+					pw.print(sep + Json.quote(e.getKey()) + ":{\"direct\":"
+							+ toJson((Collection<?>) info.get("direct")) + ",\"modules\":"
+							+ toJson((Collection<?>) info.get("modules")) + ",\"bytes\":" + info.get("bytes")
+							+ ",\"exclusiveBytes\":" + info.get("exclusiveBytes") + "}");
+					sep = ",\n";
+				}
+				pw.print("}");
+			}
+			pw.println("}");
+		}
+	}
+
+	/**
+	 * Sort sizes with the largest first.
+	 *
+	 * @param sizes the sizes
+	 * @return the sorted sizes
+	 */
+	public static Map<String, Long> sortBySize(Map<String, Long> sizes) {
+		final List<Map.Entry<String, Long>> entries = new ArrayList<>(sizes.entrySet());
+		entries.sort((e1, e2) -> {
+			final int c = Long.compare(e2.getValue(), e1.getValue());
+			return (c != 0) ? c : e1.getKey().compareTo(e2.getKey());
+		});
+		final Map<String, Long> result = new LinkedHashMap<>();
+		for (final Map.Entry<String, Long> e : entries) {
+			result.put(e.getKey(), e.getValue());
+		}
+		return result;
+	}
+
+	private static String toJson(Map<String, Long> sizes) {
+		final StringBuilder sb = new StringBuilder("{");
+		String sep = "";
+		for (final Map.Entry<String, Long> e : sizes.entrySet()) {
+			sb.append(sep).append(Json.quote(e.getKey())).append(':').append(e.getValue());
+			sep = ",";
+		}
+		return sb.append('}').toString();
+	}
+
+	private static String toJson(Collection<?> values) {
+		final StringBuilder sb = new StringBuilder("[");
+		String sep = "";
+		for (final Object value : values) {
+			sb.append(sep).append(Json.quote(String.valueOf(value)));
+			sep = ",";
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -26,6 +26,7 @@ import java.io.FileOutputStream;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -40,6 +41,7 @@ import org.apache.maven.plugins.annotations.ResolutionScope;
 import net.agilhard.maven.plugins.jpacktool.base.handler.CollectJarsHandler;
 import net.agilhard.maven.plugins.jpacktool.base.handler.GenerateClassPathHandler;
 import net.agilhard.maven.plugins.jpacktool.base.handler.GenerateJDepsHandler;
+import net.agilhard.maven.plugins.jpacktool.base.handler.JDepsResultCache;
 
 /**
  * Prepare execution of the jlink and jpackager goals by analyzing java module dependencies and copying files.
@@ -72,7 +74,98 @@ public class JPackToolPrepareMojo extends AbstractDependencyJarsMojo<GenerateJDe
 	
 	@Parameter(defaultValue = "false")
 	protected boolean useListDeps;
+
+	/**
+	 * Flag if jdeps should be called inside of the running JVM by means of the
+	 * ToolProvider API instead of forking a jdeps process for each jar.
+	 * <p>
+	 * This is only possible if the JDK of the toolchain is the JDK maven is
+	 * running with, otherwise jdeps is forked.
+	 * </p>
+	 */
+	@Parameter(defaultValue = "true")
+	protected boolean jdepsInProcess;
+
+	/**
+	 * Number of jdeps calls running in parallel. A value of 0 uses the number of
+	 * available processors, 1 runs jdeps sequentially.
+	 */
+	@Parameter(defaultValue = "0")
+	protected int jdepsThreads;
+
+	/**
+	 * Memory in megabytes reserved for each parallel jdeps call. The number of
+	 * threads is reduced if there is not enough free memory.
+	 */
+	@Parameter(defaultValue = "256")
+	protected int jdepsMemoryPerProcess;
+
+	/**
+	 * Engine used to find the module dependencies of the jars, either
+	 * <code>jdeps</code> or <code>classfile</code>. The classfile engine scans the
+	 * class files of the jars and maps the referenced packages to the modules of
+	 * the JDK without starting jdeps.
+	 */
+	@Parameter(defaultValue = "jdeps")
+	protected String dependencyAnalyzer;
+
+	/**
+	 * Analyze all jars of the staging directories with a single jdeps call
+	 * printing a summary per jar instead of calling jdeps for each jar.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean jdepsBatch;
+
+	/**
+	 * Version passed as --multi-release to jdeps in batch mode.
+	 */
+	@Parameter(defaultValue = "base")
+	protected String jdepsMultiRelease;
+
+	/**
+	 * Flag if the results of jdeps calls should be cached on disk.
+	 */
+	@Parameter(defaultValue = "true")
+	protected boolean jdepsCache;
+
+	/**
+	 * Directory of the jdeps result cache.
+	 */
+	@Parameter(defaultValue = "${user.home}/.m2/jpacktool-cache/jdeps")
+	protected File jdepsCacheDirectory;
+
+	/**
+	 * Maximum size of the jdeps result cache in megabytes.
+	 */
+	@Parameter(defaultValue = "64")
+	protected int jdepsCacheMaxSize;
 	
+	/**
+	 * Start analyzing the jars while the remaining jars are still being copied.
+	 * Not used with jdepsBatch or the classfile dependencyAnalyzer which need all
+	 * jars in the staging directories. A dependency of a jar may be resolved
+	 * below a later node of the dependency graph, so jdeps can see an incomplete
+	 * module path. A jar is therefore analyzed again if jars have been staged
+	 * after its analysis has been started or if jdeps reports a missing
+	 * dependency.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean pipelineJdeps;
+
+	/**
+	 * Number of threads staging jars concurrently, 0 for the number of
+	 * processors.
+	 */
+	@Parameter(defaultValue = "0")
+	protected int stagingThreads;
+
+	/**
+	 * Delete jars from the staging directories which are no longer dependencies
+	 * of the project.
+	 */
+	@Parameter(defaultValue = "true")
+	protected boolean deleteStaleJars;
+
 	protected boolean skipJDeps;
 	
 	protected boolean skipCopy;
@@ -162,25 +255,70 @@ public class JPackToolPrepareMojo extends AbstractDependencyJarsMojo<GenerateJDe
 
 		executeBeforeCopy();
 		
-		if ( ! skipCopy ) {
-			// copy jars first
-			CollectJarsHandler collectJarsHandler = createCopyHandler();
-			collectJarsHandler.execute();
-		}
-		
-		this.genClassPathHandler = creatGenClassPathHandler();
-		this.genClassPathHandler.execute();
+		boolean pipeline = pipelineJdeps && (!skipCopy) && (!isSkipJDeps()) && (!jdepsBatch)
+				&& "jdeps".equals(dependencyAnalyzer);
 
-		if ( ! isSkipJDeps() ) {
-			super.executeToolMain();
-		} else {
-	        this.handler = createHandler();
+		try {
+			if ( ! skipCopy ) {
+				// copy jars first
+				CollectJarsHandler collectJarsHandler = createCopyHandler();
+				if ( pipeline ) {
+					// analyze the jars while the others are still being copied
+					this.handler = createHandler();
+					this.handler.startPrefetch();
+					collectJarsHandler.setCopyListener(this.handler::prefetchJdeps);
+				}
+				final PerformanceTrace.Stage collectStage = getPerformanceTrace().start("collect jars");
+				try {
+					collectJarsHandler.execute();
+				} finally {
+					collectStage.close();
+				}
+			}
+
+			this.genClassPathHandler = creatGenClassPathHandler();
+			final PerformanceTrace.Stage classPathStage = getPerformanceTrace().start("generate classpath");
+			try {
+				this.genClassPathHandler.execute();
+			} finally {
+				classPathStage.close();
+			}
+
+			if ( pipeline ) {
+				this.handler.setClassPathElements(this.genClassPathHandler.getClassPathElements());
+				this.handler.setJarsOnClassPath(this.genClassPathHandler.getJarsOnClassPath());
+				final PerformanceTrace.Stage jdepsStage = getPerformanceTrace().start("generate jdeps");
+				try {
+					this.handler.execute();
+				} finally {
+					jdepsStage.close();
+				}
+			} else if ( ! isSkipJDeps() ) {
+				final PerformanceTrace.Stage jdepsStage = getPerformanceTrace().start("generate jdeps");
+				try {
+					super.executeToolMain();
+				} finally {
+					jdepsStage.close();
+				}
+			} else {
+		        this.handler = createHandler();
+			}
+		} finally {
+			if ( this.handler != null ) {
+				this.handler.stopPrefetch();
+			}
 		}
 		
 		executeAfterJDeps();
 
 		GenerateJDepsHandler handler = getHandler();
 
+		JDepsResultCache cache = handler.getJdepsResultCache();
+		if ((cache != null) && ((cache.getHits() + cache.getMisses()) > 0)) {
+			getLog().info("jdeps cache " + cache.getDirectory() + ": " + cache.getHits() + " hits, "
+					+ cache.getMisses() + " misses");
+		}
+
 		
 		
 		Properties props = this.project.getProperties();
@@ -274,6 +412,15 @@ public class JPackToolPrepareMojo extends AbstractDependencyJarsMojo<GenerateJDe
 
 	
 	
+	/**
+	 * Check if jdeps can be called inside of the running JVM.
+	 *
+	 * @return <code>true</code> if jdeps can be run in process
+	 */
+	protected boolean canRunJDepsInProcess() {
+		return jdepsInProcess && canRunInProcess(jdepsExecutable);
+	}
+
 	public boolean isSkipJDeps() {
 		return skipJDeps;
 	}
@@ -295,15 +442,48 @@ public class JPackToolPrepareMojo extends AbstractDependencyJarsMojo<GenerateJDe
 	}
 
 	public CollectJarsHandler createCopyHandler() {
-		return new CollectJarsHandler(this, dependencyGraphBuilder);
+		CollectJarsHandler collectJarsHandler = new CollectJarsHandler(this, dependencyGraphBuilder);
+		collectJarsHandler.setStagingThreads(stagingThreads);
+		collectJarsHandler.setDeleteStaleJars(deleteStaleJars);
+		return collectJarsHandler;
 	}
 
 	@Override
 	public GenerateJDepsHandler createHandler() throws MojoExecutionException, MojoFailureException {
-		return new GenerateJDepsHandler(this, dependencyGraphBuilder, jdepsExecutable, generateAutomaticJdeps, generateClassPathJdeps,
-				generateModuleJdeps, this.genClassPathHandler.getClassPathElements(),
-				this.genClassPathHandler.getJarsOnClassPath(), ignoreMissingDeps, useListDeps);
+		GenerateJDepsHandler jdepsHandler = new GenerateJDepsHandler(this, dependencyGraphBuilder, jdepsExecutable,
+				generateAutomaticJdeps, generateClassPathJdeps, generateModuleJdeps,
+				this.genClassPathHandler == null ? new ArrayList<>() : this.genClassPathHandler.getClassPathElements(),
+				this.genClassPathHandler == null ? new ArrayList<>() : this.genClassPathHandler.getJarsOnClassPath(),
+				ignoreMissingDeps, useListDeps);
+
+		boolean inProcess = canRunJDepsInProcess();
+		if (jdepsInProcess && !inProcess) {
+			getLog().debug("jdeps can not be run in process, forking " + jdepsExecutable);
+		}
+		jdepsHandler.setJdepsInProcess(inProcess);
+
+		int threads = jdepsThreads > 0 ? jdepsThreads : Runtime.getRuntime().availableProcessors();
+		jdepsHandler.setJdepsThreads(threads);
+		jdepsHandler.setJdepsMemoryPerProcess(jdepsMemoryPerProcess * 1024L * 1024L);
+
+		if ("classfile".equals(dependencyAnalyzer)) {
+			jdepsHandler.setClassFileAnalyzer(true);
+			if (jdepsBatch) {
+				getLog().info("jdepsBatch is ignored with dependencyAnalyzer classfile");
+			}
+		} else if (!"jdeps".equals(dependencyAnalyzer)) {
+			throw new MojoExecutionException("unknown dependencyAnalyzer " + dependencyAnalyzer);
+		} else {
+			jdepsHandler.setJdepsBatch(jdepsBatch);
+		}
+		jdepsHandler.setJdepsMultiRelease(jdepsMultiRelease);
+
+		if (jdepsCache && (jdepsCacheDirectory != null)) {
+			jdepsHandler.setJdepsResultCache(new JDepsResultCache(jdepsCacheDirectory,
+					jdepsCacheMaxSize * 1024L * 1024L, jdepsExecutable, getLog()));
+		}
 
+		return jdepsHandler;
 	}
 
 }
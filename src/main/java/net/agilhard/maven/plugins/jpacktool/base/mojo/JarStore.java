@@ -0,0 +1,375 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Machine wide store of jars addressed by the SHA-256 of their content.
+ *
+ * <p>
+ * Each distinct jar is stored once as <code>&lt;sha256&gt;.jar</code> in a
+ * subdirectory named after the first two characters of its checksum. Staging
+ * directories and images of all projects link to the stored jars, so a jar
+ * used by many projects occupies the disk only once. Stored jars are made read
+ * only because they are shared.
+ * </p>
+ *
+ * <p>
+ * Only released artifacts of the local repository are stored. Snapshots and
+ * jars built by the project change with every build and would only fill the
+ * store. The store is bounded in size, the least recently used jars are
+ * removed first.
+ * </p>
+ *
+ * <p>
+ * The checksum of a source jar is remembered under a key made of its path,
+ * size and modification time, so unchanged jars are not read again by
+ * consecutive builds. Several builds may use the same store at the same time:
+ * all files are written to temporary files and renamed.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class JarStore {
+
+	private static final String SOURCES = "sources";
+
+	private static final String TMP = "tmp";
+
+	private static final String JAR = ".jar";
+
+	private static final String USED = ".used";
+
+	private static final long STALE_TMP_MILLIS = 24L * 60L * 60L * 1000L;
+
+	private final Map<String, String> checksums = new ConcurrentHashMap<>();
+
+	private final File directory;
+
+	private final Path repository;
+
+	private final long maxSize;
+
+	private final Log log;
+
+	private final AtomicLong added = new AtomicLong();
+
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * Create a store.
+	 *
+	 * @param directory  the store directory
+	 * @param repository the local repository, only its released artifacts are
+	 *                   stored
+	 * @param maxSize    the maximum size of all stored jars in bytes
+	 * @param log        the logger
+	 */
+	public JarStore(File directory, File repository, long maxSize, Log log) {
+		this.directory = directory;
+		this.repository = repository == null ? null : repository.toPath().toAbsolutePath().normalize();
+		this.maxSize = maxSize;
+		this.log = log;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Check if a file is a jar contained in the store.
+	 *
+	 * @param file the file
+	 * @return <code>true</code> if the file is located in the store directory
+	 */
+	public boolean contains(Path file) {
+		return file.toAbsolutePath().normalize().startsWith(directory.toPath().toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Check if a jar belongs into the store: it must be a released artifact of
+	 * the local repository.
+	 *
+	 * @param source the jar
+	 * @return <code>true</code> if the jar can be stored
+	 */
+	public boolean accepts(Path source) {
+		if ((repository == null) || !source.getFileName().toString().endsWith(JAR)) {
+			return false;
+		}
+		Path path = source.toAbsolutePath().normalize();
+		if (!path.startsWith(repository) || contains(path)) {
+			return false;
+		}
+		// the version directory of a snapshot, timestamped snapshot jars included
+		Path version = path.getParent();
+		return (version != null) && !version.getFileName().toString().endsWith("-SNAPSHOT");
+	}
+
+	/**
+	 * Put a jar into the store unless it is already there.
+	 *
+	 * @param source the jar
+	 * @return the jar in the store
+	 * @throws IOException on i/o error
+	 */
+	public Path put(Path source) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+		String sourceKey = sha256(source.toAbsolutePath().normalize().toString() + "|" + attrs.size() + "|"
+				+ attrs.lastModifiedTime().toMillis());
+
+		String checksum = getRememberedChecksum(sourceKey);
+		if (checksum != null) {
+			Path stored = getPath(checksum);
+			if (Files.isRegularFile(stored) && (Files.size(stored) == attrs.size())) {
+				reused.incrementAndGet();
+				markUsed(stored);
+				return stored;
+			}
+		}
+
+		// copy to a temporary file in the store while computing the checksum
+		Path tmpDir = directory.toPath().resolve(TMP);
+		Files.createDirectories(tmpDir);
+		Path tmp = tmpDir.resolve(UUID.randomUUID().toString() + JAR);
+		MessageDigest digest = newDigest();
+		try (InputStream is = new DigestInputStream(Files.newInputStream(source), digest)) {
+			Files.copy(is, tmp);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		checksum = AbstractToolMojo.bytesToHex(digest.digest());
+
+		Path stored = getPath(checksum);
+		if (Files.isRegularFile(stored)) {
+			Files.delete(tmp);
+			reused.incrementAndGet();
+		} else {
+			Files.createDirectories(stored.getParent());
+			if (!SystemUtils.IS_OS_WINDOWS) {
+				// read only files can not be deleted on windows
+				tmp.toFile().setReadOnly();
+			}
+			move(tmp, stored);
+			added.incrementAndGet();
+		}
+
+		rememberChecksum(sourceKey, checksum);
+		markUsed(stored);
+		return stored;
+	}
+
+	/**
+	 * Remove the least recently used jars until the store is not larger than its
+	 * maximum size, the remembered checksums of removed jars and temporary files
+	 * left over by crashed builds. Removing a jar does not affect staging
+	 * directories or images linking to it.
+	 */
+	public void evict() {
+		File[] dirs = directory.listFiles(File::isDirectory);
+		if (dirs == null) {
+			return;
+		}
+		List<File> jars = new ArrayList<>();
+		Map<File, Long> lastUsed = new HashMap<>();
+		long total = 0;
+		for (File dir : dirs) {
+			if (dir.getName().equals(SOURCES) || dir.getName().equals(TMP)) {
+				continue;
+			}
+			File[] files = dir.listFiles((d, name) -> name.endsWith(JAR));
+			if (files == null) {
+				continue;
+			}
+			for (File jar : files) {
+				File used = getUsedMarker(jar.toPath()).toFile();
+				jars.add(jar);
+				lastUsed.put(jar, used.isFile() ? used.lastModified() : jar.lastModified());
+				total += jar.length();
+			}
+		}
+
+		jars.sort(Comparator.comparingLong(lastUsed::get));
+		int removed = 0;
+		for (File jar : jars) {
+			if (total <= maxSize) {
+				break;
+			}
+			long length = jar.length();
+			jar.setWritable(true);
+			if (jar.delete()) {
+				getUsedMarker(jar.toPath()).toFile().delete();
+				total -= length;
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			log.info("removed " + removed + " jars from jar store " + directory);
+			deleteOrphanedSources();
+		}
+		deleteStaleFiles(new File(directory, TMP));
+	}
+
+	private void deleteOrphanedSources() {
+		File[] sources = new File(directory, SOURCES).listFiles();
+		if (sources == null) {
+			return;
+		}
+		for (File source : sources) {
+			try {
+				String checksum = new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8).trim();
+				if ((checksum.length() != 64) || !Files.isRegularFile(getPath(checksum))) {
+					source.delete();
+				}
+			} catch (IOException e) {
+				// written by another build right now
+			}
+		}
+	}
+
+	private static void deleteStaleFiles(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			if (now - file.lastModified() > STALE_TMP_MILLIS) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Remember the use of a stored jar for the eviction. The jar itself is not
+	 * touched because it shares its modification time with all links to it.
+	 */
+	private static void markUsed(Path stored) throws IOException {
+		Path used = getUsedMarker(stored);
+		if (Files.exists(used)) {
+			Files.setLastModifiedTime(used, FileTime.fromMillis(System.currentTimeMillis()));
+		} else {
+			try {
+				Files.createFile(used);
+			} catch (FileAlreadyExistsException e) {
+				// created by another build
+			}
+		}
+	}
+
+	private static Path getUsedMarker(Path stored) {
+		String name = stored.getFileName().toString();
+		return stored.resolveSibling(name.substring(0, name.length() - JAR.length()) + USED);
+	}
+
+	/**
+	 * Get the number of jars added to the store.
+	 *
+	 * @return the number of jars
+	 */
+	public long getAdded() {
+		return added.get();
+	}
+
+	/**
+	 * Get the number of jars which have already been in the store.
+	 *
+	 * @return the number of jars
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	private Path getPath(String checksum) {
+		return directory.toPath().resolve(checksum.substring(0, 2)).resolve(checksum + JAR);
+	}
+
+	private String getRememberedChecksum(String sourceKey) throws IOException {
+		String checksum = checksums.get(sourceKey);
+		if (checksum == null) {
+			Path file = directory.toPath().resolve(SOURCES).resolve(sourceKey);
+			if (Files.isRegularFile(file)) {
+				checksum = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+				if (checksum.length() != 64) {
+					return null;
+				}
+				checksums.put(sourceKey, checksum);
+			}
+		}
+		return checksum;
+	}
+
+	private void rememberChecksum(String sourceKey, String checksum) throws IOException {
+		checksums.put(sourceKey, checksum);
+		Path dir = directory.toPath().resolve(SOURCES);
+		Files.createDirectories(dir);
+		Path tmp = dir.resolve(sourceKey + "." + UUID.randomUUID() + ".tmp");
+		Files.write(tmp, checksum.getBytes(StandardCharsets.UTF_8));
+		move(tmp, dir.resolve(sourceKey));
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, REPLACE_EXISTING);
+		}
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not available", e);
+		}
+	}
+
+	private static String sha256(String s) throws IOException {
+		return AbstractToolMojo.bytesToHex(newDigest().digest(s.getBytes(StandardCharsets.UTF_8)));
+	}
+}
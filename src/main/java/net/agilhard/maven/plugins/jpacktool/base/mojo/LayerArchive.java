@@ -0,0 +1,342 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reproducible <code>tar.gz</code> or <code>tar</code> archive of a part of an
+ * image.
+ *
+ * <p>
+ * Entries are written in sorted order with the fixed modification time
+ * {@link #MODIFICATION_TIME} and owner root, so archiving the same files again
+ * gives the same bytes and the same checksum. File permissions and symbolic links are kept. Paths longer than
+ * the ustar format allows are written as pax extended headers.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class LayerArchive {
+
+	/**
+	 * The modification time of all entries in milliseconds, 1980-01-01 UTC.
+	 * Jars in an image are given this time before a CDS archive or AOT cache is
+	 * created, because the JVM rejects these if the modification time of a jar
+	 * differs after the image has been unpacked.
+	 */
+	public static final long MODIFICATION_TIME = 315532800000L;
+
+	private static final int BLOCK = 512;
+
+	private final Path baseDirectory;
+
+	private final Set<String> paths = new TreeSet<>();
+
+	private String prefix = "";
+
+	private boolean compress = true;
+
+	private String digest;
+
+	private String diffId;
+
+	private long size;
+
+	/**
+	 * Create an archive.
+	 *
+	 * @param baseDirectory paths are relative to this directory
+	 */
+	public LayerArchive(File baseDirectory) {
+		this.baseDirectory = baseDirectory.toPath();
+	}
+
+	/**
+	 * Set a directory all entries are put into.
+	 *
+	 * @param prefix the directory, e.g. <code>opt/app</code>
+	 */
+	public void setPrefix(String prefix) {
+		String p = prefix.replace('\\', '/');
+		while (p.startsWith("/")) {
+			p = p.substring(1);
+		}
+		while (p.endsWith("/")) {
+			p = p.substring(0, p.length() - 1);
+		}
+		this.prefix = p.isEmpty() ? "" : p + "/";
+	}
+
+	/**
+	 * Set whether the archive is compressed.
+	 *
+	 * @param compress <code>false</code> to write a plain tar file
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Check if the archive contains no files.
+	 *
+	 * @return <code>true</code> if nothing has been added
+	 */
+	public boolean isEmpty() {
+		return paths.isEmpty();
+	}
+
+	/**
+	 * Add a file or symbolic link and the directories leading to it.
+	 *
+	 * @param relativePath the path relative to the base directory, separated by
+	 *                     <code>/</code>
+	 */
+	public void add(String relativePath) {
+		String path = relativePath.replace('\\', '/');
+		paths.add(path);
+		int i = path.lastIndexOf('/');
+		while (i > 0) {
+			path = path.substring(0, i);
+			paths.add(path + "/");
+			i = path.lastIndexOf('/');
+		}
+	}
+
+	/**
+	 * Get the number of entries including directories.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		return paths.size();
+	}
+
+	/**
+	 * Write the archive.
+	 *
+	 * @param target the <code>tar.gz</code> or <code>tar</code> file
+	 * @throws IOException on i/o error
+	 */
+	public void write(File target) throws IOException {
+		MessageDigest compressed = newDigest();
+		MessageDigest uncompressed = newDigest();
+		try (OutputStream fos = Files.newOutputStream(target.toPath());
+				DigestOutputStream dos = new DigestOutputStream(fos, compressed);
+				OutputStream gz = compress ? new GZIPOutputStream(dos) : dos;
+				DigestOutputStream tar = new DigestOutputStream(gz, uncompressed)) {
+			if (!prefix.isEmpty()) {
+				String dir = "";
+				for (String part : prefix.split("/")) {
+					dir = dir + part + "/";
+					writeDirectory(tar, dir);
+				}
+			}
+			for (String path : paths) {
+				writeEntry(tar, path);
+			}
+			tar.write(new byte[2 * BLOCK]);
+		}
+		this.digest = AbstractToolMojo.bytesToHex(compressed.digest());
+		this.diffId = AbstractToolMojo.bytesToHex(uncompressed.digest());
+		this.size = target.length();
+	}
+
+	/**
+	 * Get the SHA-256 of the written file.
+	 *
+	 * @return the checksum as hex string
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Get the SHA-256 of the uncompressed tar stream.
+	 *
+	 * @return the checksum as hex string
+	 */
+	public String getDiffId() {
+		return diffId;
+	}
+
+	/**
+	 * Get the size of the written file.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	private static void writeDirectory(OutputStream out, String path) throws IOException {
+		out.write(header(truncate(path, 100), "", '5', 0755, 0));
+	}
+
+	private void writeEntry(OutputStream out, String relativePath) throws IOException {
+		boolean directory = relativePath.endsWith("/");
+		Path file = baseDirectory
+				.resolve(directory ? relativePath.substring(0, relativePath.length() - 1) : relativePath);
+		if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		String path = prefix + relativePath;
+		boolean symlink = Files.isSymbolicLink(file);
+		String linkName = symlink ? Files.readSymbolicLink(file).toString().replace('\\', '/') : "";
+		char type = directory ? '5' : (symlink ? '2' : '0');
+		long length = (directory || symlink) ? 0 : Files.size(file);
+
+		byte[] name = path.getBytes(StandardCharsets.UTF_8);
+		byte[] link = linkName.getBytes(StandardCharsets.UTF_8);
+		if ((name.length > 100) || (link.length > 100)) {
+			StringBuilder pax = new StringBuilder();
+			if (name.length > 100) {
+				pax.append(paxRecord("path", path));
+			}
+			if (link.length > 100) {
+				pax.append(paxRecord("linkpath", linkName));
+			}
+			byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+			out.write(header("PaxHeaders/" + truncate(path, 80), "", 'x', 0644, records.length));
+			out.write(records);
+			pad(out, records.length);
+		}
+
+		out.write(header(truncate(path, 100), truncate(linkName, 100), type, getMode(file, directory, symlink),
+				length));
+		if (length > 0) {
+			try (InputStream is = Files.newInputStream(file)) {
+				byte[] buffer = new byte[64 * 1024];
+				long remaining = length;
+				int n;
+				while ((remaining > 0) && ((n = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0)) {
+					out.write(buffer, 0, n);
+					remaining -= n;
+				}
+				if (remaining > 0) {
+					throw new IOException(file + " has been truncated while archiving");
+				}
+			}
+			pad(out, length);
+		}
+	}
+
+	private static byte[] header(String name, String linkName, char type, int mode, long length) {
+		byte[] h = new byte[BLOCK];
+		put(h, 0, 100, name.getBytes(StandardCharsets.UTF_8));
+		putOctal(h, 100, 8, mode);
+		putOctal(h, 108, 8, 0);
+		putOctal(h, 116, 8, 0);
+		putOctal(h, 124, 12, length);
+		putOctal(h, 136, 12, MODIFICATION_TIME / 1000);
+		for (int i = 148; i < 156; i++) {
+			h[i] = ' ';
+		}
+		h[156] = (byte) type;
+		put(h, 157, 100, linkName.getBytes(StandardCharsets.UTF_8));
+		put(h, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+		put(h, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+		put(h, 265, 32, "root".getBytes(StandardCharsets.US_ASCII));
+		put(h, 297, 32, "root".getBytes(StandardCharsets.US_ASCII));
+		long checksum = 0;
+		for (byte b : h) {
+			checksum += b & 0xff;
+		}
+		putOctal(h, 148, 7, checksum);
+		return h;
+	}
+
+	private static void put(byte[] h, int offset, int length, byte[] value) {
+		System.arraycopy(value, 0, h, offset, Math.min(length, value.length));
+	}
+
+	private static void putOctal(byte[] h, int offset, int length, long value) {
+		String s = Long.toOctalString(value);
+		StringBuilder sb = new StringBuilder();
+		for (int i = s.length(); i < length - 1; i++) {
+			sb.append('0');
+		}
+		sb.append(s);
+		put(h, offset, length - 1, sb.toString().getBytes(StandardCharsets.US_ASCII));
+		h[offset + length - 1] = 0;
+	}
+
+	private static void pad(OutputStream out, long length) throws IOException {
+		int rest = (int) (length % BLOCK);
+		if (rest > 0) {
+			out.write(new byte[BLOCK - rest]);
+		}
+	}
+
+	private static String paxRecord(String key, String value) {
+		// the length of a record includes the digits of the length itself
+		int length = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+		int total = length + Integer.toString(length).length();
+		if (Integer.toString(total).length() > Integer.toString(length).length()) {
+			total++;
+		}
+		return total + " " + key + "=" + value + "\n";
+	}
+
+	private static String truncate(String s, int maxBytes) {
+		String t = s;
+		while (t.getBytes(StandardCharsets.UTF_8).length > maxBytes) {
+			t = t.substring(0, t.length() - 1);
+		}
+		return t;
+	}
+
+	private static int getMode(Path file, boolean directory, boolean symlink) throws IOException {
+		if (symlink) {
+			return 0777;
+		}
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			int mode = 0;
+			for (PosixFilePermission permission : Files.getPosixFilePermissions(file)) {
+				mode |= 1 << (8 - permission.ordinal());
+			}
+			return mode;
+		}
+		return (directory || Files.isExecutable(file)) ? 0755 : 0644;
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not available", e);
+		}
+	}
+}
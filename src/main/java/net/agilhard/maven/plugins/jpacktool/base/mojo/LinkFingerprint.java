@@ -0,0 +1,201 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Fingerprint of the inputs of a tool run like jlink.
+ *
+ * <p>
+ * The fingerprint is a SHA-256 over named values and over the content of
+ * files. The checksum of each file is stored together with the fingerprint
+ * and is reused by the next build as long as size and modification time of
+ * the file are unchanged, so large module paths are only read again when they
+ * have changed.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class LinkFingerprint {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final String FINGERPRINT = "fingerprint";
+
+	private static final String FILE_PREFIX = "file.";
+
+	private final Map<String, String> values = new TreeMap<>();
+
+	private final Map<String, String> files = new TreeMap<>();
+
+	private final Properties previous = new Properties();
+
+	/**
+	 * Create a fingerprint.
+	 *
+	 * @param previousFile the stored fingerprint of the previous run, used to
+	 *                     avoid computing checksums of unchanged files, may be
+	 *                     <code>null</code>
+	 */
+	public LinkFingerprint(File previousFile) {
+		if ((previousFile != null) && previousFile.isFile()) {
+			try (InputStream is = Files.newInputStream(previousFile.toPath())) {
+				previous.load(is);
+			} catch (IOException | IllegalArgumentException e) {
+				previous.clear();
+			}
+		}
+	}
+
+	/**
+	 * Add a named value.
+	 *
+	 * @param name  the name
+	 * @param value the value, may be <code>null</code>
+	 */
+	public void add(String name, String value) {
+		values.put(name, value == null ? "" : value);
+	}
+
+	/**
+	 * Add the content of a file or of all files below a directory. A missing
+	 * file is recorded as missing.
+	 *
+	 * @param file the file or directory
+	 * @throws IOException on i/o error
+	 */
+	public void addFile(File file) throws IOException {
+		Path path = file.toPath().toAbsolutePath().normalize();
+		if (Files.isDirectory(path)) {
+			TreeSet<Path> children = new TreeSet<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for (Path child : stream) {
+					children.add(child);
+				}
+			}
+			for (Path child : children) {
+				addFile(child.toFile());
+			}
+		} else if (Files.isRegularFile(path)) {
+			files.put(path.toString(), getChecksum(path));
+		} else {
+			files.put(path.toString(), "-");
+		}
+	}
+
+	/**
+	 * Compute the fingerprint.
+	 *
+	 * @return the SHA-256 of all values and files as hex string
+	 * @throws IOException if SHA-256 is not available
+	 */
+	public String compute() throws IOException {
+		MessageDigest digest = newDigest();
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			digest.update((e.getKey() + "=" + e.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		for (Map.Entry<String, String> e : files.entrySet()) {
+			digest.update((e.getKey() + ":" + e.getValue().split(",", 2)[0] + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return AbstractToolMojo.bytesToHex(digest.digest());
+	}
+
+	/**
+	 * Check if the fingerprint equals the one of the previous run.
+	 *
+	 * @return <code>true</code> if nothing has changed
+	 * @throws IOException if SHA-256 is not available
+	 */
+	public boolean matchesPrevious() throws IOException {
+		return compute().equals(previous.getProperty(FINGERPRINT));
+	}
+
+	/**
+	 * Store the fingerprint.
+	 *
+	 * @param file the file
+	 * @throws IOException on i/o error
+	 */
+	public void save(File file) throws IOException {
+		Properties props = new Properties();
+		props.setProperty(FINGERPRINT, compute());
+		for (Map.Entry<String, String> e : files.entrySet()) {
+			props.setProperty(FILE_PREFIX + e.getKey(), e.getValue());
+		}
+		File dir = file.getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("directory can not be created:" + dir);
+		}
+		try (OutputStream os = Files.newOutputStream(file.toPath())) {
+			props.store(os, "jpacktool link fingerprint");
+		}
+	}
+
+	/**
+	 * Get the checksum of a file, reusing the one of the previous run if size
+	 * and modification time are unchanged.
+	 *
+	 * @return <code>sha256,size,mtime</code>
+	 */
+	private String getChecksum(Path path) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		String suffix = "," + attrs.size() + "," + attrs.lastModifiedTime().toMillis();
+		String old = previous.getProperty(FILE_PREFIX + path.toString());
+		if ((old != null) && old.endsWith(suffix) && (old.indexOf(',') == 64)) {
+			return old;
+		}
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return AbstractToolMojo.bytesToHex(digest.digest()) + suffix;
+	}
+
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not available", e);
+		}
+	}
+}
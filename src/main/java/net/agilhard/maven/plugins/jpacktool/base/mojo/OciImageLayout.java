@@ -0,0 +1,278 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Local <a href="https://github.com/opencontainers/image-spec">OCI image
+ * layout</a> written without registry access.
+ *
+ * <p>
+ * Layers are added as {@link LayerArchive}s, config, manifest and index are
+ * written without timestamps, so the same content always results in the same
+ * digests and unchanged layers are reused by registries and container
+ * runtimes.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class OciImageLayout {
+
+	private static final String LAYER_MEDIA_TYPE = "application/vnd.oci.image.layer.v1.tar+gzip";
+
+	private static final String CONFIG_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+
+	private static final String MANIFEST_MEDIA_TYPE = "application/vnd.oci.image.manifest.v1+json";
+
+	private static final String INDEX_MEDIA_TYPE = "application/vnd.oci.image.index.v1+json";
+
+	/**
+	 * A layer written to the blobs directory.
+	 */
+	static class Layer {
+
+		final String digest;
+
+		final String diffId;
+
+		final long size;
+
+		final String createdBy;
+
+		Layer(String digest, String diffId, long size, String createdBy) {
+			this.digest = digest;
+			this.diffId = diffId;
+			this.size = size;
+			this.createdBy = createdBy;
+		}
+	}
+
+	private final File directory;
+
+	private final List<Layer> layers = new ArrayList<>();
+
+	private final Map<String, String> labels = new TreeMap<>();
+
+	private List<String> entrypoint;
+
+	private String workingDir;
+
+	private String os = "linux";
+
+	private String architecture = "amd64";
+
+	/**
+	 * Create a layout. An existing directory is deleted.
+	 *
+	 * @param directory the layout directory
+	 * @throws IOException on i/o error
+	 */
+	public OciImageLayout(File directory) throws IOException {
+		this.directory = directory;
+		if (directory.exists()) {
+			FileUtils.deleteDirectory(directory);
+		}
+		Files.createDirectories(getBlobs());
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public void setEntrypoint(List<String> entrypoint) {
+		this.entrypoint = entrypoint;
+	}
+
+	public void setWorkingDir(String workingDir) {
+		this.workingDir = workingDir;
+	}
+
+	/**
+	 * Set the platform.
+	 *
+	 * @param os           the operating system, e.g. <code>linux</code>
+	 * @param architecture the architecture, e.g. <code>amd64</code>
+	 */
+	public void setPlatform(String os, String architecture) {
+		this.os = os;
+		this.architecture = architecture;
+	}
+
+	public void setLabel(String name, String value) {
+		labels.put(name, value);
+	}
+
+	/**
+	 * Write a layer to the blobs directory. Empty layers are skipped.
+	 *
+	 * @param layer     the layer
+	 * @param createdBy description of the layer put into the history
+	 * @throws IOException on i/o error
+	 */
+	public void addLayer(LayerArchive layer, String createdBy) throws IOException {
+		if (layer.isEmpty()) {
+			return;
+		}
+		Path tmp = getBlobs().resolve("layer-" + layers.size() + ".tmp");
+		layer.write(tmp.toFile());
+		Files.move(tmp, getBlobs().resolve(layer.getDigest()), REPLACE_EXISTING);
+		layers.add(new Layer(layer.getDigest(), layer.getDiffId(), layer.getSize(), createdBy));
+	}
+
+	/**
+	 * Write config, manifest, index and the layout marker.
+	 *
+	 * @param refName the reference name of the image, e.g. the version
+	 * @return the digest of the manifest
+	 * @throws IOException on i/o error
+	 */
+	public String write(String refName) throws IOException {
+		StringBuilder config = new StringBuilder();
+		config.append("{\"architecture\":").append(Json.quote(architecture));
+		config.append(",\"os\":").append(Json.quote(os));
+		config.append(",\"config\":{");
+		boolean first = true;
+		if (entrypoint != null) {
+			config.append("\"Entrypoint\":").append(quote(entrypoint));
+			first = false;
+		}
+		if (workingDir != null) {
+			config.append(first ? "" : ",").append("\"WorkingDir\":").append(Json.quote(workingDir));
+			first = false;
+		}
+		if (!labels.isEmpty()) {
+			config.append(first ? "" : ",").append("\"Labels\":{");
+			String sep = "";
+			for (Map.Entry<String, String> e : labels.entrySet()) {
+				config.append(sep).append(Json.quote(e.getKey())).append(':').append(Json.quote(e.getValue()));
+				sep = ",";
+			}
+			config.append('}');
+		}
+		config.append("},\"rootfs\":{\"type\":\"layers\",\"diff_ids\":[");
+		String sep = "";
+		for (Layer layer : layers) {
+			config.append(sep).append(Json.quote("sha256:" + layer.diffId));
+			sep = ",";
+		}
+		config.append("]},\"history\":[");
+		sep = "";
+		for (Layer layer : layers) {
+			config.append(sep).append("{\"created_by\":").append(Json.quote(layer.createdBy)).append('}');
+			sep = ",";
+		}
+		config.append("]}");
+		byte[] configBytes = config.toString().getBytes(StandardCharsets.UTF_8);
+		String configDigest = writeBlob(configBytes);
+
+		StringBuilder manifest = new StringBuilder();
+		manifest.append("{\"schemaVersion\":2,\"mediaType\":").append(Json.quote(MANIFEST_MEDIA_TYPE));
+		manifest.append(",\"config\":").append(descriptor(CONFIG_MEDIA_TYPE, configDigest, configBytes.length));
+		manifest.append(",\"layers\":[");
+		sep = "";
+		for (Layer layer : layers) {
+			manifest.append(sep).append(descriptor(LAYER_MEDIA_TYPE, layer.digest, layer.size));
+			sep = ",";
+		}
+		manifest.append("]}");
+		byte[] manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+		String manifestDigest = writeBlob(manifestBytes);
+
+		StringBuilder index = new StringBuilder();
+		index.append("{\"schemaVersion\":2,\"mediaType\":").append(Json.quote(INDEX_MEDIA_TYPE));
+		index.append(",\"manifests\":[");
+		String d = descriptor(MANIFEST_MEDIA_TYPE, manifestDigest, manifestBytes.length);
+		if (refName != null) {
+			d = d.substring(0, d.length() - 1) + ",\"annotations\":{\"org.opencontainers.image.ref.name\":"
+					+ Json.quote(refName) + "}}";
+		}
+		index.append(d).append("]}");
+		Files.write(directory.toPath().resolve("index.json"), index.toString().getBytes(StandardCharsets.UTF_8));
+		Files.write(directory.toPath().resolve("oci-layout"),
+				"{\"imageLayoutVersion\":\"1.0.0\"}".getBytes(StandardCharsets.UTF_8));
+		return manifestDigest;
+	}
+
+	/**
+	 * Write the layout as a single tar file.
+	 *
+	 * @param target the tar file
+	 * @throws IOException on i/o error
+	 */
+	public void writeTarball(File target) throws IOException {
+		LayerArchive tar = new LayerArchive(directory);
+		tar.setCompress(false);
+		tar.add("oci-layout");
+		tar.add("index.json");
+		File[] blobs = getBlobs().toFile().listFiles();
+		if (blobs != null) {
+			for (File blob : blobs) {
+				tar.add("blobs/sha256/" + blob.getName());
+			}
+		}
+		tar.write(target);
+	}
+
+	private Path getBlobs() {
+		return directory.toPath().resolve("blobs").resolve("sha256");
+	}
+
+	private String writeBlob(byte[] content) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not available", e);
+		}
+		String digest = AbstractToolMojo.bytesToHex(md.digest(content));
+		Files.write(getBlobs().resolve(digest), content);
+		return digest;
+	}
+
+	private static String descriptor(String mediaType, String digest, long size) {
+		return "{\"mediaType\":" + Json.quote(mediaType) + ",\"digest\":" + Json.quote("sha256:" + digest) + ",\"size\":"
+				+ size + "}";
+	}
+
+	private static String quote(List<String> values) {
+		StringBuilder sb = new StringBuilder("[");
+		String sep = "";
+		for (String value : values) {
+			sb.append(sep).append(Json.quote(value));
+			sep = ",";
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,303 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Records the duration of the stages of a mojo execution together with the
+ * number of bytes and files they have touched.
+ *
+ * <p>
+ * The trace is written in the Chrome trace event format so it can be viewed
+ * with chrome://tracing. A summary per stage is logged and stored as
+ * properties file which is compared against the summary of the previous run
+ * to detect regressions.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class PerformanceTrace {
+
+	/**
+	 * A running stage, closing it records its duration.
+	 */
+	public class Stage implements AutoCloseable {
+
+		private final String name;
+
+		private final String detail;
+
+		private final long threadId;
+
+		private final long start;
+
+		private long end;
+
+		private long bytes;
+
+		private long files;
+
+		Stage(String name, String detail) {
+			this.name = name;
+			this.detail = detail;
+			this.threadId = Thread.currentThread().getId();
+			this.start = System.nanoTime();
+		}
+
+		public void addBytes(long n) {
+			this.bytes += n;
+		}
+
+		public void addFiles(long n) {
+			this.files += n;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the duration of a finished stage.
+		 *
+		 * @return the duration in milliseconds
+		 */
+		public long getDuration() {
+			return TimeUnit.NANOSECONDS.toMillis(end - start);
+		}
+
+		@Override
+		public void close() {
+			this.end = System.nanoTime();
+			Deque<Stage> stack = current.get();
+			stack.remove(this);
+			synchronized (stages) {
+				stages.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Summary of all stages with the same name.
+	 */
+	static class Summary {
+
+		long count;
+
+		long time;
+
+		long bytes;
+
+		long files;
+	}
+
+	private final String name;
+
+	private final long start = System.nanoTime();
+
+	private final List<Stage> stages = new ArrayList<>();
+
+	private final ThreadLocal<Deque<Stage>> current = ThreadLocal.withInitial(ArrayDeque::new);
+
+	public PerformanceTrace(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Start a stage.
+	 *
+	 * @param stageName the name of the stage
+	 * @return the stage which has to be closed when the stage is finished
+	 */
+	public Stage start(String stageName) {
+		return start(stageName, null);
+	}
+
+	/**
+	 * Start a stage.
+	 *
+	 * @param stageName the name of the stage, stages with the same name are
+	 *                  summed up in the summary
+	 * @param detail    additional information e.g. the name of a jar
+	 * @return the stage which has to be closed when the stage is finished
+	 */
+	public Stage start(String stageName, String detail) {
+		Stage stage = new Stage(stageName, detail);
+		current.get().push(stage);
+		return stage;
+	}
+
+	/**
+	 * Add bytes to the innermost running stage of the current thread.
+	 *
+	 * @param n the number of bytes
+	 */
+	public void addBytes(long n) {
+		Stage stage = current.get().peek();
+		if (stage != null) {
+			stage.addBytes(n);
+		}
+	}
+
+	/**
+	 * Add files to the innermost running stage of the current thread.
+	 *
+	 * @param n the number of files
+	 */
+	public void addFiles(long n) {
+		Stage stage = current.get().peek();
+		if (stage != null) {
+			stage.addFiles(n);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the finished stages.
+	 *
+	 * @return a copy of the list of stages
+	 */
+	public List<Stage> getStages() {
+		synchronized (stages) {
+			return new ArrayList<>(stages);
+		}
+	}
+
+	Map<String, Summary> summarize() {
+		Map<String, Summary> summaries = new LinkedHashMap<>();
+		List<Stage> list = getStages();
+		list.sort((s1, s2) -> Long.compare(s1.start, s2.start));
+		for (Stage stage : list) {
+			Summary summary = summaries.computeIfAbsent(stage.name, k -> new Summary());
+			summary.count++;
+			summary.time += stage.getDuration();
+			summary.bytes += stage.bytes;
+			summary.files += stage.files;
+		}
+		return summaries;
+	}
+
+	/**
+	 * Write the trace and the summary, log the summary and warn about stages
+	 * which took longer than in the previous run.
+	 *
+	 * @param directory the output directory
+	 * @param threshold percentage by which a stage may be slower than in the
+	 *                  previous run before it is reported
+	 * @param log       the logger
+	 * @throws IOException on i/o error
+	 */
+	public void write(File directory, int threshold, Log log) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("directory can not be created:" + directory);
+		}
+
+		writeTrace(new File(directory, "trace-" + name + ".json"));
+
+		Map<String, Summary> summaries = summarize();
+
+		log.info("--------------------");
+		log.info("Performance of " + name);
+		log.info("--------------------");
+		for (Map.Entry<String, Summary> e : summaries.entrySet()) {
+			Summary s = e.getValue();
+			log.info(String.format("%-24s %5d x %8d ms %12d bytes %6d files", e.getKey(), s.count, s.time, s.bytes,
+					s.files));
+		}
+
+		File reportFile = new File(directory, "performance-" + name + ".properties");
+		Properties previous = new Properties();
+		if (reportFile.isFile()) {
+			try (InputStream is = Files.newInputStream(reportFile.toPath())) {
+				previous.load(is);
+			}
+		}
+
+		Properties report = new Properties();
+		for (Map.Entry<String, Summary> e : summaries.entrySet()) {
+			String key = e.getKey();
+			Summary s = e.getValue();
+			report.setProperty(key + ".count", Long.toString(s.count));
+			report.setProperty(key + ".time", Long.toString(s.time));
+			report.setProperty(key + ".bytes", Long.toString(s.bytes));
+			report.setProperty(key + ".files", Long.toString(s.files));
+
+			String previousTime = previous.getProperty(key + ".time");
+			if (previousTime != null) {
+				long prev = Long.parseLong(previousTime);
+				// ignore differences below 100 ms, they are mostly noise
+				if ((s.time - prev >= 100) && (s.time * 100 > prev * (100 + threshold))) {
+					log.warn("performance regression in " + name + ": " + key + " took " + s.time
+							+ " ms, previous run " + prev + " ms");
+				}
+			}
+		}
+
+		try (OutputStream os = Files.newOutputStream(reportFile.toPath())) {
+			report.store(os, "jpacktool performance report of " + name);
+		}
+	}
+
+	private void writeTrace(File file) throws IOException {
+		List<Stage> list = getStages();
+		list.sort((s1, s2) -> Long.compare(s1.start, s2.start));
+
+		try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+			pw.println("{\"traceEvents\":[");
+			boolean first = true;
+			for (Stage stage : list) {
+				if (!first) {
+					pw.println(",");
+				}
+				first = false;
+				pw.print("{\"name\":" + Json.quote(stage.name) + ",\"cat\":" + Json.quote(name)
+						+ ",\"ph\":\"X\",\"pid\":1,\"tid\":" + stage.threadId + ",\"ts\":"
+						+ TimeUnit.NANOSECONDS.toMicros(stage.start - start) + ",\"dur\":"
+						+ TimeUnit.NANOSECONDS.toMicros(stage.end - stage.start) + ",\"args\":{\"bytes\":"
+						+ stage.bytes + ",\"files\":" + stage.files);
+				if (stage.detail != null) {
+					pw.print(",\"detail\":" + Json.quote(stage.detail));
+				}
+				pw.print("}}");
+			}
+			pw.println();
+			pw.println("]}");
+		}
+	}
+}
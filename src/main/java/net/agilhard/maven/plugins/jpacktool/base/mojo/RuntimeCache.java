@@ -0,0 +1,285 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Machine wide cache of Java Run Time Images linked from JDK modules only.
+ *
+ * <p>
+ * Each runtime is stored in a directory named after the fingerprint of its
+ * inputs, next to a <code>&lt;key&gt;.properties</code> file which marks the
+ * runtime as complete and records its size. Runtimes are linked into a
+ * temporary directory and renamed, so several builds may use the cache at the
+ * same time. The modification time of the properties file is updated on each
+ * use and the least recently used runtimes are removed when the cache grows
+ * beyond its maximum size.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class RuntimeCache {
+
+	private static final String PROPERTIES = ".properties";
+
+	private static final String TMP = ".tmp-";
+
+	private static final String SIZE = "size";
+
+	private static final long STALE_TMP_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	private final File directory;
+
+	private final long maxSize;
+
+	private final Log log;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param directory the cache directory
+	 * @param maxSize   the maximum size of all runtimes in bytes
+	 * @param log       the logger
+	 */
+	public RuntimeCache(File directory, long maxSize, Log log) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.log = log;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get a cached runtime.
+	 *
+	 * @param key the fingerprint of the runtime
+	 * @return the runtime directory or <code>null</code> if it is not cached
+	 */
+	public File get(String key) {
+		File runtime = new File(directory, key);
+		File properties = new File(directory, key + PROPERTIES);
+		if (!runtime.isDirectory() || !properties.isFile()) {
+			return null;
+		}
+		// remember the use for the eviction
+		properties.setLastModified(System.currentTimeMillis());
+		return runtime;
+	}
+
+	/**
+	 * Get a directory jlink can write a new runtime to.
+	 *
+	 * @param key the fingerprint of the runtime
+	 * @return a directory which does not exist yet
+	 * @throws IOException if the cache directory can not be created
+	 */
+	public File newTemporaryDirectory(String key) throws IOException {
+		Files.createDirectories(directory.toPath());
+		return new File(directory, key + TMP + UUID.randomUUID());
+	}
+
+	/**
+	 * Put a runtime linked to a temporary directory into the cache. If another
+	 * build has put the same runtime into the cache meanwhile the temporary
+	 * directory is deleted.
+	 *
+	 * @param key     the fingerprint of the runtime
+	 * @param linked  the temporary directory
+	 * @return the runtime directory in the cache
+	 * @throws IOException on i/o error
+	 */
+	public File put(String key, File linked) throws IOException {
+		File runtime = new File(directory, key);
+		try {
+			Files.move(linked.toPath(), runtime.toPath(), ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (!runtime.isDirectory()) {
+				throw e;
+			}
+			FileUtils.deleteDirectory(linked);
+		}
+
+		Properties props = new Properties();
+		props.setProperty(SIZE, Long.toString(sizeOf(runtime.toPath())));
+		Path tmp = new File(directory, key + TMP + UUID.randomUUID() + PROPERTIES).toPath();
+		try (OutputStream os = Files.newOutputStream(tmp)) {
+			props.store(os, "jpacktool runtime");
+		}
+		try {
+			Files.move(tmp, new File(directory, key + PROPERTIES).toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, new File(directory, key + PROPERTIES).toPath(), REPLACE_EXISTING);
+		}
+		return runtime;
+	}
+
+	/**
+	 * Remove the least recently used runtimes until the cache is not larger than
+	 * its maximum size, and temporary directories left over by crashed builds.
+	 *
+	 * @param keep the fingerprint of a runtime which must not be removed
+	 */
+	public void evict(String keep) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entries = new ArrayList<>();
+		long total = 0;
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.contains(TMP)) {
+				if (now - file.lastModified() > STALE_TMP_MILLIS) {
+					delete(file);
+				}
+			} else if (name.endsWith(PROPERTIES)) {
+				entries.add(file);
+				total += getSize(file);
+			}
+		}
+		entries.sort(Comparator.comparingLong(File::lastModified));
+		for (File properties : entries) {
+			if (total <= maxSize) {
+				break;
+			}
+			String key = properties.getName().substring(0, properties.getName().length() - PROPERTIES.length());
+			if (key.equals(keep)) {
+				continue;
+			}
+			total -= getSize(properties);
+			log.info("removing runtime " + key + " from cache");
+			delete(properties);
+			// rename first so other builds do not see a partially deleted runtime
+			File runtime = new File(directory, key);
+			File removed = new File(directory, key + TMP + UUID.randomUUID());
+			delete(runtime.renameTo(removed) ? removed : runtime);
+		}
+	}
+
+	/**
+	 * Copy a runtime into an image. Files are cloned where the file system
+	 * supports it, they are never hard linked because the image may be changed
+	 * afterwards. Symbolic links and file permissions are kept.
+	 *
+	 * @param runtime the runtime directory
+	 * @param target  the image directory
+	 * @param stager  the stager used to put the files into the image
+	 * @return the number of files
+	 * @throws IOException on i/o error
+	 */
+	public static long copy(File runtime, File target, FileStager stager) throws IOException {
+		final Path source = runtime.toPath();
+		final Path dest = target.toPath();
+		final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+		final AtomicLong count = new AtomicLong();
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(dest.resolve(source.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path to = dest.resolve(source.relativize(file).toString());
+				if (attrs.isSymbolicLink()) {
+					Files.createSymbolicLink(to, Files.readSymbolicLink(file));
+				} else {
+					if (stager.stage(file, to) == FileStager.Method.COPY) {
+						if (posix) {
+							Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(file));
+						}
+						Files.setLastModifiedTime(to, FileTime.fromMillis(attrs.lastModifiedTime().toMillis()));
+					}
+				}
+				count.incrementAndGet();
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return count.get();
+	}
+
+	private static long sizeOf(Path dir) throws IOException {
+		final AtomicLong size = new AtomicLong();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (!Files.isSymbolicLink(file)) {
+					size.addAndGet(attrs.size());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size.get();
+	}
+
+	private static long getSize(File properties) {
+		Properties props = new Properties();
+		try (InputStream is = Files.newInputStream(properties.toPath())) {
+			props.load(is);
+			return Long.parseLong(props.getProperty(SIZE, "0"));
+		} catch (IOException | IllegalArgumentException e) {
+			return 0;
+		}
+	}
+
+	private void delete(File file) {
+		try {
+			if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+				FileUtils.deleteDirectory(file);
+			} else {
+				Files.deleteIfExists(file.toPath());
+			}
+		} catch (IOException e) {
+			log.warn("unable to delete " + file + ": " + e.getMessage());
+		}
+	}
+}
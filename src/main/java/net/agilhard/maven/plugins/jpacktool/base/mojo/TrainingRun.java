@@ -0,0 +1,240 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Runs the launcher of an image with additional JVM options, e.g. to record
+ * which classes the application loads.
+ *
+ * <p>
+ * The JVM options are passed in the <code>JDK_JAVA_OPTIONS</code> environment
+ * variable, so the launcher does not have to be changed. If the application
+ * is still running after the timeout it is asked to terminate, which lets the
+ * JVM run its exit actions like dumping a CDS archive, and killed if it does
+ * not terminate within a grace period. Shell launchers have to
+ * <code>exec</code> java for this to work.
+ * </p>
+ *
+ * @author Bernd Eilers
+ */
+public class TrainingRun {
+
+	private static final long GRACE_SECONDS = 30;
+
+	private final File launcher;
+
+	private final File workingDirectory;
+
+	private final Log log;
+
+	private List<String> arguments = Collections.emptyList();
+
+	private List<String> javaOptions = Collections.emptyList();
+
+	private int timeout;
+
+	private File logFile;
+
+	private boolean timedOut;
+
+	/**
+	 * Create a training run.
+	 *
+	 * @param launcher         the launcher script or executable
+	 * @param workingDirectory the working directory
+	 * @param log              the logger
+	 */
+	public TrainingRun(File launcher, File workingDirectory, Log log) {
+		this.launcher = launcher;
+		this.workingDirectory = workingDirectory;
+		this.log = log;
+	}
+
+	public void setArguments(List<String> arguments) {
+		this.arguments = (arguments == null) ? Collections.<String>emptyList() : arguments;
+	}
+
+	public void setJavaOptions(List<String> javaOptions) {
+		this.javaOptions = (javaOptions == null) ? Collections.<String>emptyList() : javaOptions;
+	}
+
+	/**
+	 * Set the time after which the application is terminated.
+	 *
+	 * @param timeout the timeout in seconds, 0 for no timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Set a file the output of the application is written to.
+	 *
+	 * @param logFile the file or <code>null</code> to discard the output
+	 */
+	public void setLogFile(File logFile) {
+		this.logFile = logFile;
+	}
+
+	/**
+	 * Check if the application had to be terminated.
+	 *
+	 * @return <code>true</code> if the timeout has been reached
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Create the process builder for the launcher with the working directory
+	 * and the JVM options set.
+	 *
+	 * @return the process builder
+	 */
+	public ProcessBuilder createProcessBuilder() {
+		final List<String> command = new ArrayList<>();
+		final String name = launcher.getName().toLowerCase();
+		if (name.endsWith(".ps1")) {
+			command.add("powershell");
+			command.add("-NoProfile");
+			command.add("-ExecutionPolicy");
+			command.add("Bypass");
+			command.add("-File");
+		} else if (name.endsWith(".cmd") || name.endsWith(".bat")) {
+			command.add("cmd");
+			command.add("/c");
+		} else if (!name.endsWith(".exe") && !launcher.canExecute()) {
+			command.add("sh");
+		}
+		command.add(launcher.getAbsolutePath());
+		command.addAll(arguments);
+
+		final ProcessBuilder pb = new ProcessBuilder(command).directory(workingDirectory).redirectErrorStream(true);
+		if (!javaOptions.isEmpty()) {
+			pb.environment().put("JDK_JAVA_OPTIONS", getJdkJavaOptions());
+		}
+		return pb;
+	}
+
+	/**
+	 * Get the value of <code>JDK_JAVA_OPTIONS</code> for the JVM options. The
+	 * java launcher splits the value at white space, so options containing white
+	 * space or quotes are quoted.
+	 *
+	 * @return the value
+	 */
+	public String getJdkJavaOptions() {
+		final StringBuilder sb = new StringBuilder();
+		for (final String option : javaOptions) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(quote(option));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Quote a single option for <code>JDK_JAVA_OPTIONS</code>. There are no
+	 * escape characters, a double quote is put in single quotes and everything
+	 * else in double quotes. Adjacent quoted parts form a single option.
+	 *
+	 * @param option the option
+	 * @return the quoted option
+	 */
+	static String quote(final String option) {
+		if (!option.isEmpty() && !option.matches(".*[\\s\"'].*")) {
+			return option;
+		}
+		final StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while (i < option.length()) {
+			final char quote = option.charAt(i) == '"' ? '\'' : '"';
+			int j = i;
+			while ((j < option.length()) && (option.charAt(j) == '"') == (quote == '\'')) {
+				j++;
+			}
+			sb.append(quote).append(option, i, j).append(quote);
+			i = j;
+		}
+		return sb.length() == 0 ? "\"\"" : sb.toString();
+	}
+
+	/**
+	 * Run the launcher and wait for the application to exit.
+	 *
+	 * @return the exit code
+	 * @throws MojoExecutionException if the launcher can not be started, does
+	 *                                not terminate or the thread is interrupted
+	 */
+	public int run() throws MojoExecutionException {
+		final ProcessBuilder pb = createProcessBuilder();
+		final List<String> command = pb.command();
+		if (logFile != null) {
+			if (logFile.getParentFile() != null) {
+				logFile.getParentFile().mkdirs();
+			}
+			pb.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile));
+		} else {
+			pb.redirectOutput(
+					ProcessBuilder.Redirect.appendTo(new File(SystemUtils.IS_OS_WINDOWS ? "NUL" : "/dev/null")));
+		}
+
+		log.info("training run: " + String.join(" ", command)
+				+ (javaOptions.isEmpty() ? "" : " (JDK_JAVA_OPTIONS=" + getJdkJavaOptions() + ")"));
+
+		final Process process;
+		try {
+			process = pb.start();
+			process.getOutputStream().close();
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to start " + launcher + ": " + e.getMessage(), e);
+		}
+
+		try {
+			if ((timeout > 0) && !process.waitFor(timeout, TimeUnit.SECONDS)) {
+				timedOut = true;
+				log.info("training run still running after " + timeout + " seconds, terminating it");
+				process.destroy();
+				if (!process.waitFor(GRACE_SECONDS, TimeUnit.SECONDS)) {
+					process.destroyForcibly();
+					throw new MojoExecutionException(
+							"training run did not terminate within " + GRACE_SECONDS + " seconds: " + launcher);
+				}
+			}
+			return process.waitFor();
+		} catch (final InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("interrupted while running " + launcher, e);
+		}
+	}
+}
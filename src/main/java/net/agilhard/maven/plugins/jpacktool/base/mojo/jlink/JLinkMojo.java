@@ -21,11 +21,33 @@ package net.agilhard.maven.plugins.jpacktool.base.mojo.jlink;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -38,8 +60,11 @@ import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 
 import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractPackageToolMojo;
-
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.ImageSizeAnalyzer;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.LayerArchive;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.LinkFingerprint;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.PerformanceTrace;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.TrainingRun;
 
 /**
  * The JLink goal is intended to create a Java Run Time Image file based on
@@ -208,7 +233,129 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 	@Parameter(defaultValue = "app")
 	protected String appFolderName;
 
-	protected Exception lastException;
+	/**
+	 * Keep the existing Java Run Time Image if the jlink arguments, the content of
+	 * the module path, the JDK and the plugin version are the same as for the
+	 * previous build. Only the &quot;app&quot; folder, the launcher script and
+	 * the resources are refreshed in that case.
+	 */
+	@Parameter(defaultValue = "true")
+	protected boolean incrementalLink;
+
+	/**
+	 * Additionally archive the image as two layers: the runtime created by jlink
+	 * and the application, i.e. the &quot;app&quot; folder, the launcher script
+	 * and the resources. Each layer is written as a reproducible
+	 * <code>tgz</code> file with its own checksum, so the runtime layer only
+	 * changes when the JDK or the linked modules change.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean layeredImage;
+
+	/**
+	 * Create an AppCDS archive of the application by a training run of the
+	 * generated launcher and pass it to the JVM in the launcher. Requires the
+	 * launcher generated from the launcher template.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean cdsArchive;
+
+	/**
+	 * Create a dynamic CDS archive with <code>-XX:ArchiveClassesAtExit</code>
+	 * (JDK 13 or later). Otherwise the loaded classes are recorded with
+	 * <code>-XX:DumpLoadedClassList</code> and a static archive is dumped from
+	 * them.
+	 */
+	@Parameter(defaultValue = "true")
+	protected boolean cdsDynamicArchive;
+
+	/**
+	 * File name of the CDS archive in the &quot;app&quot; folder.
+	 */
+	@Parameter(defaultValue = "app.jsa")
+	protected String cdsArchiveName;
+
+	/**
+	 * Arguments passed to the launcher in training runs.
+	 */
+	@Parameter
+	protected List<String> trainingArguments;
+
+	/**
+	 * Time in seconds after which a training run is terminated, 0 to wait
+	 * until the application exits by itself.
+	 */
+	@Parameter(defaultValue = "120")
+	protected int trainingTimeout;
+
+	/**
+	 * Let the launcher create a CDS archive on the first start of the
+	 * application and use it on later starts. The archive is written to
+	 * <code>$XDG_CACHE_HOME/&lt;autoCdsName&gt;</code> or
+	 * <code>%LOCALAPPDATA%\&lt;autoCdsName&gt;</code>, or the directory given
+	 * in the environment variable <code>JPACKTOOL_CDS_DIR</code>, so the image
+	 * may be installed read-only. The archive name contains the Java version of
+	 * the runtime and a checksum of the application, so a changed runtime or
+	 * application creates a new archive. Ignored if <code>cdsArchive</code> or
+	 * <code>aotCache</code> is set.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean autoCdsArchive;
+
+	/**
+	 * Name of the directory for CDS archives created by the launcher.
+	 */
+	@Parameter(defaultValue = "${project.artifactId}")
+	protected String autoCdsName;
+
+	/**
+	 * Create an AOT cache (JEP 483) of the application by a training run of the
+	 * generated launcher and pass it to the JVM in the launcher. The classes
+	 * are loaded and linked ahead of time, which goes beyond a CDS archive.
+	 * Requires a JDK 24 or later, for older JDKs a CDS archive is created
+	 * instead.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean aotCache;
+
+	/**
+	 * File name of the AOT cache in the &quot;app&quot; folder.
+	 */
+	@Parameter(defaultValue = "app.aot")
+	protected String aotCacheName;
+
+	/**
+	 * Record the classes loaded by a training run of the generated launcher
+	 * with <code>-Xlog:class+load</code> and link the image again with
+	 * <code>--order-resources</code>, so the classes used at startup are
+	 * placed together in <code>lib/modules</code>. Only done when the image is
+	 * linked, an image which is up to date keeps its order.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean orderResources;
+
+	/**
+	 * Write a report of the image size by module, native library, application
+	 * jar and directory to <code>image-size.json</code> in the jpacktool
+	 * directory and log a summary. The image is analyzed anyway when a size
+	 * budget is set.
+	 */
+	@Parameter(defaultValue = "false")
+	protected boolean imageSizeReport;
+
+	/**
+	 * Maximum size of the image in kilobytes, 0 for no limit. The build fails
+	 * if the image is larger.
+	 */
+	@Parameter(defaultValue = "0")
+	protected long imageSizeBudget;
+
+	/**
+	 * Maximum sizes of modules in <code>lib/modules</code> in kilobytes by
+	 * module name. The build fails if a module is larger.
+	 */
+	@Parameter
+	protected Map<String, Long> moduleSizeBudgets;
 
 	/**
 	 * Suggest providers that implement the given service types from the module
@@ -276,9 +423,12 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 			this.addSystemModulesToLimitModules();
 		}
 
-		this.ifOutputDirectoryExistsDeleteIt();
-
-		prepareModules(jmodsFolder);
+		final PerformanceTrace.Stage stage = this.getPerformanceTrace().start("prepare modules");
+		try {
+			prepareModules(jmodsFolder);
+		} finally {
+			stage.close();
+		}
 
 		addSystemModulesFromJPackToolPrepare();
 
@@ -292,16 +442,45 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 		}
 		cmd.setExecutable(jLinkExec);
 
-		executeCommand(cmd);
+		final File fingerprintFile = getLinkFingerprintFile();
+		LinkFingerprint fingerprint = null;
+		if (this.incrementalLink) {
+			fingerprint = createLinkFingerprint(fingerprintFile, jLinkParent);
+		}
+
+		boolean linked = false;
+		if (isRuntimeImageUpToDate(fingerprint)) {
+			this.getLog().info("Java Run Time Image is up to date, refreshing application only");
+			deleteNonRuntimeFiles();
+		} else {
+			linked = true;
+			File baseRuntime = null;
+			if ((this.launcher == null) && (this.pluginModulePath == null)
+					&& canUseBaseRuntime(jmodsFolder, this.bindServices)) {
+				baseRuntime = getBaseRuntime(jmodsFolder, getBaseRuntimeOptions());
+			}
+
+			fingerprintFile.delete();
+			getRuntimeFileList().delete();
+			this.ifOutputDirectoryExistsDeleteIt();
+
+			if (baseRuntime != null) {
+				copyBaseRuntime(baseRuntime, this.outputDirectoryImage);
+			} else {
+				executeCommand(cmd);
+			}
+
+			writeRuntimeFileList();
+		}
 
 		failIfProjectHasAlreadySetAnArtifact();
 
 		if (jpacktoolPrepareUsed) {
-			try {
-				this.moveJPacktoolJars();
-			} catch (Exception e) {
-				throw new MojoExecutionException(e.getMessage());
-			}
+			layoutJPacktoolJars(outputDirectoryImage, appFolderName);
+		}
+
+		if (this.autoCdsArchive && !this.cdsArchive && !this.aotCache) {
+			updateAutoCdsModel();
 		}
 
 		if (jpacktoolPrepareUsed) {
@@ -311,7 +490,35 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 		generateContent();
 
 		executeResources();
+
+		if (this.orderResources && linked) {
+			orderImageResources(jLinkExec);
+		}
+
+		if (this.autoCdsArchive && !this.cdsArchive && !this.aotCache && (getGeneratedLauncher() != null)) {
+			ensureBaseCdsArchive();
+		}
+
+		// the runtime is complete, a failure before leaves no fingerprint so the next build links again
+		if (linked && (fingerprint != null)) {
+			try {
+				fingerprint.save(fingerprintFile);
+			} catch (IOException e) {
+				this.getLog().warn("unable to write " + fingerprintFile + ": " + e.getMessage());
+			}
+		}
+
+		if (this.aotCache) {
+			createAotCache();
+		} else if (this.cdsArchive) {
+			createCdsArchive();
+		}
 		
+		if (this.imageSizeReport || (this.imageSizeBudget > 0)
+				|| ((this.moduleSizeBudgets != null) && !this.moduleSizeBudgets.isEmpty())) {
+			analyzeImageSize();
+		}
+
 		File createZipArchiveFromDirectory= createZipArchiveFromDirectory(this.buildDirectory,
 				this.outputDirectoryImage);
 
@@ -326,93 +533,628 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 		}
 		
 		publishSHA256(createZipArchiveFromDirectory);
+
+		if (this.layeredImage) {
+			createImageLayers();
+		}
+
+		if (this.ociImage) {
+			try {
+				createOciImage(this.outputDirectoryImage, getRuntimeFilePredicate(), getLauncherPath());
+			} catch (final IOException e) {
+				throw new MojoExecutionException("unable to read " + getRuntimeFileList() + ": " + e.getMessage(), e);
+			}
+		}
 		
+		publishLauncher();
+
         publishJPacktoolProperties();
         
 	}
 
-	protected void updateModel() throws MojoFailureException {
-		super.updateModel();
+	protected File getRuntimeFileList() {
+		return new File(this.outputDirectoryImage.getParentFile(), this.outputDirectoryImage.getName() + ".runtime");
+	}
 
-		if (mainJar != null) {
-			jpacktoolModel.put("mainJar", mainJar);
+	/**
+	 * Record the files created by jlink, they make up the runtime layer.
+	 *
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected void writeRuntimeFileList() throws MojoExecutionException {
+		try {
+			Files.write(getRuntimeFileList().toPath(), listImageFiles(this.outputDirectoryImage),
+					StandardCharsets.UTF_8);
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to write " + getRuntimeFileList() + ": " + e.getMessage(), e);
 		}
+	}
 
-		if (mainClass != null) {
-			jpacktoolModel.put("mainClass", mainClass);
+	/**
+	 * Get a predicate telling which files of the image have been created by
+	 * jlink.
+	 *
+	 * @return the predicate for paths relative to the image
+	 * @throws IOException if the recorded runtime files can not be read
+	 */
+	protected Predicate<String> getRuntimeFilePredicate() throws IOException {
+		if (getRuntimeFileList().isFile()) {
+			final Set<String> runtimeFiles = new HashSet<>(
+					Files.readAllLines(getRuntimeFileList().toPath(), StandardCharsets.UTF_8));
+			return runtimeFiles::contains;
 		}
+		// image linked before the runtime files have been recorded
+		final String launcherScript = (this.launcherTemplateScript == null) ? null
+				: "bin/" + this.launcherTemplateScript;
+		return path -> !path.startsWith(this.appFolderName + "/") && !path.equals(launcherScript);
+	}
 
-		if (mainModule != null) {
-			jpacktoolModel.put("mainModule", mainModule);
+	/**
+	 * Get the launcher of the image.
+	 *
+	 * @return the path of the launcher relative to the image or
+	 *         <code>null</code>
+	 */
+	protected String getLauncherPath() {
+		if ((this.launcherTemplateScript != null)
+				&& new File(new File(this.outputDirectoryImage, "bin"), this.launcherTemplateScript).isFile()) {
+			return "bin/" + this.launcherTemplateScript;
+		}
+		if (this.launcher != null) {
+			final int i = this.launcher.indexOf('=');
+			return "bin/" + (i > 0 ? this.launcher.substring(0, i) : this.launcher);
 		}
+		return null;
 	}
 
-	protected void moveJarToJLinkOutClasspath(Path source) throws IOException {
-		Path target = resolveAndCreate(outputDirectoryImage, appFolderName, classPathFolderName);
+	/**
+	 * Get the launcher generated from the launcher template.
+	 *
+	 * @return the launcher or <code>null</code> if none has been generated
+	 */
+	protected File getGeneratedLauncher() {
+		if ((this.launcherTemplate == null) || (this.launcherTemplateScript == null)) {
+			return null;
+		}
+		final File file = new File(new File(this.outputDirectoryImage, "bin"), this.launcherTemplateScript);
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * Report the size of the image and check the size budgets.
+	 *
+	 * @throws MojoExecutionException if the image can not be read
+	 * @throws MojoFailureException   if a budget is exceeded
+	 */
+	@SuppressWarnings("unchecked")
+	protected void analyzeImageSize() throws MojoExecutionException, MojoFailureException {
+		final ImageSizeAnalyzer analyzer = new ImageSizeAnalyzer(this.outputDirectoryImage, this.appFolderName);
+		final Map<String, List<String>> linkedSystemModulesMap = (jpacktoolModel == null) ? null
+				: (Map<String, List<String>>) jpacktoolModel.get("linkedSystemModulesMap");
+
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("image size")) {
+			analyzer.analyze();
+			stage.addBytes(analyzer.getTotalSize());
+			if (this.imageSizeReport) {
+				final File report = new File(this.outputDirectoryJPacktool, "image-size.json");
+				Files.createDirectories(report.getParentFile().toPath());
+				analyzer.writeJson(report, linkedSystemModulesMap);
+				this.getLog().info("image size report written to " + report);
+			}
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to analyze image size: " + e.getMessage(), e);
+		}
+
+		if (this.imageSizeReport) {
+			this.getLog().info("image size " + analyzer.getTotalSize() / 1024 + " KB, lib/modules "
+					+ analyzer.getModulesFileSize() / 1024 + " KB, native libraries "
+					+ sum(analyzer.getNativeLibrarySizes()) / 1024 + " KB, application jars "
+					+ sum(analyzer.getAppJarSizes()) / 1024 + " KB");
+			int n = 0;
+			for (final Map.Entry<String, Long> e : ImageSizeAnalyzer.sortBySize(analyzer.getModuleSizes())
+					.entrySet()) {
+				if (n++ == 10) {
+					break;
+				}
+				this.getLog().info(String.format("  %-32s %8d KB", e.getKey(), e.getValue() / 1024));
+			}
+		}
 
-		target = target.resolve(source.getFileName());
-		Files.move(source, target, REPLACE_EXISTING);
+		final List<String> exceeded = new ArrayList<>();
+		if ((this.imageSizeBudget > 0) && (analyzer.getTotalSize() > this.imageSizeBudget * 1024)) {
+			exceeded.add("image is " + analyzer.getTotalSize() / 1024 + " KB, budget " + this.imageSizeBudget + " KB");
+		}
+		if (this.moduleSizeBudgets != null) {
+			final Map<String, Set<String>> neededBy = (linkedSystemModulesMap == null)
+					? Collections.<String, Set<String>>emptyMap()
+					: ImageSizeAnalyzer.getArtifactsByModule(linkedSystemModulesMap);
+			for (final Map.Entry<String, Long> e : this.moduleSizeBudgets.entrySet()) {
+				final Long size = analyzer.getModuleSizes().get(e.getKey());
+				if ((size != null) && (e.getValue() != null) && (size > e.getValue() * 1024)) {
+					exceeded.add("module " + e.getKey() + " is " + size / 1024 + " KB, budget " + e.getValue() + " KB"
+							+ (neededBy.containsKey(e.getKey()) ? ", needed by " + neededBy.get(e.getKey()) : ""));
+				}
+			}
+		}
+		if (!exceeded.isEmpty()) {
+			throw new MojoFailureException("image size budget exceeded: " + String.join("; ", exceeded));
+		}
 	}
 
-	protected void moveJarToJLinkOutAutomatic(Path source) throws IOException {
-		Path target = resolveAndCreate(outputDirectoryImage, appFolderName, automaticModulesFolderName);
+	private static long sum(final Map<String, Long> sizes) {
+		long sum = 0;
+		for (final Long size : sizes.values()) {
+			sum += size;
+		}
+		return sum;
+	}
 
-		target = target.resolve(source.getFileName());
-		Files.move(source, target, REPLACE_EXISTING);
+	/**
+	 * Put the launcher of the image into the project properties for the
+	 * benchmark-startup goal.
+	 */
+	protected void publishLauncher() {
+		File file = getGeneratedLauncher();
+		if ((file == null) && (this.launcher != null) && (this.launcher.indexOf('=') > 0)) {
+			final File bin = new File(this.outputDirectoryImage, "bin");
+			final String name = this.launcher.substring(0, this.launcher.indexOf('='));
+			file = new File(bin, name);
+			if (!file.isFile()) {
+				file = new File(bin, name + ".bat");
+			}
+		}
+		if ((file != null) && file.isFile()) {
+			this.project.getProperties().put(this.jpacktoolPropertyPrefix + ".launcher", file.getAbsolutePath());
+		}
+	}
+
+	protected TrainingRun createTrainingRun(final File launcherFile) {
+		final TrainingRun run = new TrainingRun(launcherFile, this.outputDirectoryImage, this.getLog());
+		run.setArguments(this.trainingArguments);
+		run.setTimeout(this.trainingTimeout);
+		run.setLogFile(new File(this.outputDirectoryImage.getParentFile(), "training.log"));
+		return run;
 	}
 
-	protected void moveJarToJLinkOutModule(Path source) throws IOException {
-		Path target = resolveAndCreate(outputDirectoryImage, appFolderName, modulesFolderName);
+	/**
+	 * Create the default CDS archive of the runtime if jlink has not created
+	 * one. Dynamic archives are based on it.
+	 *
+	 * @throws MojoExecutionException if the archive can not be created
+	 */
+	protected void ensureBaseCdsArchive() throws MojoExecutionException {
+		for (final String path : new String[] { "lib/server/classes.jsa", "bin/server/classes.jsa" }) {
+			if (new File(this.outputDirectoryImage, path).isFile()) {
+				return;
+			}
+		}
+		final File java = new File(new File(this.outputDirectoryImage, "bin"),
+				SystemUtils.IS_OS_WINDOWS ? "java.exe" : "java");
+		final Commandline cmd = new Commandline();
+		cmd.setExecutable(java.getAbsolutePath());
+		cmd.createArg().setValue("-Xshare:dump");
+		executeCommand(cmd);
 
-		target = target.resolve(source.getFileName());
-		Files.move(source, target, REPLACE_EXISTING);
+		// the default archive belongs to the runtime layer
+		for (final String path : new String[] { "lib/server/classes.jsa", "bin/server/classes.jsa" }) {
+			if (new File(this.outputDirectoryImage, path).isFile() && getRuntimeFileList().isFile()) {
+				try {
+					Files.write(getRuntimeFileList().toPath(), Collections.singletonList(path),
+							StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+				} catch (final IOException e) {
+					throw new MojoExecutionException("unable to write " + getRuntimeFileList(), e);
+				}
+			}
+		}
 	}
 
-	protected void moveJPacktoolJars() throws Exception {
+	/**
+	 * Create the CDS archive of the application by a training run of the
+	 * launcher and regenerate the launcher to use it.
+	 *
+	 * @throws MojoExecutionException if the training run fails or no archive
+	 *                                has been created
+	 * @throws MojoFailureException   if the launcher can not be generated
+	 */
+	protected void createCdsArchive() throws MojoExecutionException, MojoFailureException {
+		final File launcherFile = getGeneratedLauncher();
+		if (launcherFile == null) {
+			this.getLog().warn("no launcher has been generated from the launcher template, no CDS archive created");
+			return;
+		}
+		final File jsa = new File(new File(this.outputDirectoryImage, this.appFolderName), this.cdsArchiveName);
+		jsa.delete();
+		setJarModificationTimes();
+
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("cds training")) {
+			if (this.cdsDynamicArchive) {
+				ensureBaseCdsArchive();
+				final TrainingRun run = createTrainingRun(launcherFile);
+				run.setJavaOptions(Collections.singletonList("-XX:ArchiveClassesAtExit=" + jsa.getAbsolutePath()));
+				logTrainingResult(run.run(), run);
+			} else {
+				final File classList = new File(this.outputDirectoryImage.getParentFile(), "cds.classlist");
+				classList.delete();
+				final TrainingRun run = createTrainingRun(launcherFile);
+				run.setJavaOptions(Collections.singletonList("-XX:DumpLoadedClassList=" + classList.getAbsolutePath()));
+				logTrainingResult(run.run(), run);
+				if (!classList.isFile()) {
+					throw new MojoExecutionException("no classes have been recorded by the training run, see "
+							+ new File(this.outputDirectoryImage.getParentFile(), "training.log"));
+				}
+				final TrainingRun dump = createTrainingRun(launcherFile);
+				dump.setJavaOptions(Arrays.asList("-Xshare:dump", "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+						"-XX:SharedArchiveFile=" + jsa.getAbsolutePath()));
+				final int exitCode = dump.run();
+				if (exitCode != 0) {
+					throw new MojoExecutionException("creating the CDS archive failed with exit code " + exitCode
+							+ ", see " + new File(this.outputDirectoryImage.getParentFile(), "training.log"));
+				}
+			}
+			if (jsa.isFile()) {
+				stage.addFiles(1);
+				stage.addBytes(jsa.length());
+			}
+		}
 
-		lastException = null;
+		useArchiveInLauncher(jsa, "CDS archive", "-XX:SharedArchiveFile=");
+	}
 
-		if (this.jPacktoolMoveClassPathJars) {
-			Files.newDirectoryStream(outputDirectoryClasspathJars.toPath(), path -> path.toString().endsWith(".jar"))
-					.forEach(t -> {
-						try {
-							moveJarToJLinkOutClasspath(t);
-						} catch (IOException e) {
-							lastException = e;
-						}
-					});
-			if (lastException != null) {
-				throw lastException;
+	/**
+	 * Create the AOT cache of the application by a training run of the
+	 * launcher and regenerate the launcher to use it. Creates a CDS archive if
+	 * the runtime does not support AOT caches.
+	 *
+	 * @throws MojoExecutionException if the training run fails or no cache has
+	 *                                been created
+	 * @throws MojoFailureException   if the launcher can not be generated
+	 */
+	protected void createAotCache() throws MojoExecutionException, MojoFailureException {
+		final int version = getImageJavaVersion();
+		if (version < 24) {
+			this.getLog().info("AOT cache requires Java 24 or later, the image has Java "
+					+ ((version > 0) ? Integer.toString(version) : "(unknown)") + ", creating a CDS archive instead");
+			createCdsArchive();
+			return;
+		}
+		final File launcherFile = getGeneratedLauncher();
+		if (launcherFile == null) {
+			this.getLog().warn("no launcher has been generated from the launcher template, no AOT cache created");
+			return;
+		}
+		final File aot = new File(new File(this.outputDirectoryImage, this.appFolderName), this.aotCacheName);
+		aot.delete();
+		final File config = new File(this.outputDirectoryImage.getParentFile(), "app.aotconf");
+		config.delete();
+		setJarModificationTimes();
+
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("aot training")) {
+			final TrainingRun run = createTrainingRun(launcherFile);
+			run.setJavaOptions(
+					Arrays.asList("-XX:AOTMode=record", "-XX:AOTConfiguration=" + config.getAbsolutePath()));
+			logTrainingResult(run.run(), run);
+			if (!config.isFile()) {
+				throw new MojoExecutionException("no AOT configuration has been recorded by the training run, see "
+						+ new File(this.outputDirectoryImage.getParentFile(), "training.log"));
+			}
+			// the application is not run again, the JVM exits after creating the cache
+			final TrainingRun create = createTrainingRun(launcherFile);
+			create.setJavaOptions(Arrays.asList("-XX:AOTMode=create",
+					"-XX:AOTConfiguration=" + config.getAbsolutePath(), "-XX:AOTCache=" + aot.getAbsolutePath()));
+			final int exitCode = create.run();
+			if (exitCode != 0) {
+				throw new MojoExecutionException("creating the AOT cache failed with exit code " + exitCode + ", see "
+						+ new File(this.outputDirectoryImage.getParentFile(), "training.log"));
+			}
+			if (aot.isFile()) {
+				stage.addFiles(1);
+				stage.addBytes(aot.length());
 			}
 		}
 
-		if (this.jPacktoolMoveAutomaticModules) {
-			Files.newDirectoryStream(outputDirectoryAutomaticJars.toPath(), path -> path.toString().endsWith(".jar"))
-					.forEach(t -> {
-						try {
-							moveJarToJLinkOutAutomatic(t);
-						} catch (IOException e) {
-							lastException = e;
-						}
-					});
-			if (lastException != null) {
-				throw lastException;
+		useArchiveInLauncher(aot, "AOT cache", "-XX:AOTCache=");
+	}
+
+	/**
+	 * Give all jars of the image the modification time written to image layers.
+	 * CDS archives and AOT caches record the modification times of the jars on
+	 * the class path and module path and are not used by the JVM if these
+	 * differ, e.g. after the image has been unpacked from its layers. A jar
+	 * which is a link to another file is replaced by a copy first.
+	 *
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected void setJarModificationTimes() throws MojoExecutionException {
+		final FileTime time = FileTime.fromMillis(LayerArchive.MODIFICATION_TIME);
+		final List<Path> jars;
+		try (Stream<Path> files = Files.walk(this.outputDirectoryImage.toPath())) {
+			jars = files.filter(file -> file.getFileName().toString().endsWith(".jar"))
+					.filter(file -> Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)).collect(Collectors.toList());
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to list the jars of " + this.outputDirectoryImage, e);
+		}
+		for (final Path jar : jars) {
+			try {
+				if (time.equals(Files.getLastModifiedTime(jar))) {
+					continue;
+				}
+				// do not touch the file in the staging directory or the local repository
+				final Path copy = jar.resolveSibling(jar.getFileName() + ".tmp");
+				Files.copy(jar, copy, StandardCopyOption.REPLACE_EXISTING);
+				Files.setLastModifiedTime(copy, time);
+				Files.move(copy, jar, StandardCopyOption.REPLACE_EXISTING);
+			} catch (final IOException e) {
+				throw new MojoExecutionException("unable to set the modification time of " + jar, e);
 			}
 		}
+	}
 
-		if (this.jPacktoolMoveRealModules) {
-			Files.newDirectoryStream(outputDirectoryModules.toPath(), path -> path.toString().endsWith(".jar"))
-					.forEach(t -> {
-						try {
-							moveJarToJLinkOutModule(t);
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					});
-			if (lastException != null) {
-				throw lastException;
+	/**
+	 * Get the feature version of the Java runtime in the image from its release
+	 * file.
+	 *
+	 * @return the version, e.g. 24, or 0 if it is unknown
+	 */
+	protected int getImageJavaVersion() {
+		final File release = new File(this.outputDirectoryImage, "release");
+		final Properties props = new Properties();
+		try (InputStream is = Files.newInputStream(release.toPath())) {
+			props.load(is);
+		} catch (final IOException e) {
+			return 0;
+		}
+		final String version = props.getProperty("JAVA_VERSION", "").replace("\"", "");
+		final Matcher m = Pattern.compile("^(?:1\\.)?(\\d+)").matcher(version);
+		return m.find() ? Integer.parseInt(m.group(1)) : 0;
+	}
+
+	private void useArchiveInLauncher(final File archive, final String what, final String option)
+			throws MojoExecutionException, MojoFailureException {
+		if (!archive.isFile()) {
+			throw new MojoExecutionException(what + " " + archive + " has not been created, see "
+					+ new File(this.outputDirectoryImage.getParentFile(), "training.log"));
+		}
+		this.getLog().info(what + " " + archive + " created (" + archive.length() + " bytes)");
+
+		// the launcher changes to the image directory before it starts java
+		addJvmArgToModel(option + this.appFolderName + File.separator + archive.getName());
+		generateScript();
+	}
+
+	/**
+	 * Record the classes loaded at startup by a training run and link the
+	 * image again with the classes in that order. Only <code>lib/modules</code>
+	 * and CDS archives created by jlink are taken from the new link, the rest
+	 * of the image is kept.
+	 *
+	 * @param jLinkExec the jlink executable
+	 * @throws MojoExecutionException if the training run or jlink fails
+	 */
+	protected void orderImageResources(final String jLinkExec) throws MojoExecutionException {
+		final File launcherFile = getGeneratedLauncher();
+		if (launcherFile == null) {
+			this.getLog().warn("no launcher has been generated from the launcher template, resources not ordered");
+			return;
+		}
+		final File parent = this.outputDirectoryImage.getParentFile();
+		final File classLoadLog = new File(parent, "classload.log");
+		final File orderFile = new File(parent, this.outputDirectoryImage.getName() + ".order");
+		final File ordered = new File(parent, this.outputDirectoryImage.getName() + ".ordered");
+
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("order resources")) {
+			classLoadLog.delete();
+			final TrainingRun run = createTrainingRun(launcherFile);
+			// relative to the image, an absolute path may contain a colon on windows
+			run.setJavaOptions(Collections
+					.singletonList("-Xlog:class+load=info:file=../" + classLoadLog.getName() + ":none"));
+			logTrainingResult(run.run(), run);
+			if (!classLoadLog.isFile()) {
+				throw new MojoExecutionException("no classes have been logged by the training run, see "
+						+ new File(parent, "training.log"));
 			}
+
+			final List<String> classes = readLoadedClasses(classLoadLog);
+			Files.write(orderFile.toPath(), classes, StandardCharsets.UTF_8);
+			this.getLog().info(classes.size() + " classes loaded by the training run written to " + orderFile);
+
+			FileUtils.deleteDirectory(ordered);
+			final Commandline cmd = createOrderedJLinkCommandLine(ordered, orderFile);
+			cmd.setExecutable(jLinkExec);
+			executeCommand(cmd);
+
+			for (final String path : new String[] { "lib/modules", "lib/server/classes.jsa",
+					"lib/server/classes_nocoops.jsa", "bin/server/classes.jsa", "bin/server/classes_nocoops.jsa" }) {
+				final File from = new File(ordered, path);
+				if (from.isFile()) {
+					Files.copy(from.toPath(), new File(this.outputDirectoryImage, path).toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+					stage.addFiles(1);
+					stage.addBytes(from.length());
+				}
+			}
+			FileUtils.deleteDirectory(ordered);
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to order resources: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read the classes from a <code>-Xlog:class+load</code> log without
+	 * decorations in load order. Hidden classes like lambdas are skipped as
+	 * they are not stored in the image.
+	 *
+	 * @param classLoadLog the log
+	 * @return the class names as resource paths without <code>.class</code>
+	 * @throws IOException on i/o error
+	 */
+	protected static List<String> readLoadedClasses(final File classLoadLog) throws IOException {
+		final Set<String> classes = new LinkedHashSet<>();
+		for (final String line : Files.readAllLines(classLoadLog.toPath(), StandardCharsets.UTF_8)) {
+			final int i = line.indexOf(" source: ");
+			if (i <= 0) {
+				continue;
+			}
+			final String name = line.substring(0, i).trim();
+			if (name.isEmpty() || (name.indexOf('/') >= 0) || (name.indexOf(' ') >= 0)) {
+				continue;
+			}
+			classes.add(name.replace('.', '/'));
+		}
+		return new ArrayList<>(classes);
+	}
+
+	/**
+	 * Create a jlink command line with the arguments of the last link, another
+	 * output directory and the resource order.
+	 *
+	 * @param output    the output directory
+	 * @param orderFile the file with the classes in load order
+	 * @return the command line
+	 * @throws IOException on i/o error
+	 */
+	protected Commandline createOrderedJLinkCommandLine(final File output, final File orderFile)
+			throws IOException {
+		final List<String> lines = Files.readAllLines(getJLinkArgsFile().toPath(), StandardCharsets.UTF_8);
+		final List<String> args = new ArrayList<>();
+		boolean outputValue = false;
+		for (final String line : lines) {
+			args.add(outputValue ? output.getAbsolutePath() : line);
+			outputValue = "--output".equals(line);
+		}
+		args.add("--order-resources=@" + orderFile.getAbsolutePath());
+
+		final File file = new File(getJLinkArgsFile().getParentFile(), "jlinkArgsOrdered");
+		if (!this.getLog().isDebugEnabled()) {
+			file.deleteOnExit();
+		}
+		Files.write(file.toPath(), args, StandardCharsets.UTF_8);
+
+		final Commandline cmd = new Commandline();
+		cmd.createArg().setValue('@' + file.getAbsolutePath());
+		return cmd;
+	}
+
+	/**
+	 * Put the values for the CDS archive created by the launcher into the
+	 * model.
+	 *
+	 * @throws MojoExecutionException if the application folder can not be read
+	 */
+	protected void updateAutoCdsModel() throws MojoExecutionException {
+		if (jpacktoolModel == null) {
+			jpacktoolModel = new HashMap<String, Object>();
+		}
+		jpacktoolModel.put("autoCds", Boolean.TRUE);
+		jpacktoolModel.put("autoCdsName", this.autoCdsName);
+		jpacktoolModel.put("autoCdsId", getApplicationChecksum().substring(0, 16));
+	}
+
+	/**
+	 * Get a checksum over the files of the application folder and the JVM
+	 * arguments, which decide whether a CDS archive matches the application.
+	 *
+	 * @return the SHA-256 as hex string
+	 * @throws MojoExecutionException if the application folder can not be read
+	 */
+	protected String getApplicationChecksum() throws MojoExecutionException {
+		final Path appFolder = new File(this.outputDirectoryImage, this.appFolderName).toPath();
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(String.valueOf(jpacktoolModel.get("jvmArgs")).getBytes(StandardCharsets.UTF_8));
+			if (Files.isDirectory(appFolder)) {
+				final List<Path> files;
+				try (Stream<Path> stream = Files.walk(appFolder)) {
+					files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+				}
+				for (final Path file : files) {
+					digest.update(appFolder.relativize(file).toString().replace('\\', '/')
+							.getBytes(StandardCharsets.UTF_8));
+					digest.update(Files.readAllBytes(file));
+				}
+			}
+			return bytesToHex(digest.digest());
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to read " + appFolder + ": " + e.getMessage(), e);
+		} catch (final NoSuchAlgorithmException e) {
+			throw new MojoExecutionException("SHA-256 not available", e);
+		}
+	}
+
+	private void logTrainingResult(final int exitCode, final TrainingRun run) {
+		if (run.isTimedOut()) {
+			this.getLog().info("training run terminated after " + this.trainingTimeout + " seconds");
+		} else if (exitCode != 0) {
+			this.getLog().warn("training run exited with code " + exitCode);
+		}
+	}
+
+	/**
+	 * Archive runtime and application of the image as separate layers and attach
+	 * them with their checksums.
+	 *
+	 * @throws MojoExecutionException on i/o error
+	 * @throws MojoFailureException   if a checksum can not be written
+	 */
+	protected void createImageLayers() throws MojoExecutionException, MojoFailureException {
+		final LayerArchive runtimeLayer = new LayerArchive(this.outputDirectoryImage);
+		final LayerArchive appLayer = new LayerArchive(this.outputDirectoryImage);
+
+		try (PerformanceTrace.Stage stage = this.getPerformanceTrace().start("layers")) {
+			final Predicate<String> isRuntimeFile = getRuntimeFilePredicate();
+			for (final String path : listImageFiles(this.outputDirectoryImage)) {
+				if (isRuntimeFile.test(path)) {
+					runtimeLayer.add(path);
+				} else {
+					appLayer.add(path);
+				}
+			}
+
+			final String finalName = this.getFinalName();
+			final String platform = getPlatformClassifier();
+			final File runtimeFile = this.getArtifactFile(this.buildDirectory, finalName, "runtime", "tgz");
+			final File appFile = this.getArtifactFile(this.buildDirectory, finalName, "app", "tgz");
+			runtimeLayer.write(runtimeFile);
+			appLayer.write(appFile);
+			stage.addFiles(runtimeLayer.size() + appLayer.size());
+			stage.addBytes(runtimeLayer.getSize() + appLayer.getSize());
+
+			this.getLog().info("runtime layer " + runtimeFile.getName() + " sha256:" + runtimeLayer.getDigest());
+			this.getLog().info("app layer " + appFile.getName() + " sha256:" + appLayer.getDigest());
+
+			final String prefix = (platform == null) ? "" : platform + "-";
+			this.mavenProjectHelper.attachArtifact(this.project, "tgz", prefix + "runtime", runtimeFile);
+			this.mavenProjectHelper.attachArtifact(this.project, "tgz", prefix + "app", appFile);
+			publishSHA256(runtimeFile, prefix + "runtime");
+			publishSHA256(appFile, prefix + "app");
+		} catch (final IOException e) {
+			throw new MojoExecutionException("error creating image layers: " + e.getMessage(), e);
+		}
+	}
+
+	protected String getPlatformClassifier() {
+		if (SystemUtils.IS_OS_LINUX) {
+			return "linux";
+		} else if (SystemUtils.IS_OS_WINDOWS) {
+			return "windows";
+		} else if (SystemUtils.IS_OS_MAC) {
+			return "mac";
+		}
+		return null;
+	}
+
+	protected void updateModel() throws MojoFailureException {
+		super.updateModel();
+
+		if (mainJar != null) {
+			jpacktoolModel.put("mainJar", mainJar);
+		}
+
+		if (mainClass != null) {
+			jpacktoolModel.put("mainClass", mainClass);
+		}
+
+		if (mainModule != null) {
+			jpacktoolModel.put("mainModule", mainModule);
 		}
 	}
 
@@ -458,9 +1200,165 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 		}
 	}
 
+	/**
+	 * Get the jlink options which affect the content of the runtime. The jlink
+	 * command line of the image and runtimes linked into the runtime cache are
+	 * both created from them.
+	 *
+	 * @return the options
+	 */
+	protected List<String> getBaseRuntimeOptions() {
+		final List<String> options = new ArrayList<>();
+		if (this.stripDebug) {
+			options.add("--strip-debug");
+		}
+		if (this.bindServices) {
+			options.add("--bind-services");
+		}
+		if (this.endian != null) {
+			options.add("--endian");
+			options.add(this.endian);
+		}
+		if (this.ignoreSigningInformation) {
+			options.add("--ignore-signing-information");
+		}
+		if (this.compress != null) {
+			options.add("--compress");
+			options.add(this.compress.toString());
+		}
+		if (this.disablePlugin != null) {
+			options.add("--disable-plugin");
+			options.add(this.disablePlugin);
+		}
+		if (this.noHeaderFiles) {
+			options.add("--no-header-files");
+		}
+		if (this.noManPages) {
+			options.add("--no-man-pages");
+		}
+		return options;
+	}
+
+	protected File getJLinkArgsFile() {
+		return new File(this.outputDirectoryImage.getParentFile(), "jlinkArgs");
+	}
+
+	protected File getLinkFingerprintFile() {
+		return new File(this.outputDirectoryImage.getParentFile(),
+				this.outputDirectoryImage.getName() + ".fingerprint");
+	}
+
+	/**
+	 * Create the fingerprint of everything which goes into the Java Run Time
+	 * Image: the jlink arguments, the content of all module path entries, the
+	 * <code>release</code> file of the JDK and the plugin version.
+	 *
+	 * @param fingerprintFile the fingerprint of the previous build
+	 * @param jdkHome         the home directory of the JDK providing jlink
+	 * @return the fingerprint
+	 * @throws MojoExecutionException on i/o error
+	 * @throws MojoFailureException   if the plugin version can not be read
+	 */
+	protected LinkFingerprint createLinkFingerprint(final File fingerprintFile, final File jdkHome)
+			throws MojoExecutionException, MojoFailureException {
+		final PerformanceTrace.Stage stage = this.getPerformanceTrace().start("link fingerprint");
+		try {
+			final LinkFingerprint fingerprint = new LinkFingerprint(fingerprintFile);
+			fingerprint.add("pluginVersion", getPluginVersion());
+			fingerprint.add("orderResources", Boolean.toString(this.orderResources));
+			fingerprint.add("jlinkArgs",
+					new String(Files.readAllBytes(getJLinkArgsFile().toPath()), StandardCharsets.UTF_8));
+			fingerprint.addFile(new File(jdkHome, "release"));
+			if (this.sourceJdkModules != null && this.sourceJdkModules.isDirectory()) {
+				fingerprint.addFile(new File(this.sourceJdkModules, "release"));
+			}
+			for (final String path : this.pathsOfModules) {
+				fingerprint.addFile(new File(path));
+			}
+			return fingerprint;
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to compute link fingerprint: " + e.getMessage(), e);
+		} finally {
+			stage.close();
+		}
+	}
+
+	/**
+	 * Check if the existing Java Run Time Image has been linked from the same
+	 * inputs.
+	 *
+	 * @param fingerprint the fingerprint of the current inputs or
+	 *                    <code>null</code> if incremental linking is disabled
+	 * @return <code>true</code> if jlink does not need to run
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected boolean isRuntimeImageUpToDate(final LinkFingerprint fingerprint) throws MojoExecutionException {
+		if ((fingerprint == null) || (this.appFolderName == null) || "".equals(this.appFolderName)
+				|| !new File(this.outputDirectoryImage, "release").isFile() || !getRuntimeFileList().isFile()) {
+			// without an app folder the application can not be told apart from the runtime
+			return false;
+		}
+		try {
+			return fingerprint.matchesPrevious();
+		} catch (final IOException e) {
+			throw new MojoExecutionException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Delete everything from the image which is not part of the runtime: the
+	 * application, resources, generated content and scripts of the previous
+	 * build.
+	 *
+	 * @throws MojoExecutionException on i/o error
+	 */
+	protected void deleteNonRuntimeFiles() throws MojoExecutionException {
+		final Path image = this.outputDirectoryImage.toPath();
+		try {
+			final Predicate<String> runtimeFiles = getRuntimeFilePredicate();
+			final List<Path> paths;
+			try (Stream<Path> files = Files.walk(image)) {
+				paths = files.sorted(Collections.reverseOrder()).collect(Collectors.toList());
+			}
+			for (final Path path : paths) {
+				if (path.equals(image)) {
+					continue;
+				}
+				final String relative = image.relativize(path).toString().replace(File.separatorChar, '/');
+				if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					try (Stream<Path> children = Files.list(path)) {
+						if (!children.findAny().isPresent()) {
+							Files.delete(path);
+						}
+					}
+				} else if (!runtimeFiles.test(relative)) {
+					this.getLog().debug("Deleting " + path);
+					Files.delete(path);
+				}
+			}
+		} catch (final IOException e) {
+			throw new MojoExecutionException("unable to delete the application from " + this.outputDirectoryImage
+					+ ": " + e.getMessage(), e);
+		}
+	}
+
+	protected void deleteAppFolder() throws MojoExecutionException {
+		final File appFolder = new File(this.outputDirectoryImage, this.appFolderName);
+		if (appFolder.exists()) {
+			try {
+				this.getLog().debug("Deleting existing " + appFolder.getAbsolutePath());
+				FileUtils.forceDelete(appFolder);
+			} catch (final IOException e) {
+				this.getLog().error("IOException", e);
+				throw new MojoExecutionException(
+						"Failure during deletion of " + appFolder.getAbsolutePath() + " occured.");
+			}
+		}
+	}
+
 	protected Commandline createJLinkCommandLine(final Collection<String> pathsOfModules,
 			final Collection<String> modulesToAdd) throws IOException {
-		final File file = new File(this.outputDirectoryImage.getParentFile(), "jlinkArgs");
+		final File file = getJLinkArgsFile();
 		if (!this.getLog().isDebugEnabled()) {
 			file.deleteOnExit();
 		}
@@ -469,35 +1367,15 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 
 		final PrintStream argsFile = new PrintStream(file);
 
-		if (this.stripDebug) {
-			argsFile.println("--strip-debug");
-		}
-
-		if (this.bindServices) {
-			argsFile.println("--bind-services");
+		for (final String option : getBaseRuntimeOptions()) {
+			argsFile.println(quoteArgsFileOption(option));
 		}
 
-		if (this.endian != null) {
-			argsFile.println("--endian");
-			argsFile.println(this.endian);
-		}
-		if (this.ignoreSigningInformation) {
-			argsFile.println("--ignore-signing-information");
-		}
-		if (this.compress != null) {
-			argsFile.println("--compress");
-			argsFile.println(this.compress);
-		}
 		if (this.launcher != null) {
 			argsFile.println("--launcher");
 			argsFile.println(this.launcher);
 		}
 
-		if (this.disablePlugin != null) {
-			argsFile.println("--disable-plugin");
-			argsFile.append('"').append(this.disablePlugin).println('"');
-
-		}
 		if (pathsOfModules != null) {
 			// @formatter:off
 			argsFile.println("--module-path");
@@ -505,14 +1383,6 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 			// @formatter:off
 		}
 
-		if (this.noHeaderFiles) {
-			argsFile.println("--no-header-files");
-		}
-
-		if (this.noManPages) {
-			argsFile.println("--no-man-pages");
-		}
-
 		if (this.hasSuggestProviders()) {
 			argsFile.println("--suggest-providers");
 			final String sb = this.getCommaSeparatedList(this.suggestProviders);
@@ -556,6 +1426,13 @@ public class JLinkMojo extends AbstractPackageToolMojo {
 		return cmd;
 	}
 
+	private static String quoteArgsFileOption(final String option) {
+		if (option.contains(" ") || option.contains("\t") || option.contains("\"")) {
+			return '"' + option.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+		}
+		return option;
+	}
+
 	protected boolean hasSuggestProviders() {
 		return this.suggestProviders != null && !this.suggestProviders.isEmpty();
 	}
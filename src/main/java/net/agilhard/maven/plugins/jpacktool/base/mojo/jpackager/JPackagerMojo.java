@@ -19,8 +19,6 @@ package net.agilhard.maven.plugins.jpacktool.base.mojo.jpackager;
  * under the License.
  */
 
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-
 /*
  * Licensed to the Apache Software Foundation (ASF) under one
  * or more contributor license agreements.  See the NOTICE file
@@ -47,6 +45,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.BiPredicate;
@@ -63,6 +62,7 @@ import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 
 import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractPackageToolMojo;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.PerformanceTrace;
 
 /**
  * The JPackager goal is intended to create a native installer package file based on
@@ -392,9 +392,6 @@ public class JPackagerMojo extends AbstractPackageToolMojo
     protected boolean usingJDK11Jpackager;
 
     
-    protected Exception lastException;
-
-    
     protected String getJPackageExecutable()
         throws IOException
 
@@ -467,24 +464,43 @@ public class JPackagerMojo extends AbstractPackageToolMojo
             tempDirToAdd = null;
         }
         
-        prepareModules( jmodsFolder, true, this.copyArtifacts, tempDirToAdd );
+        final PerformanceTrace.Stage prepareStage = this.getPerformanceTrace().start( "prepare modules" );
+        try
+        {
+            prepareModules( jmodsFolder, true, this.copyArtifacts, tempDirToAdd );
+        }
+        finally
+        {
+            prepareStage.close();
+        }
 
         addSystemModulesFromJPackToolPrepare();
         
         if ( this.copyArtifacts && (! outputDirectoryModules.isDirectory() ))
         {
             this.ifModuleTempDirectoryDoesNotExistCreateIt();
-            this.copyArtifactsToModuleTempDirectory();
+            final PerformanceTrace.Stage copyStage = this.getPerformanceTrace().start( "copy artifacts" );
+            try
+            {
+                this.copyArtifactsToModuleTempDirectory();
+            }
+            finally
+            {
+                copyStage.close();
+            }
         }
 
         updateModel();
+
+        if ( ( this.runtimeImage == null ) && ( this.module == null ) && !this.skipModulesInclude
+            && canUseBaseRuntime( jmodsFolder, false ) )
+        {
+            this.runtimeImage = copyBaseRuntime( getBaseRuntime( jmodsFolder, getBaseRuntimeOptions() ) );
+            this.skipModulesInclude = true;
+        }
         
         if ( jpacktoolPrepareUsed ) {
-            try {
-                this.moveJPacktoolJars();
-            } catch (Exception e) {
-                throw new MojoExecutionException( e.getMessage() );
-            }
+            layoutJPacktoolJars( inputDirectoryPackage, null );
         }
         
         generateContent();
@@ -521,86 +537,122 @@ public class JPackagerMojo extends AbstractPackageToolMojo
         }
 
         publishPackageArtifacts();
-        publishJPacktoolProperties();
-    }
 
-    
-    protected void moveJarToInputClasspath(Path source) throws IOException {
-        Path target = resolveAndCreate(inputDirectoryPackage, null, classPathFolderName);
+        if ( this.ociImage )
+        {
+            createOciImageFromAppImage();
+        }
 
-        target = target.resolve(source.getFileName());
-        Files.move(source, target, REPLACE_EXISTING);
-    }
-    
-    protected void moveJarToInputAutomatic(Path source) throws IOException  {
-        Path target = resolveAndCreate(inputDirectoryPackage, null, automaticModulesFolderName);
+        publishLauncher();
 
-        target = target.resolve(source.getFileName());
-        Files.move(source, target, REPLACE_EXISTING);
+        publishJPacktoolProperties();
     }
-    
-    protected void moveJarToInputModule(Path source) throws IOException  {
-        Path target = resolveAndCreate(inputDirectoryPackage, null, modulesFolderName);
 
-        target = target.resolve(source.getFileName());
-        Files.move(source, target, REPLACE_EXISTING);
+    /**
+     * Get the application image created by jpackage.
+     *
+     * @return the directory or <code>null</code> if no application image has been created
+     */
+    protected File getAppImageDirectory()
+    {
+        File appImageDir = new File( this.outputDirectoryPackage, this.name );
+        if ( !appImageDir.isDirectory() )
+        {
+            appImageDir = new File( this.outputDirectoryPackage, this.name + ".app" );
+        }
+        return appImageDir.isDirectory() ? appImageDir : null;
     }
-    
-    protected void moveJPacktoolJars() throws Exception {
-        
-        lastException = null;
-        
-        if ( this.jPacktoolMoveClassPathJars ) {
-        Files.newDirectoryStream(outputDirectoryClasspathJars.toPath(),
-                path -> path.toString().endsWith(".jar"))
-                .forEach(t -> {
-                    try {
-                        moveJarToInputClasspath(t);
-                    } catch (IOException e) {
-                        lastException=e;
-                    }
-                });
-            if ( lastException != null ) {
-                throw lastException;
+
+    /**
+     * Get the launcher of an application image.
+     *
+     * @param appImageDir the application image
+     * @return the path relative to the application image or <code>null</code> if not found
+     */
+    protected String getAppImageLauncher( File appImageDir )
+    {
+        for ( final String candidate : new String[] { "bin/" + this.name, this.name + ".exe",
+            "Contents/MacOS/" + this.name } )
+        {
+            if ( new File( appImageDir, candidate ).isFile() )
+            {
+                return candidate;
             }
         }
+        return null;
+    }
 
-        
-        if ( this.jPacktoolMoveAutomaticModules ) {
-        Files.newDirectoryStream(outputDirectoryAutomaticJars.toPath(),
-                path -> path.toString().endsWith(".jar"))
-                .forEach(t -> {
-                    try {
-                        moveJarToInputAutomatic(t);
-                    } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                });
-            if ( lastException != null ) {
-                throw lastException;
-            }
+    /**
+     * Put the launcher of the application image into the project properties for
+     * the benchmark-startup goal.
+     */
+    protected void publishLauncher()
+    {
+        final File appImageDir = getAppImageDirectory();
+        final String launcher = ( appImageDir == null ) ? null : getAppImageLauncher( appImageDir );
+        if ( launcher != null )
+        {
+            this.project.getProperties().put( this.jpacktoolPropertyPrefix + ".launcher",
+                new File( appImageDir, launcher ).getAbsolutePath() );
         }
+    }
 
-        
-        if ( this.jPacktoolMoveRealModules ) {
-        Files.newDirectoryStream(outputDirectoryModules.toPath(),
-                path -> path.toString().endsWith(".jar"))
-                .forEach(t -> {
-                    try {
-                        moveJarToInputModule(t);
-                    } catch (IOException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                });
-            if ( lastException != null ) {
-                throw lastException;
-            }
+    /**
+     * Write the application image created by jpackage as OCI image layout. The
+     * runtime jpackage has put into the application image is the runtime layer.
+     *
+     * @throws MojoExecutionException on i/o error
+     */
+    protected void createOciImageFromAppImage() throws MojoExecutionException
+    {
+        final File appImageDir = getAppImageDirectory();
+        if ( appImageDir == null )
+        {
+            this.getLog().warn( "no application image found in " + this.outputDirectoryPackage
+                + ", OCI image layout is only written for package type app-image" );
+            return;
         }
+
+        createOciImage( appImageDir, path -> path.startsWith( "lib/runtime/" ) || path.startsWith( "runtime/" )
+            || path.startsWith( "Contents/runtime/" ), getAppImageLauncher( appImageDir ) );
     }
 
     
+    /**
+     * Copy a runtime of the runtime cache to the build directory. jpackage reads
+     * the runtime while it runs and another build may remove it from the shared
+     * cache meanwhile.
+     *
+     * @param runtime the runtime in the cache
+     * @return the copy
+     * @throws MojoExecutionException on i/o error
+     */
+    protected File copyBaseRuntime( final File runtime )
+        throws MojoExecutionException
+    {
+        final File copy = new File( this.outputDirectoryJPacktool, "runtime-image" );
+        try
+        {
+            FileUtils.deleteDirectory( copy );
+        }
+        catch ( final IOException e )
+        {
+            throw new MojoExecutionException( "unable to delete " + copy + ": " + e.getMessage(), e );
+        }
+        copyBaseRuntime( runtime, copy );
+        return copy;
+    }
+
+    /**
+     * Get the jlink options jpackage uses by default for the runtime it links.
+     *
+     * @return the options
+     */
+    protected List<String> getBaseRuntimeOptions()
+    {
+        return Arrays.asList( "--strip-native-commands", "--strip-debug", "--no-man-pages", "--no-header-files" );
+    }
+
     protected void maySetPlatformDefaultType()
     {
         if ( ( this.packageType == null ) || ( "".equals( this.packageType) ) )
@@ -699,7 +751,7 @@ public class JPackagerMojo extends AbstractPackageToolMojo
                    try
                    {
                        final Path target = this.moduleTempDirectory.toPath().resolve( file.getFileName() );
-                       Files.copy( file, target, REPLACE_EXISTING );
+                       this.getFileStager().stage( file, target );
                    }
                    catch ( final IOException e )
                    {
@@ -6,15 +6,16 @@ cd %ScriptDir%
 cd ..
 
 <#if mainJar??>
-start /B bin\java ${jvmArgs!} -jar ${mainJar} ${arguments!} %*
+start /B /WAIT bin\java ${jvmArgs!} -jar ${mainJar} ${arguments!} %*
 <#else>
 <#if mainClass??>
 <#if mainModule??>
-start /B bin\java ${jvmArgs!} -m ${mainModule}/${mainClass} ${arguments!} %* 
+start /B /WAIT bin\java ${jvmArgs!} -m ${mainModule}/${mainClass} ${arguments!} %* 
 <#else>
-start /B bin\java ${jvmArgs!} ${mainClass} ${arguments!} %*
+start /B /WAIT bin\java ${jvmArgs!} ${mainClass} ${arguments!} %*
 </#if>
 <#else>
-start /B bin\java ${jvmArgs!} ${arguments!} %*
+start /B /WAIT bin\java ${jvmArgs!} ${arguments!} %*
 </#if>
 </#if>
+exit /B %ERRORLEVEL%
@@ -2,16 +2,48 @@
 cd "$($ScriptDir)\.."
 
 
+<#if autoCds??>
+# CDS archive created on the first start, see the autoCdsArchive parameter
+$CdsArgs = ""
+$JavaVersion = ""
+if (Test-Path release) {
+    $m = Select-String -Path release -Pattern '^JAVA_VERSION="(.*)"$'
+    if ($m) { $JavaVersion = $m.Matches[0].Groups[1].Value }
+}
+$JavaMajor = 0
+if ($JavaVersion -match '^(1\.)?(\d+)') { $JavaMajor = [int]$Matches[2] }
+$CdsDir = $env:JPACKTOOL_CDS_DIR
+if (-not $CdsDir) { $CdsDir = Join-Path $env:LOCALAPPDATA "${autoCdsName}" }
+$CdsFile = Join-Path $CdsDir "${autoCdsId}-$JavaVersion.jsa"
+$CdsDirOk = $false
+try { New-Item -ItemType Directory -Force -Path $CdsDir -ErrorAction Stop | Out-Null; $CdsDirOk = $true } catch { }
+if (($JavaMajor -ge 19) -and $CdsDirOk) {
+    $CdsArgs = "-XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=`"$CdsFile`""
+} elseif (Test-Path $CdsFile) {
+    $CdsArgs = "-XX:SharedArchiveFile=`"$CdsFile`""
+    Remove-Item "$CdsFile.lock" -ErrorAction SilentlyContinue
+} elseif (($JavaMajor -ge 13) -and $CdsDirOk) {
+    # only one process creates the archive, a lock left by a crashed start expires
+    $Lock = Get-Item "$CdsFile.lock" -ErrorAction SilentlyContinue
+    if ($Lock -and ($Lock.LastWriteTime -lt (Get-Date).AddMinutes(-10))) { Remove-Item $Lock.FullName }
+    try {
+        New-Item -ItemType Directory -Path "$CdsFile.lock" -ErrorAction Stop | Out-Null
+        $CdsArgs = "-XX:ArchiveClassesAtExit=`"$CdsFile`""
+    } catch { }
+}
+
+</#if>
 <#if mainJar??>
-Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!} -jar ${mainJar} %* ${arguments!} $args" -NoNewWindow -PassThru
+$Process = Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!}<#if autoCds??> $CdsArgs</#if> -jar ${mainJar} %* ${arguments!} $args" -NoNewWindow -PassThru -Wait
 <#else>
 <#if mainClass??>
 <#if mainModule??>
-Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!} -m ${mainModule}/${mainClass} ${arguments!} $args" -NoNewWindow -PassThru
+$Process = Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!}<#if autoCds??> $CdsArgs</#if> -m ${mainModule}/${mainClass} ${arguments!} $args" -NoNewWindow -PassThru -Wait
 <#else>
-Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!} ${mainClass} ${arguments!} $args" -NoNewWindow -PassThru
+$Process = Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!}<#if autoCds??> $CdsArgs</#if> ${mainClass} ${arguments!} $args" -NoNewWindow -PassThru -Wait
 </#if>
 <#else>
-Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!} ${arguments!} $args" -NoNewWindow -PassThru
+$Process = Start-Process -FilePath bin\java -ArgumentList "${jvmArgs!}<#if autoCds??> $CdsArgs</#if> ${arguments!} $args" -NoNewWindow -PassThru -Wait
 </#if>
 </#if>
+exit $Process.ExitCode
@@ -2,17 +2,45 @@
 
 cd $(dirname $(dirname $(readlink -f "$0")))
 
+<#if autoCds??>
+# CDS archive created on the first start, see the autoCdsArchive parameter
+CDS_ARGS=
+JAVA_VERSION=$(sed -n 's/^JAVA_VERSION="\(.*\)"$/\1/p' release 2>/dev/null)
+JAVA_MAJOR=$(echo "$JAVA_VERSION" | sed 's/^1\.//; s/[^0-9].*$//')
+CDS_DIR=$JPACKTOOL_CDS_DIR
+if [ -z "$CDS_DIR" ]; then
+  CDS_DIR=$XDG_CACHE_HOME
+  [ -z "$CDS_DIR" ] && CDS_DIR=$HOME/.cache
+  CDS_DIR=$CDS_DIR/${autoCdsName}
+fi
+CDS_FILE=$CDS_DIR/${autoCdsId}-$JAVA_VERSION.jsa
+if [ -n "$JAVA_MAJOR" ]; then
+  if [ "$JAVA_MAJOR" -ge 19 ] && mkdir -p "$CDS_DIR" 2>/dev/null && [ -w "$CDS_DIR" ]; then
+    CDS_ARGS="-XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=$CDS_FILE"
+  elif [ -f "$CDS_FILE" ]; then
+    CDS_ARGS="-XX:SharedArchiveFile=$CDS_FILE"
+    rmdir "$CDS_FILE.lock" 2>/dev/null
+  elif [ "$JAVA_MAJOR" -ge 13 ] && mkdir -p "$CDS_DIR" 2>/dev/null && [ -w "$CDS_DIR" ]; then
+    # only one process creates the archive, a lock left by a crashed start expires
+    find "$CDS_FILE.lock" -prune -mmin +10 -exec rmdir {} \; 2>/dev/null
+    if mkdir "$CDS_FILE.lock" 2>/dev/null; then
+      CDS_ARGS="-XX:ArchiveClassesAtExit=$CDS_FILE"
+    fi
+  fi
+fi
+
+</#if>
 <#if mainJar??>
-bin/java ${jvmArgs!} -jar ${mainJar} ${arguments!} $*
+exec bin/java ${jvmArgs!}<#if autoCds??> $CDS_ARGS</#if> -jar ${mainJar} ${arguments!} $*
 <#else>
 <#if mainClass??>
 <#if mainModule??>
-bin/java ${jvmArgs!} -m ${mainModule}/${mainClass} ${arguments!} $* 
+exec bin/java ${jvmArgs!}<#if autoCds??> $CDS_ARGS</#if> -m ${mainModule}/${mainClass} ${arguments!} $* 
 <#else>
-bin/java ${jvmArgs!} ${mainClass} ${arguments!} $*
+exec bin/java ${jvmArgs!}<#if autoCds??> $CDS_ARGS</#if> ${mainClass} ${arguments!} $*
 </#if>
 <#else>
-bin/java ${jvmArgs!} ${arguments!} $*
+exec bin/java ${jvmArgs!}<#if autoCds??> $CDS_ARGS</#if> ${arguments!} $*
 </#if>
 </#if>
 
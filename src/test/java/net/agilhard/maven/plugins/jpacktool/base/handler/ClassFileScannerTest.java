@@ -0,0 +1,70 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * @author Bernd Eilers
+ */
+public class ClassFileScannerTest
+{
+
+    @Test
+    public void descriptorShouldReturnAllClasses()
+    {
+        Set<String> classes = new TreeSet<>();
+        ClassFileScanner.addDescriptor( "(ILjava/lang/String;[Ljava/util/List;)Ljava/io/File;", classes );
+        assertThat( classes ).containsExactly( "java/io/File", "java/lang/String", "java/util/List" );
+    }
+
+    @Test
+    public void primitiveDescriptorShouldReturnNoClasses()
+    {
+        Set<String> classes = new TreeSet<>();
+        ClassFileScanner.addDescriptor( "([IJ)V", classes );
+        assertThat( classes ).isEmpty();
+    }
+
+    @Test
+    public void packageOfUnnamedPackageShouldBeNull()
+    {
+        assertThat( ClassFileScanner.getPackage( "Foo.class" ) ).isNull();
+        assertThat( ClassFileScanner.getPackage( "java/util/jar/JarFile" ) ).isEqualTo( "java.util.jar" );
+    }
+
+    @Test
+    public void scanClassShouldFindReferencedClasses() throws IOException
+    {
+        Set<String> classes = new TreeSet<>();
+        try ( InputStream is = ClassFileScanner.class.getResourceAsStream( "ClassFileScanner.class" ) )
+        {
+            ClassFileScanner.scanClass( is, classes );
+        }
+        assertThat( classes ).contains( "java/util/jar/JarFile", "java/io/DataInputStream", "java/io/File" );
+    }
+}
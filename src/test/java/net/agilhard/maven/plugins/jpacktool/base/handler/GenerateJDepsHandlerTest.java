@@ -0,0 +1,261 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.agilhard.maven.plugins.jpacktool.base.mojo.AbstractToolMojo;
+import net.agilhard.maven.plugins.jpacktool.base.mojo.PerformanceTrace;
+
+/**
+ * Compares the results of a batch jdeps call with the results of single jdeps
+ * calls for a sample graph. The jdeps output has been recorded with JDK 17:
+ * a.jar uses b.jar, java.sql and java.base, b.jar uses java.logging and c.jar
+ * uses java.logging and java.sql. Without b.jar on the module path jdeps
+ * reports only the JDK modules for a.jar when missing dependencies are
+ * ignored.
+ *
+ * @author Bernd Eilers
+ */
+public class GenerateJDepsHandlerTest
+{
+
+    private static final String SPLIT_A = "Warning: split package: pa file:///tmp/jd/auto/a.jar auto/a.jar";
+
+    private static final String SPLIT_B = "Warning: split package: pb file:///tmp/jd/auto/b.jar auto/b.jar";
+
+    private static final String SPLIT_C = "Warning: split package: pc file:///tmp/jd/auto/c.jar auto/c.jar";
+
+    private AbstractToolMojo mojoMock;
+
+    private File automaticJars;
+
+    private final Map<String, List<String>> singleOutput = new HashMap<>();
+
+    private final List<String> batchArgs = new ArrayList<>();
+
+    private final List<String> calls = Collections.synchronizedList( new ArrayList<>() );
+
+    private boolean staging;
+
+    private class TestHandler extends GenerateJDepsHandler
+    {
+        TestHandler() throws MojoExecutionException
+        {
+            super( mojoMock, null, null, true, false, false, null, null, false, false );
+        }
+
+        @Override
+        protected List<String> executeJdepsForked( File sourceFile )
+        {
+            calls.add( sourceFile.getName() );
+            if ( staging && sourceFile.getName().equals( "a.jar" ) && !new File( automaticJars, "b.jar" ).exists() )
+            {
+                return Arrays.asList( SPLIT_A, "java.base,java.sql" );
+            }
+            return singleOutput.get( sourceFile.getName() );
+        }
+
+        @Override
+        protected List<String> executeJdepsBatchCommand( List<String> args )
+        {
+            batchArgs.addAll( args );
+            return Arrays.asList( SPLIT_A, SPLIT_B, SPLIT_C,
+                                  "a.jar -> " + new File( automaticJars, "b.jar" ).getPath(),
+                                  "a.jar -> java.base",
+                                  "a.jar -> java.sql",
+                                  "b.jar -> java.base",
+                                  "b.jar -> java.logging",
+                                  "c.jar -> java.base",
+                                  "c.jar -> java.logging",
+                                  "c.jar -> java.sql" );
+        }
+
+        @Override
+        protected String getModuleName( File sourceFile )
+        {
+            return sourceFile.getName().replace( ".jar", "" );
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException, MojoExecutionException
+    {
+        automaticJars = Files.createTempDirectory( "jdeps" ).toFile();
+        automaticJars.deleteOnExit();
+
+        mojoMock = mock( AbstractToolMojo.class );
+        when( mojoMock.getLog() ).thenReturn( mock( Log.class ) );
+        when( mojoMock.getPerformanceTrace() ).thenReturn( new PerformanceTrace( "test" ) );
+        when( mojoMock.getOutputDirectoryAutomaticJars() ).thenReturn( automaticJars );
+        when( mojoMock.getSystemModules() ).thenReturn(
+            new ArrayList<>( Arrays.asList( "java.base", "java.logging", "java.sql", "java.xml" ) ) );
+
+        singleOutput.put( "a.jar", Arrays.asList( SPLIT_A, "b,java.base,java.sql" ) );
+        singleOutput.put( "b.jar", Arrays.asList( SPLIT_B, "java.base,java.logging" ) );
+        singleOutput.put( "c.jar", Arrays.asList( SPLIT_C, "java.base,java.sql" ) );
+    }
+
+    private void stage( String name ) throws IOException
+    {
+        File jar = new File( automaticJars, name );
+        Files.write( jar.toPath(), new byte[0] );
+        jar.deleteOnExit();
+    }
+
+    private void generate( GenerateJDepsHandler handler ) throws Exception
+    {
+        handler.generateJdeps( "g:a:jar:1.0", new File( automaticJars, "a.jar" ), true );
+        handler.generateJdeps( "g:b:jar:1.0", new File( automaticJars, "b.jar" ), true );
+        handler.generateJdeps( "g:c:jar:1.0", new File( automaticJars, "c.jar" ), false );
+        handler.executePendingJdeps();
+    }
+
+    @Test
+    public void batchShouldGiveTheSameMapsAsSingleCalls() throws Exception
+    {
+        GenerateJDepsHandler single = new TestHandler();
+        generate( single );
+
+        GenerateJDepsHandler batch = new TestHandler();
+        batch.setJdepsBatch( true );
+        generate( batch );
+
+        assertThat( batch.getAllModulesMap() ).isEqualTo( single.getAllModulesMap() );
+        assertThat( batch.getAutomaticModulesMap() ).isEqualTo( single.getAutomaticModulesMap() );
+        assertThat( batch.getLinkedModulesMap() ).isEqualTo( single.getLinkedModulesMap() );
+        assertThat( batch.getLinkedSystemModulesMap() ).isEqualTo( single.getLinkedSystemModulesMap() );
+        assertThat( new TreeSet<>( batch.getWarnings() ) ).isEqualTo( new TreeSet<>( single.getWarnings() ) );
+        assertThat( batch.getAutomaticModulesMap().get( "g:a:jar:1.0" ) ).containsExactly( "b" );
+    }
+
+    @Test
+    public void pipelineShouldGiveTheSameMapsAsSingleCalls() throws Exception
+    {
+        staging = true;
+        for ( String name : new String[] { "a.jar", "b.jar", "c.jar" } )
+        {
+            stage( name );
+        }
+        GenerateJDepsHandler single = new TestHandler();
+        generate( single );
+
+        // a.jar is analyzed before b.jar, which it depends on, has been staged
+        new File( automaticJars, "b.jar" ).delete();
+        calls.clear();
+        GenerateJDepsHandler pipeline = new TestHandler();
+        pipeline.startPrefetch();
+        try
+        {
+            pipeline.prefetchJdeps( new File( automaticJars, "a.jar" ) );
+            while ( !calls.contains( "a.jar" ) )
+            {
+                Thread.sleep( 10 );
+            }
+            stage( "b.jar" );
+            pipeline.prefetchJdeps( new File( automaticJars, "b.jar" ) );
+            pipeline.prefetchJdeps( new File( automaticJars, "c.jar" ) );
+            generate( pipeline );
+        }
+        finally
+        {
+            pipeline.stopPrefetch();
+        }
+
+        assertThat( pipeline.getAllModulesMap() ).isEqualTo( single.getAllModulesMap() );
+        assertThat( pipeline.getAutomaticModulesMap() ).isEqualTo( single.getAutomaticModulesMap() );
+        assertThat( pipeline.getLinkedModulesMap() ).isEqualTo( single.getLinkedModulesMap() );
+        assertThat( pipeline.getLinkedSystemModulesMap() ).isEqualTo( single.getLinkedSystemModulesMap() );
+        assertThat( pipeline.getAutomaticModulesMap().get( "g:a:jar:1.0" ) ).containsExactly( "b" );
+    }
+
+    @Test
+    public void missingDependenciesShouldBeDetected()
+    {
+        assertThat( GenerateJDepsHandler.hasMissingDependencies( Arrays.asList( SPLIT_A, "java.base" ) ) ).isFalse();
+        assertThat( GenerateJDepsHandler.hasMissingDependencies( Arrays.asList(
+            "   pa.A -> pb.B   not found",
+            "Error: Missing dependencies: classes not found from the module path and classpath." ) ) ).isTrue();
+    }
+
+    @Test
+    public void classFileAnalyzerShouldGiveTheSameMapsAsJdeps() throws Exception
+    {
+        String entry = LoggingAndSqlSample.class.getName().replace( '.', '/' ) + ".class";
+        File jar = new File( automaticJars, "c.jar" );
+        try ( OutputStream os = Files.newOutputStream( jar.toPath() );
+              JarOutputStream jos = new JarOutputStream( os );
+              InputStream is = LoggingAndSqlSample.class.getClassLoader().getResourceAsStream( entry ) )
+        {
+            jos.putNextEntry( new JarEntry( entry ) );
+            byte[] buffer = new byte[4096];
+            int n;
+            while ( ( n = is.read( buffer ) ) > 0 )
+            {
+                jos.write( buffer, 0, n );
+            }
+        }
+        jar.deleteOnExit();
+
+        GenerateJDepsHandler single = new TestHandler();
+        single.generateJdeps( "g:c:jar:1.0", jar, false );
+
+        GenerateJDepsHandler classFile = new TestHandler();
+        classFile.setClassFileAnalyzer( true );
+        classFile.generateJdeps( "g:c:jar:1.0", jar, false );
+
+        assertThat( classFile.getAllModulesMap() ).isEqualTo( single.getAllModulesMap() );
+        assertThat( classFile.getLinkedModulesMap() ).isEqualTo( single.getLinkedModulesMap() );
+        assertThat( classFile.getLinkedSystemModulesMap() ).isEqualTo( single.getLinkedSystemModulesMap() );
+        assertThat( classFile.getErrors() ).isEmpty();
+    }
+
+    @Test
+    public void batchShouldUseTheModulePath() throws Exception
+    {
+        GenerateJDepsHandler batch = new TestHandler();
+        batch.setJdepsBatch( true );
+        generate( batch );
+
+        assertThat( batchArgs ).contains( "--module-path", automaticJars.getCanonicalPath() );
+    }
+}
@@ -0,0 +1,41 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.sql.Connection;
+import java.util.logging.Logger;
+
+/**
+ * Class put into a jar to be analyzed by the class file analyzer in
+ * {@link GenerateJDepsHandlerTest}. It uses java.logging and java.sql like
+ * c.jar of the recorded jdeps output.
+ *
+ * @author Bernd Eilers
+ */
+public class LoggingAndSqlSample
+{
+
+    public static Connection connect( Logger logger )
+    {
+        logger.info( "connect" );
+        return null;
+    }
+}
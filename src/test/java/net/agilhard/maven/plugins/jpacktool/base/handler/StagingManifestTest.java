@@ -0,0 +1,168 @@
+package net.agilhard.maven.plugins.jpacktool.base.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Bernd Eilers
+ */
+public class StagingManifestTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File manifestFile;
+
+    private File staging;
+
+    private Path source;
+
+    private Path target;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        manifestFile = new File( folder.getRoot(), "staging.properties" );
+        staging = folder.newFolder( "staging" );
+        source = folder.newFolder( "repository" ).toPath().resolve( "a-1.0.jar" );
+        target = staging.toPath().resolve( "a-1.0.jar" );
+        write( source, "content" );
+        Files.copy( source, target );
+    }
+
+    private static void write( Path path, String content ) throws IOException
+    {
+        Files.write( path, Collections.singletonList( content ), StandardCharsets.UTF_8 );
+    }
+
+    private static void touch( Path path ) throws IOException
+    {
+        path.toFile().setLastModified( path.toFile().lastModified() + 2000 );
+    }
+
+    private StagingManifest reload() throws IOException
+    {
+        StagingManifest manifest = new StagingManifest( manifestFile, staging );
+        manifest.load();
+        return manifest;
+    }
+
+    private void stage() throws IOException
+    {
+        StagingManifest manifest = reload();
+        manifest.update( source, target );
+        manifest.save();
+    }
+
+    @Test
+    public void unknownJarShouldNotBeUpToDate() throws IOException
+    {
+        StagingManifest manifest = reload();
+        assertThat( manifest.contains( target ) ).isFalse();
+        assertThat( manifest.isUpToDate( source, target ) ).isFalse();
+    }
+
+    @Test
+    public void stagedJarShouldBeUpToDateAfterReload() throws IOException
+    {
+        stage();
+        StagingManifest manifest = reload();
+        assertThat( manifest.contains( target ) ).isTrue();
+        assertThat( manifest.isUpToDate( source, target ) ).isTrue();
+    }
+
+    @Test
+    public void changedSourceShouldNotBeUpToDate() throws IOException
+    {
+        stage();
+        write( source, "changed content" );
+        assertThat( reload().isUpToDate( source, target ) ).isFalse();
+    }
+
+    @Test
+    public void touchedSourceWithSameContentShouldBeUpToDate() throws IOException
+    {
+        stage();
+        touch( source );
+        assertThat( reload().isUpToDate( source, target ) ).isTrue();
+    }
+
+    @Test
+    public void touchedSourceWithOtherContentShouldNotBeUpToDate() throws IOException
+    {
+        stage();
+        write( source, "CONTENT" );
+        touch( source );
+        assertThat( reload().isUpToDate( source, target ) ).isFalse();
+    }
+
+    @Test
+    public void modifiedTargetShouldNotBeUpToDate() throws IOException
+    {
+        stage();
+        touch( target );
+        assertThat( reload().isUpToDate( source, target ) ).isFalse();
+
+        Files.delete( target );
+        assertThat( reload().isUpToDate( source, target ) ).isFalse();
+    }
+
+    @Test
+    public void otherSourceShouldNotBeUpToDate() throws IOException
+    {
+        stage();
+        Path other = folder.newFolder( "other" ).toPath().resolve( "a-1.0.jar" );
+        Files.copy( source, other );
+        assertThat( reload().isUpToDate( other, target ) ).isFalse();
+    }
+
+    @Test
+    public void removedJarShouldNotBeContained() throws IOException
+    {
+        stage();
+        StagingManifest manifest = reload();
+        manifest.remove( target );
+        manifest.save();
+        assertThat( reload().contains( target ) ).isFalse();
+    }
+
+    @Test
+    public void unreadableManifestShouldBeEmpty() throws IOException
+    {
+        Files.write( manifestFile.toPath(), Collections.singletonList( "a-1.0.jar=no,numbers" ),
+                     StandardCharsets.UTF_8 );
+        assertThat( reload().contains( target ) ).isFalse();
+    }
+}
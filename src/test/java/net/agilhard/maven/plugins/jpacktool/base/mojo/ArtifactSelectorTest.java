@@ -0,0 +1,88 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.Test;
+
+/**
+ * @author Bernd Eilers
+ */
+public class ArtifactSelectorTest
+{
+
+    private static ArtifactParameter parameter( String groupId, String artifactId, String version, String type,
+                                                String classifier )
+    {
+        return new ArtifactParameter( groupId, artifactId, version, null, type, classifier,
+                                      new DefaultArtifactHandler() );
+    }
+
+    private static Artifact artifact( String groupId, String artifactId, String version, String classifier )
+    {
+        return new DefaultArtifact( groupId, artifactId, version, "compile", "jar", classifier,
+                                    new DefaultArtifactHandler() );
+    }
+
+    @Test
+    public void literalParameterShouldMatchExactVersionOnly() throws MojoFailureException
+    {
+        ArtifactSelector selector =
+            ArtifactSelector.compile( Arrays.asList( parameter( "org.slf4j", "slf4j-api", "1.7.25", "jar", null ) ) );
+        assertThat( selector.matches( artifact( "org.slf4j", "slf4j-api", "1.7.25", null ) ) ).isTrue();
+        assertThat( selector.matches( artifact( "org.slf4j", "slf4j-api", "1.7.26", null ) ) ).isFalse();
+        assertThat( selector.matches( artifact( "org.slf4j", "slf4j-api", "1.7.25", "sources" ) ) ).isFalse();
+    }
+
+    @Test
+    public void wildcardsShouldMatchGroupAndVersion() throws MojoFailureException
+    {
+        ArtifactSelector selector =
+            ArtifactSelector.compile( Arrays.asList( parameter( "io.netty", "netty-*", "*", "jar", null ) ) );
+        assertThat( selector.matches( artifact( "io.netty", "netty-handler", "4.1.42", null ) ) ).isTrue();
+        assertThat( selector.matches( artifact( "io.nettyx", "netty-handler", "4.1.42", null ) ) ).isFalse();
+    }
+
+    @Test
+    public void versionRangeShouldBeApplied() throws MojoFailureException
+    {
+        ArtifactSelector selector = ArtifactSelector.compile(
+            Arrays.asList( parameter( "com.google.guava", "guava", "[20,30)", "jar", null ) ) );
+        assertThat( selector.matches( artifact( "com.google.guava", "guava", "28.1-jre", null ) ) ).isTrue();
+        assertThat( selector.matches( artifact( "com.google.guava", "guava", "31.0", null ) ) ).isFalse();
+    }
+
+    @Test
+    public void excludeFilterShouldIncludeUnselectedArtifacts() throws MojoFailureException
+    {
+        ArtifactSelector selector =
+            ArtifactSelector.compile( Arrays.asList( parameter( "org.foo", "bar", "*", "*", "*" ) ) );
+        assertThat( selector.toExcludeFilter().include( artifact( "org.foo", "bar", "1.0", "linux" ) ) ).isFalse();
+        assertThat( selector.toExcludeFilter().include( artifact( "org.foo", "baz", "1.0", null ) ) ).isTrue();
+        assertThat( ArtifactSelector.compile( null ).toExcludeFilter() ).isNull();
+    }
+}
@@ -0,0 +1,124 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Bernd Eilers
+ */
+public class BenchmarkStartupMojoTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Map<String, Long>> results( String metric, long... values )
+    {
+        List<Map<String, Long>> results = new ArrayList<>();
+        for ( long value : values )
+        {
+            results.add( Collections.singletonMap( metric, value ) );
+        }
+        return results;
+    }
+
+    @Test
+    public void medianOfAnOddNumberOfRuns()
+    {
+        assertThat( BenchmarkStartupMojo.median( results( "timeToExit", 30, 10, 20 ), "timeToExit" ) )
+            .isEqualTo( 20 );
+    }
+
+    @Test
+    public void medianOfAnEvenNumberOfRuns()
+    {
+        assertThat( BenchmarkStartupMojo.median( results( "timeToExit", 40, 10, 20, 30 ), "timeToExit" ) )
+            .isEqualTo( 25 );
+    }
+
+    @Test
+    public void medianShouldIgnoreRunsWithoutTheMetric()
+    {
+        List<Map<String, Long>> results = results( "timeToExit", 10, 20, 30 );
+        results.add( Collections.singletonMap( "peakRssKb", 1000L ) );
+        assertThat( BenchmarkStartupMojo.median( results, "timeToExit" ) ).isEqualTo( 20 );
+        assertThat( BenchmarkStartupMojo.median( results, "timeToReady" ) ).isEqualTo( -1 );
+    }
+
+    @Test
+    public void classLoadLogShouldGiveTimeToMainAndClassCount() throws IOException
+    {
+        File log = folder.newFile( "classload.log" );
+        Files.write( log.toPath(), Arrays.asList(
+            "[5ms] java.lang.Object source: shared objects file",
+            "[7ms] java.lang.String source: shared objects file",
+            "[42ms] com.example.Main source: file:/app/lib/app.jar",
+            "[43ms] com.example.Main$Inner source: file:/app/lib/app.jar",
+            "[44ms] com.example.Main source: file:/app/lib/other.jar" ), StandardCharsets.UTF_8 );
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        BenchmarkStartupMojo.readClassLoadLog( log, "com.example.Main", result );
+
+        assertThat( result.get( BenchmarkStartupMojo.TIME_TO_MAIN ) ).isEqualTo( 42L );
+        assertThat( result.get( BenchmarkStartupMojo.LOADED_CLASSES ) ).isEqualTo( 5L );
+    }
+
+    @Test
+    public void classLoadLogShouldIgnoreOtherLines() throws IOException
+    {
+        File log = folder.newFile( "classload.log" );
+        Files.write( log.toPath(), Arrays.asList(
+            "[1ms] java.lang.Object source: jrt:/java.base",
+            "[2ms] some other log line",
+            "" ), StandardCharsets.UTF_8 );
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        BenchmarkStartupMojo.readClassLoadLog( log, null, result );
+
+        assertThat( result.containsKey( BenchmarkStartupMojo.TIME_TO_MAIN ) ).isFalse();
+        assertThat( result.get( BenchmarkStartupMojo.LOADED_CLASSES ) ).isEqualTo( 1L );
+    }
+
+    @Test
+    public void missingClassLoadLogShouldAddNothing()
+    {
+        Map<String, Long> result = new LinkedHashMap<>();
+        BenchmarkStartupMojo.readClassLoadLog( new File( folder.getRoot(), "missing.log" ), "Main", result );
+
+        assertThat( result.isEmpty() ).isTrue();
+    }
+}
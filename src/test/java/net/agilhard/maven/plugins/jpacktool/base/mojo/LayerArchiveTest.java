@@ -0,0 +1,205 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Bernd Eilers
+ */
+public class LayerArchiveTest
+{
+
+    private static final String LONG_NAME = "very-long-directory-name-of-a-library-which-is-part-of-the-image/"
+        + "and-an-even-longer-file-name-which-does-not-fit-into-the-header.jar";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File base;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        base = folder.newFolder( "image" );
+        write( "lib/a.jar", "a" );
+        write( "bin/app", "#!/bin/sh" );
+        write( LONG_NAME, "long" );
+    }
+
+    private void write( String path, String content ) throws IOException
+    {
+        File file = new File( base, path );
+        file.getParentFile().mkdirs();
+        Files.write( file.toPath(), Collections.singletonList( content ), StandardCharsets.UTF_8 );
+    }
+
+    private LayerArchive archive( String... paths )
+    {
+        LayerArchive archive = new LayerArchive( base );
+        archive.setCompress( false );
+        for ( String path : paths )
+        {
+            archive.add( path );
+        }
+        return archive;
+    }
+
+    private static String string( byte[] tar, int offset, int length )
+    {
+        int end = offset;
+        while ( ( end < offset + length ) && ( tar[end] != 0 ) )
+        {
+            end++;
+        }
+        return new String( tar, offset, end - offset, StandardCharsets.UTF_8 );
+    }
+
+    private static long octal( byte[] tar, int offset, int length )
+    {
+        return Long.parseLong( string( tar, offset, length ).trim(), 8 );
+    }
+
+    /**
+     * Get the offsets of all headers of a tar file.
+     */
+    private static List<Integer> headers( byte[] tar )
+    {
+        List<Integer> headers = new ArrayList<>();
+        int offset = 0;
+        while ( ( offset + 512 <= tar.length ) && ( tar[offset] != 0 ) )
+        {
+            headers.add( offset );
+            long size = octal( tar, offset + 124, 12 );
+            offset += 512 + ( ( size + 511 ) / 512 ) * 512;
+        }
+        return headers;
+    }
+
+    private static String hex( byte[] bytes ) throws Exception
+    {
+        return AbstractToolMojo.bytesToHex( MessageDigest.getInstance( "SHA-256" ).digest( bytes ) );
+    }
+
+    @Test
+    public void headersShouldBeValidUstarHeaders() throws IOException
+    {
+        File target = new File( folder.getRoot(), "layer.tar" );
+        LayerArchive archive = archive( "lib/a.jar" );
+        archive.setPrefix( "/opt/app/" );
+        archive.write( target );
+        byte[] tar = Files.readAllBytes( target.toPath() );
+
+        List<String> names = new ArrayList<>();
+        for ( int offset : headers( tar ) )
+        {
+            names.add( string( tar, offset, 100 ) );
+            assertThat( string( tar, offset + 257, 6 ) ).isEqualTo( "ustar" );
+            assertThat( string( tar, offset + 265, 32 ) ).isEqualTo( "root" );
+            assertThat( octal( tar, offset + 108, 8 ) ).isEqualTo( 0 );
+            assertThat( octal( tar, offset + 136, 12 ) ).isEqualTo( LayerArchive.MODIFICATION_TIME / 1000 );
+
+            long checksum = 0;
+            for ( int i = 0; i < 512; i++ )
+            {
+                checksum += ( ( i >= 148 ) && ( i < 156 ) ) ? ' ' : ( tar[offset + i] & 0xff );
+            }
+            assertThat( octal( tar, offset + 148, 8 ) ).isEqualTo( checksum );
+        }
+        assertThat( names ).isEqualTo( Arrays.asList( "opt/", "opt/app/", "opt/app/lib/", "opt/app/lib/a.jar" ) );
+
+        int file = headers( tar ).get( 3 );
+        assertThat( (char) tar[file + 156] ).isEqualTo( '0' );
+        assertThat( octal( tar, file + 124, 12 ) ).isEqualTo( 2 );
+        assertThat( string( tar, file + 512, 2 ) ).isEqualTo( "a\n" );
+        assertThat( (char) tar[headers( tar ).get( 2 ) + 156] ).isEqualTo( '5' );
+        assertThat( tar.length % 512 ).isEqualTo( 0 );
+    }
+
+    @Test
+    public void longPathsShouldBeWrittenAsPaxRecords() throws IOException
+    {
+        File target = new File( folder.getRoot(), "layer.tar" );
+        archive( LONG_NAME ).write( target );
+        byte[] tar = Files.readAllBytes( target.toPath() );
+
+        List<Integer> headers = headers( tar );
+        int pax = headers.get( 1 );
+        assertThat( (char) tar[pax + 156] ).isEqualTo( 'x' );
+        int length = (int) octal( tar, pax + 124, 12 );
+        String record = new String( tar, pax + 512, length, StandardCharsets.UTF_8 );
+        assertThat( record ).isEqualTo( record.getBytes( StandardCharsets.UTF_8 ).length + " path=" + LONG_NAME
+            + "\n" );
+
+        int file = headers.get( 2 );
+        assertThat( (char) tar[file + 156] ).isEqualTo( '0' );
+        assertThat( LONG_NAME ).startsWith( string( tar, file, 100 ) );
+    }
+
+    @Test
+    public void archiveShouldBeReproducible() throws Exception
+    {
+        File first = new File( folder.getRoot(), "first.tar.gz" );
+        LayerArchive archive = archive( "bin/app", "lib/a.jar", LONG_NAME );
+        archive.setCompress( true );
+        archive.write( first );
+
+        File jar = new File( base, "lib/a.jar" );
+        jar.setLastModified( jar.lastModified() - 60000 );
+        Thread.sleep( 10 );
+
+        File second = new File( folder.getRoot(), "second.tar.gz" );
+        LayerArchive again = archive( LONG_NAME, "lib/a.jar", "bin/app" );
+        again.setCompress( true );
+        again.write( second );
+
+        assertThat( again.getDigest() ).isEqualTo( archive.getDigest() );
+        assertThat( again.getDiffId() ).isEqualTo( archive.getDiffId() );
+        assertThat( hex( Files.readAllBytes( second.toPath() ) ) ).isEqualTo( archive.getDigest() );
+        assertThat( archive.getSize() ).isEqualTo( first.length() );
+    }
+
+    @Test
+    public void diffIdShouldBeTheDigestOfTheTar() throws Exception
+    {
+        File target = new File( folder.getRoot(), "layer.tar" );
+        LayerArchive archive = archive( "lib/a.jar" );
+        archive.write( target );
+
+        assertThat( archive.getDiffId() ).isEqualTo( hex( Files.readAllBytes( target.toPath() ) ) );
+        assertThat( archive.getDigest() ).isEqualTo( archive.getDiffId() );
+    }
+}
@@ -0,0 +1,124 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Bernd Eilers
+ */
+public class LinkFingerprintTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File modules;
+
+    private File fingerprintFile;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        modules = folder.newFolder();
+        write( new File( modules, "a.jar" ), "a" );
+        write( new File( modules, "b.jmod" ), "b" );
+        fingerprintFile = new File( folder.getRoot(), "image.fingerprint" );
+    }
+
+    private static void write( File file, String content ) throws IOException
+    {
+        Files.write( file.toPath(), Collections.singletonList( content ), StandardCharsets.UTF_8 );
+    }
+
+    private LinkFingerprint create( String jlinkArgs ) throws IOException
+    {
+        LinkFingerprint fingerprint = new LinkFingerprint( fingerprintFile );
+        fingerprint.add( "jlinkArgs", jlinkArgs );
+        fingerprint.addFile( modules );
+        return fingerprint;
+    }
+
+    @Test
+    public void fingerprintShouldNotMatchWithoutPreviousRun() throws IOException
+    {
+        assertThat( create( "--add-modules a" ).matchesPrevious() ).isFalse();
+    }
+
+    @Test
+    public void fingerprintShouldMatchSameInputs() throws IOException
+    {
+        LinkFingerprint fingerprint = create( "--add-modules a" );
+        fingerprint.save( fingerprintFile );
+
+        LinkFingerprint next = create( "--add-modules a" );
+        assertThat( next.matchesPrevious() ).isTrue();
+        assertThat( next.compute() ).isEqualTo( fingerprint.compute() );
+    }
+
+    @Test
+    public void fingerprintShouldNotMatchChangedValue() throws IOException
+    {
+        create( "--add-modules a" ).save( fingerprintFile );
+        assertThat( create( "--add-modules a,b" ).matchesPrevious() ).isFalse();
+    }
+
+    @Test
+    public void fingerprintShouldNotMatchChangedContent() throws IOException
+    {
+        create( "--add-modules a" ).save( fingerprintFile );
+        File jar = new File( modules, "a.jar" );
+        write( jar, "changed" );
+        jar.setLastModified( jar.lastModified() + 2000 );
+        assertThat( create( "--add-modules a" ).matchesPrevious() ).isFalse();
+    }
+
+    @Test
+    public void fingerprintShouldNotMatchAddedOrRemovedFile() throws IOException
+    {
+        create( "--add-modules a" ).save( fingerprintFile );
+        write( new File( modules, "c.jar" ), "c" );
+        assertThat( create( "--add-modules a" ).matchesPrevious() ).isFalse();
+
+        create( "--add-modules a" ).save( fingerprintFile );
+        new File( modules, "c.jar" ).delete();
+        assertThat( create( "--add-modules a" ).matchesPrevious() ).isFalse();
+    }
+
+    @Test
+    public void touchingAFileShouldNotChangeTheFingerprint() throws IOException
+    {
+        create( "--add-modules a" ).save( fingerprintFile );
+        File jar = new File( modules, "a.jar" );
+        jar.setLastModified( jar.lastModified() + 2000 );
+        assertThat( create( "--add-modules a" ).matchesPrevious() ).isTrue();
+    }
+}
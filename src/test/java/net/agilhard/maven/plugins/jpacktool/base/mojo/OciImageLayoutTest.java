@@ -0,0 +1,165 @@
+package net.agilhard.maven.plugins.jpacktool.base.mojo;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Bernd Eilers
+ */
+public class OciImageLayoutTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File image;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        image = folder.newFolder( "image" );
+        new File( image, "lib" ).mkdirs();
+        Files.write( new File( image, "lib/a.jar" ).toPath(), Collections.singletonList( "a" ),
+                     StandardCharsets.UTF_8 );
+    }
+
+    private OciImageLayout createLayout( String name ) throws IOException
+    {
+        OciImageLayout layout = new OciImageLayout( new File( folder.getRoot(), name ) );
+        layout.setEntrypoint( Arrays.asList( "/opt/app/bin/app" ) );
+        layout.setWorkingDir( "/opt/app" );
+        layout.setLabel( "version", "1.0" );
+
+        LayerArchive layer = new LayerArchive( image );
+        layer.setPrefix( "opt/app" );
+        layer.add( "lib/a.jar" );
+        layout.addLayer( layer, "application jars" );
+        layout.addLayer( new LayerArchive( image ), "empty" );
+        return layout;
+    }
+
+    private static String read( File file ) throws IOException
+    {
+        return new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+    }
+
+    private static String sha256( File file ) throws Exception
+    {
+        return AbstractToolMojo.bytesToHex( MessageDigest.getInstance( "SHA-256" )
+            .digest( Files.readAllBytes( file.toPath() ) ) );
+    }
+
+    @Test
+    public void layoutShouldReferenceBlobsByDigest() throws Exception
+    {
+        OciImageLayout layout = createLayout( "oci" );
+        String manifestDigest = layout.write( "1.0" );
+        File blobs = new File( layout.getDirectory(), "blobs/sha256" );
+
+        assertThat( read( new File( layout.getDirectory(), "oci-layout" ) ) )
+            .isEqualTo( "{\"imageLayoutVersion\":\"1.0.0\"}" );
+        String index = read( new File( layout.getDirectory(), "index.json" ) );
+        assertThat( index ).contains( "\"digest\":\"sha256:" + manifestDigest + "\"" );
+        assertThat( index ).contains( "\"org.opencontainers.image.ref.name\":\"1.0\"" );
+
+        // config, manifest and one layer, the empty layer is skipped
+        String[] names = blobs.list();
+        assertThat( names ).hasSize( 3 );
+        for ( String name : names )
+        {
+            assertThat( sha256( new File( blobs, name ) ) ).isEqualTo( name );
+        }
+
+        String manifest = read( new File( blobs, manifestDigest ) );
+        assertThat( manifest ).contains( "\"mediaType\":\"application/vnd.oci.image.layer.v1.tar+gzip\"" );
+        for ( String name : names )
+        {
+            if ( !name.equals( manifestDigest ) )
+            {
+                assertThat( manifest ).contains( "\"digest\":\"sha256:" + name + "\",\"size\":"
+                    + new File( blobs, name ).length() + "}" );
+            }
+        }
+    }
+
+    @Test
+    public void configShouldContainTheRuntimeSettings() throws Exception
+    {
+        OciImageLayout layout = createLayout( "oci" );
+        layout.write( null );
+        File blobs = new File( layout.getDirectory(), "blobs/sha256" );
+
+        String config = null;
+        for ( String name : blobs.list() )
+        {
+            String content = read( new File( blobs, name ) );
+            if ( content.startsWith( "{\"architecture\"" ) )
+            {
+                config = content;
+            }
+        }
+        assertThat( config ).isNotNull();
+        assertThat( config ).contains( "\"Entrypoint\":[\"/opt/app/bin/app\"]" );
+        assertThat( config ).contains( "\"WorkingDir\":\"/opt/app\"" );
+        assertThat( config ).contains( "\"Labels\":{\"version\":\"1.0\"}" );
+        assertThat( config ).contains( "\"history\":[{\"created_by\":\"application jars\"}]" );
+        assertThat( config ).contains( "\"diff_ids\":[\"sha256:" );
+        assertThat( read( new File( layout.getDirectory(), "index.json" ) ) ).doesNotContain( "annotations" );
+    }
+
+    @Test
+    public void sameContentShouldGiveTheSameManifestDigest() throws Exception
+    {
+        String first = createLayout( "first" ).write( "1.0" );
+        new File( image, "lib/a.jar" ).setLastModified( System.currentTimeMillis() - 60000 );
+        String second = createLayout( "second" ).write( "1.0" );
+
+        assertThat( second ).isEqualTo( first );
+    }
+
+    @Test
+    public void tarballShouldBeWritten() throws Exception
+    {
+        OciImageLayout layout = createLayout( "oci" );
+        layout.write( "1.0" );
+        File tarball = new File( folder.getRoot(), "image.tar" );
+        layout.writeTarball( tarball );
+
+        String content = new String( Files.readAllBytes( tarball.toPath() ), StandardCharsets.ISO_8859_1 );
+        assertThat( content ).contains( "oci-layout" );
+        assertThat( content ).contains( "index.json" );
+        assertThat( content ).contains( "blobs/sha256/" );
+    }
+}